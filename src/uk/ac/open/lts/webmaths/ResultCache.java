@@ -0,0 +1,149 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths;
+
+/**
+ * A thread-safe cache of conversion results. Implementations decide how many
+ * results to keep and which to throw away.
+ * @param <K> Key type (must implement equals and hashCode)
+ * @param <V> Value type
+ */
+public interface ResultCache<K, V>
+{
+	/**
+	 * Gets a value from the cache. This counts as a hit or a miss in the stats.
+	 * @param key Key
+	 * @return Value or null if not in the cache
+	 */
+	public V get(K key);
+
+	/**
+	 * Gets a value from the cache without counting it in the stats or as a use
+	 * of the key (for checking the cache again within the same request).
+	 * @param key Key
+	 * @return Value or null if not in the cache
+	 */
+	public V peek(K key);
+
+	/**
+	 * Adds a value to the cache, replacing any existing value for the key. The
+	 * cache may decide not to keep the value.
+	 * @param key Key
+	 * @param value Value
+	 */
+	public void put(K key, V value);
+
+	/**
+	 * Removes everything from the cache. (Stats are not reset.)
+	 */
+	public void clear();
+
+	/**
+	 * @return Current statistics about cache usage
+	 */
+	public Stats getStats();
+
+	/**
+	 * Statistics about cache usage.
+	 */
+	public static class Stats
+	{
+		private final long hits, misses, evictions, entries, bytes, maxBytes;
+
+		/**
+		 * @param hits Number of successful gets
+		 * @param misses Number of unsuccessful gets
+		 * @param evictions Number of entries thrown away to save space
+		 * @param entries Number of entries currently in cache
+		 * @param bytes Estimated size of entries currently in cache
+		 * @param maxBytes Maximum size of cache
+		 */
+		public Stats(long hits, long misses, long evictions, long entries,
+			long bytes, long maxBytes)
+		{
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.entries = entries;
+			this.bytes = bytes;
+			this.maxBytes = maxBytes;
+		}
+
+		/**
+		 * @return Number of successful gets
+		 */
+		public long getHits()
+		{
+			return hits;
+		}
+
+		/**
+		 * @return Number of unsuccessful gets
+		 */
+		public long getMisses()
+		{
+			return misses;
+		}
+
+		/**
+		 * @return Number of entries thrown away to save space
+		 */
+		public long getEvictions()
+		{
+			return evictions;
+		}
+
+		/**
+		 * @return Number of entries currently in cache
+		 */
+		public long getEntries()
+		{
+			return entries;
+		}
+
+		/**
+		 * @return Estimated size in bytes of entries currently in cache
+		 */
+		public long getBytes()
+		{
+			return bytes;
+		}
+
+		/**
+		 * @return Maximum size in bytes
+		 */
+		public long getMaxBytes()
+		{
+			return maxBytes;
+		}
+
+		/**
+		 * @return Percentage of gets that were hits, or -1 if there were no gets
+		 */
+		public double getHitPercentage()
+		{
+			long total = hits + misses;
+			if(total == 0)
+			{
+				return -1;
+			}
+			return 100.0 * (double)hits / (double)total;
+		}
+	}
+}
@@ -77,7 +77,41 @@ public class StatusServlet extends HttpServlet
 		// Fill MathJax stats.
 		MathJax mj = MathJax.get(getServletContext());
 		Status mjStatus = mj.getStatus();
+		values.put("MATHJAXREADY", mjStatus.isReady() ? "Ready" : "Starting");
 		values.put("CACHEHITS", mjStatus.getCacheHits() + "");
+		ResultCache.Stats cacheStats = mjStatus.getCacheStats();
+		values.put("CACHEHITPERCENTAGE", formatPercentage(cacheStats.getHitPercentage()));
+		values.put("CACHEEVICTIONS", cacheStats.getEvictions() + "");
+		values.put("CACHEENTRIES", cacheStats.getEntries() + "");
+		values.put("CACHESIZE", formatMegabytes(cacheStats.getBytes()));
+		values.put("CACHEMAXSIZE", formatMegabytes(cacheStats.getMaxBytes()));
+		ResultCache.Stats diskStats = mjStatus.getDiskCacheStats();
+		if(diskStats == null)
+		{
+			values.put("DISKCACHE", "Disk cache: <strong>Not enabled</strong>");
+		}
+		else
+		{
+			values.put("DISKCACHE", "Disk cache hits: <strong>" + diskStats.getHits()
+				+ "</strong> (<strong>" + formatPercentage(diskStats.getHitPercentage())
+				+ "</strong>), size: <strong>" + formatMegabytes(diskStats.getBytes())
+				+ "</strong> of " + formatMegabytes(diskStats.getMaxBytes())
+				+ " (<strong>" + diskStats.getEntries() + "</strong> equations)");
+		}
+		ResultCache.Stats outputStats = mj.getOutputCacheStats();
+		values.put("OUTPUTCACHE", "Output cache hits: <strong>" + outputStats.getHits()
+			+ "</strong> (<strong>" + formatPercentage(outputStats.getHitPercentage())
+			+ "</strong>), size: <strong>" + formatMegabytes(outputStats.getBytes())
+			+ "</strong> of " + formatMegabytes(outputStats.getMaxBytes())
+			+ " (<strong>" + outputStats.getEntries() + "</strong> images), evictions: <strong>"
+			+ outputStats.getEvictions() + "</strong>");
+		values.put("QUEUEDEPTH", mjStatus.getQueueDepth() + "");
+		values.put("QUEUEMAX", mjStatus.getMaxQueueDepth() == 0 ? "no limit"
+			: "maximum " + mjStatus.getMaxQueueDepth());
+		values.put("QUEUEREJECTIONS", mjStatus.getRejections() + "");
+		values.put("QUEUEWAIT", formatWait(mjStatus.getQueueWaitPercentile(50))
+			+ " / " + formatWait(mjStatus.getQueueWaitPercentile(90))
+			+ " / " + formatWait(mjStatus.getQueueWaitPercentile(99)));
 		values.put("MATHJAXRUNS", mjStatus.getCacheMisses() + "");
 		values.put("ERRORCOUNT", mjStatus.getErrorCount() + "");
 		values.put("ERRORPERCENTAGE",
@@ -161,6 +195,41 @@ public class StatusServlet extends HttpServlet
 		pw.close();
 	}
 
+	/**
+	 * @param percentage Percentage value, or negative if not available
+	 * @return Percentage formatted for display
+	 */
+	private static String formatPercentage(double percentage)
+	{
+		if(percentage < 0)
+		{
+			return "N/A%";
+		}
+		return String.format("%.1f", percentage) + "%";
+	}
+
+	/**
+	 * @param bytes Number of bytes
+	 * @return Size formatted in megabytes for display
+	 */
+	private static String formatMegabytes(long bytes)
+	{
+		return String.format("%.1f", (double)bytes / (1024.0 * 1024.0)) + " MB";
+	}
+
+	/**
+	 * @param millis Time in milliseconds, or -1 if unknown
+	 * @return Time formatted for display
+	 */
+	private static String formatWait(long millis)
+	{
+		if(millis < 0)
+		{
+			return "N/A";
+		}
+		return millis + " ms";
+	}
+
 	public static String esc(String s)
 	{
 		return s.replace("&", "&amp;").replace("<", "&lt;");
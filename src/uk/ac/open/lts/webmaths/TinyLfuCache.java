@@ -0,0 +1,372 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrent cache limited by the total size (in bytes) of its entries.
+ * <p>
+ * Uses a simple version of the W-TinyLFU policy: new entries go into a small
+ * LRU 'window'. When they fall out of the window, they only get into the main
+ * LRU area if they have been requested more often than the entry they would
+ * replace. Request frequency is estimated with a count-min sketch, so this
+ * includes requests for items that are not currently in the cache.
+ * <p>
+ * Reads do not lock (if another thread is busy updating the lists, the read
+ * does not update the recency order).
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public class TinyLfuCache<K, V> implements ResultCache<K, V>
+{
+	/** Proportion of the space used for the recency window. */
+	private final static double WINDOW_FRACTION = 0.01;
+
+	/** Assumed average entry size, used to decide how big the sketch is. */
+	private final static int TYPICAL_ENTRY_BYTES = 2048;
+
+	/**
+	 * Works out the size of a cache entry.
+	 * @param <K> Key type
+	 * @param <V> Value type
+	 */
+	public interface Weigher<K, V>
+	{
+		/**
+		 * @param key Key
+		 * @param value Value
+		 * @return Approximate memory use of the entry, in bytes
+		 */
+		public long getBytes(K key, V value);
+	}
+
+	/**
+	 * Entry in the cache, which is also a node in one of the linked lists.
+	 */
+	private final static class Node<K, V>
+	{
+		private final K key;
+		private final V value;
+		private final long bytes;
+		private Node<K, V> previous, next;
+		private boolean inWindow;
+		private boolean removed;
+
+		private Node(K key, V value, long bytes)
+		{
+			this.key = key;
+			this.value = value;
+			this.bytes = bytes;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Node<K, V>> map =
+		new ConcurrentHashMap<K, Node<K, V>>();
+	private final Weigher<K, V> weigher;
+	private final FrequencySketch sketch;
+	private final long maxBytes, maxWindowBytes, maxMainBytes;
+
+	/** Lock for the lists and byte counts. */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Sentinel nodes for the lists (most recent is after head). */
+	private final Node<K, V> windowHead = new Node<K, V>(null, null, 0),
+		mainHead = new Node<K, V>(null, null, 0);
+
+	private long windowBytes, mainBytes;
+
+	private final AtomicLong hits = new AtomicLong(),
+		misses = new AtomicLong(), evictions = new AtomicLong();
+
+	/**
+	 * @param maxBytes Maximum total size of entries
+	 * @param weigher Object that works out the size of entries
+	 */
+	public TinyLfuCache(long maxBytes, Weigher<K, V> weigher)
+	{
+		this.maxBytes = maxBytes;
+		this.weigher = weigher;
+		maxWindowBytes = Math.max(1, (long)(maxBytes * WINDOW_FRACTION));
+		maxMainBytes = maxBytes - maxWindowBytes;
+		long expectedEntries = maxBytes / TYPICAL_ENTRY_BYTES;
+		sketch = new FrequencySketch((int)Math.min(1 << 22, Math.max(256, expectedEntries)));
+		clearList(windowHead);
+		clearList(mainHead);
+	}
+
+	@Override
+	public V get(K key)
+	{
+		sketch.increment(key.hashCode());
+		Node<K, V> node = map.get(key);
+		if(node == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		// Move to the front of its list, unless somebody else is already
+		// changing the lists.
+		if(lock.tryLock())
+		{
+			try
+			{
+				if(!node.removed)
+				{
+					unlink(node);
+					linkFirst(node.inWindow ? windowHead : mainHead, node);
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		return node.value;
+	}
+
+	@Override
+	public V peek(K key)
+	{
+		Node<K, V> node = map.get(key);
+		return node == null ? null : node.value;
+	}
+
+	@Override
+	public void put(K key, V value)
+	{
+		long bytes = weigher.getBytes(key, value);
+		if(bytes > maxMainBytes)
+		{
+			// Too big to ever keep.
+			return;
+		}
+
+		Node<K, V> node = new Node<K, V>(key, value, bytes);
+		lock.lock();
+		try
+		{
+			Node<K, V> previous = map.put(key, node);
+			if(previous != null)
+			{
+				remove(previous);
+			}
+			node.inWindow = true;
+			linkFirst(windowHead, node);
+			windowBytes += bytes;
+
+			evict();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear()
+	{
+		lock.lock();
+		try
+		{
+			map.clear();
+			clearList(windowHead);
+			clearList(mainHead);
+			windowBytes = 0;
+			mainBytes = 0;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Stats getStats()
+	{
+		long bytes;
+		lock.lock();
+		try
+		{
+			bytes = windowBytes + mainBytes;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		return new Stats(hits.get(), misses.get(), evictions.get(), map.size(),
+			bytes, maxBytes);
+	}
+
+	/**
+	 * Moves entries out of the window while it is too large. Each one either
+	 * goes into the main area (throwing out less popular entries if necessary)
+	 * or is discarded. Must hold lock.
+	 */
+	private void evict()
+	{
+		while(windowBytes > maxWindowBytes)
+		{
+			Node<K, V> candidate = windowHead.previous;
+			unlink(candidate);
+			windowBytes -= candidate.bytes;
+			candidate.inWindow = false;
+
+			// Check whether the candidate is more popular than all the entries it
+			// would need to replace.
+			int candidateFrequency = sketch.frequency(candidate.key.hashCode());
+			long needed = mainBytes + candidate.bytes - maxMainBytes;
+			boolean admit = true;
+			for(Node<K, V> victim = mainHead.previous; needed > 0 && victim != mainHead;
+				victim = victim.previous)
+			{
+				if(sketch.frequency(victim.key.hashCode()) >= candidateFrequency)
+				{
+					admit = false;
+					break;
+				}
+				needed -= victim.bytes;
+			}
+
+			if(admit)
+			{
+				while(mainBytes + candidate.bytes > maxMainBytes)
+				{
+					Node<K, V> victim = mainHead.previous;
+					map.remove(victim.key, victim);
+					remove(victim);
+					evictions.incrementAndGet();
+				}
+				linkFirst(mainHead, candidate);
+				mainBytes += candidate.bytes;
+			}
+			else
+			{
+				map.remove(candidate.key, candidate);
+				candidate.removed = true;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes a node from whichever list it is in. Must hold lock.
+	 * @param node Node to remove
+	 */
+	private void remove(Node<K, V> node)
+	{
+		unlink(node);
+		if(node.inWindow)
+		{
+			windowBytes -= node.bytes;
+		}
+		else
+		{
+			mainBytes -= node.bytes;
+		}
+		node.removed = true;
+	}
+
+	private static <K, V> void clearList(Node<K, V> head)
+	{
+		head.next = head;
+		head.previous = head;
+	}
+
+	private static <K, V> void unlink(Node<K, V> node)
+	{
+		node.previous.next = node.next;
+		node.next.previous = node.previous;
+	}
+
+	private static <K, V> void linkFirst(Node<K, V> head, Node<K, V> node)
+	{
+		node.next = head.next;
+		node.previous = head;
+		head.next.previous = node;
+		head.next = node;
+	}
+
+	/**
+	 * Count-min sketch with small counters which are periodically halved, so
+	 * that popularity fades over time. Updates are not synchronized; an
+	 * occasional lost increment does not matter for an estimate.
+	 */
+	private final static class FrequencySketch
+	{
+		private final static int[] SEEDS = { 0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0x7f4a7c15 };
+		private final static int MAX_COUNT = 15;
+
+		private final int[] table;
+		private final int mask, sampleSize;
+		private int additions;
+
+		/**
+		 * @param entries Expected number of distinct entries
+		 */
+		private FrequencySketch(int entries)
+		{
+			int size = Integer.highestOneBit(entries - 1) << 1;
+			table = new int[size];
+			mask = size - 1;
+			sampleSize = size * 10;
+		}
+
+		private int index(int hash, int i)
+		{
+			int h = (hash + SEEDS[i]) * SEEDS[i];
+			h ^= h >>> 16;
+			return h & mask;
+		}
+
+		private int frequency(int hash)
+		{
+			int frequency = MAX_COUNT;
+			for(int i = 0; i < SEEDS.length; i++)
+			{
+				frequency = Math.min(frequency, table[index(hash, i)]);
+			}
+			return frequency;
+		}
+
+		private void increment(int hash)
+		{
+			for(int i = 0; i < SEEDS.length; i++)
+			{
+				int index = index(hash, i);
+				if(table[index] < MAX_COUNT)
+				{
+					table[index]++;
+				}
+			}
+			if(++additions >= sampleSize)
+			{
+				for(int i = 0; i < table.length; i++)
+				{
+					table[i] >>>= 1;
+				}
+				additions = additions / 2;
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Optional use of virtual threads (Java 21 and later) for work that spends
+ * most of its time waiting, such as requests waiting for a MathJax process.
+ * <p>
+ * Turned on with the <code>webmaths-virtual-threads</code> context parameter.
+ * The JDK methods are called by reflection so that the code still builds and
+ * runs on older versions; if they aren't available, a warning is logged and
+ * normal threads are used.
+ */
+public final class VirtualThreads
+{
+	private final static Logger LOGGER = Logger.getLogger(
+		VirtualThreads.class.getName());
+
+	/** Context parameter that turns on virtual threads. */
+	public final static String PARAM_ENABLED = "webmaths-virtual-threads";
+
+	private static volatile boolean enabled;
+
+	private VirtualThreads()
+	{
+	}
+
+	/**
+	 * Reads the setting from the servlet context. Should be called before any
+	 * threads are created.
+	 * @param context Servlet context
+	 */
+	public static void configure(ServletContext context)
+	{
+		String value = context.getInitParameter(PARAM_ENABLED);
+		setEnabled(value != null && value.trim().equals("true"));
+	}
+
+	/**
+	 * Turns virtual threads on or off.
+	 * @param enable True to use virtual threads if the JDK supports them
+	 * @return True if virtual threads are now in use
+	 */
+	public static boolean setEnabled(boolean enable)
+	{
+		if(enable && !isSupported())
+		{
+			LOGGER.warning("Virtual threads are not supported by this Java version ("
+				+ System.getProperty("java.version") + "); using normal threads");
+			enable = false;
+		}
+		enabled = enable;
+		return enabled;
+	}
+
+	/**
+	 * @return True if virtual threads are in use
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @return True if the JDK supports virtual threads
+	 */
+	public static boolean isSupported()
+	{
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch(NoSuchMethodException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread. Only
+	 * call this if {@link #isEnabled()} is true.
+	 * @return Executor
+	 * @throws IllegalStateException If virtual threads aren't supported
+	 */
+	public static ExecutorService newTaskExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class.getMethod(
+				"newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e)
+		{
+			throw new IllegalStateException("Unable to create virtual thread executor", e);
+		}
+	}
+
+	/**
+	 * Starts a short-lived background thread. This is a virtual thread if they
+	 * are in use, otherwise a normal daemon thread.
+	 * @param task Task to run
+	 * @param name Thread name
+	 * @return Thread (already started)
+	 */
+	public static Thread start(Runnable task, String name)
+	{
+		if(enabled)
+		{
+			try
+			{
+				// Methods must come from the public interface, not the JDK's
+				// internal implementation class.
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+				Method startMethod = builderClass.getMethod("start", Runnable.class);
+				return (Thread)startMethod.invoke(builder, task);
+			}
+			catch(Exception e)
+			{
+				LOGGER.log(Level.WARNING, "Unable to start virtual thread", e);
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
@@ -54,14 +54,20 @@ public class WebMathsService
 	 */
 	public Document parseMathml(String xml) throws Exception
 	{
-		ServletContext servletContext = null;
-		if(context != null)
+		return parseMathml(getServletContext(), xml);
+	}
+
+	/**
+	 * @return Servlet context, or null if not running in a servlet container
+	 */
+	protected ServletContext getServletContext()
+	{
+		if(context == null)
 		{
-			servletContext = (ServletContext)context.getMessageContext().get(
-				MessageContext.SERVLET_CONTEXT);
+			return null;
 		}
-		return parseMathml(servletContext, xml);
-
+		return (ServletContext)context.getMessageContext().get(
+			MessageContext.SERVLET_CONTEXT);
 	}
 
 	/**
@@ -116,12 +122,6 @@ public class WebMathsService
 	 */
 	protected MathmlEntityFixer getFixer()
 	{
-		ServletContext servletContext = null;
-		if(context != null)
-		{
-			servletContext = (ServletContext)context.getMessageContext().get(
-				MessageContext.SERVLET_CONTEXT);
-		}
-		return MathmlEntityFixer.getFixer(servletContext);
+		return MathmlEntityFixer.getFixer(getServletContext());
 	}
 }
\ No newline at end of file
@@ -1,22 +1,50 @@
 package uk.ac.open.lts.webmaths;
 
+import java.util.logging.*;
+
 import javax.servlet.*;
 
 import uk.ac.open.lts.webmaths.mathjax.MathJax;
+import uk.ac.open.lts.webmaths.tex.TexConversions;
 
 /**
- * Receives events when the servlet context is destroyed.
+ * Receives events when the servlet context is created or destroyed.
  */
 public class WebMathsServletContextListener implements ServletContextListener
 {
+	private final static Logger LOGGER = Logger.getLogger(
+		WebMathsServletContextListener.class.getName());
+
 	@Override
 	public void contextDestroyed(ServletContextEvent e)
 	{
 		MathJax.cleanup(e.getServletContext());
+		TexConversions.cleanup(e.getServletContext());
 	}
 
 	@Override
 	public void contextInitialized(ServletContextEvent e)
 	{
+		// Start MathJax in the background so that the first request doesn't have
+		// to wait for Node instances to start.
+		final ServletContext servletContext = e.getServletContext();
+		VirtualThreads.configure(servletContext);
+		Thread warmUp = new Thread("MathJax warm-up")
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					MathJax.get(servletContext).warmUp();
+				}
+				catch(Throwable t)
+				{
+					LOGGER.log(Level.WARNING, "Unable to start MathJax", t);
+				}
+			}
+		};
+		warmUp.setDaemon(true);
+		warmUp.start();
 	}
 }
@@ -23,17 +23,16 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
-import javax.annotation.Resource;
 import javax.imageio.ImageIO;
 import javax.jws.WebService;
 import javax.servlet.ServletContext;
-import javax.xml.ws.WebServiceContext;
-import javax.xml.ws.handler.MessageContext;
 
 import org.w3c.dom.*;
 
+import uk.ac.open.lts.webmaths.VirtualThreads;
 import uk.ac.open.lts.webmaths.image.*;
 import uk.ac.open.lts.webmaths.tex.*;
 
@@ -42,9 +41,6 @@ import uk.ac.open.lts.webmaths.tex.*;
 	serviceName="MathsImageTex", portName="MathsImagePort")
 public class WebMathsImageTex extends WebMathsImage
 {
-	@Resource
-	private WebServiceContext context;
-
 	private final static int MAX_TEMP_FOLDER_ATTEMPTS = 10;
 
 	private final static float BASE_PIXEL_SIZE = 18.0f;
@@ -499,15 +495,6 @@ public class WebMathsImageTex extends WebMathsImage
 		return temp;
 	}
 
-	/**
-	 * @return Servlet context (or null if not running from servlet)
-	 */
-	private ServletContext getServletContext()
-	{
-		return (ServletContext)context.getMessageContext().get(
-			MessageContext.SERVLET_CONTEXT);
-	}
-
 	// TODO I'm not hugely satisfied by the way this ends up writing two pages
 	private final static String TEX_PROLOG =
 		"\\documentclass[10pt]{article}\n" +
@@ -557,40 +544,36 @@ public class WebMathsImageTex extends WebMathsImage
 			System.err.println("[WEBMATHS] Exec: " + commandString.toString().trim());
 		}
 		Process process = Runtime.getRuntime().exec(command, null, cwd);
-		EaterThread stderr = new EaterThread(process.getErrorStream());
-		EaterThread stdout = new EaterThread(process.getInputStream());
+		StreamEater stderr = new StreamEater(process.getErrorStream());
+		StreamEater stdout = new StreamEater(process.getInputStream());
 		process.waitFor();
 		stderrLines = stderr.getLines();
 		return stdout.getLines();
 	}
 
-	private static class EaterThread extends Thread
+	/**
+	 * Reads all lines from a process stream on a background thread (a virtual
+	 * thread, if those are turned on).
+	 */
+	private static class StreamEater implements Runnable
 	{
 		private BufferedReader buffer;
 		private LinkedList<String> lines = new LinkedList<String>();
-		private boolean running;
+		private final CountDownLatch finished = new CountDownLatch(1);
 
-		public EaterThread(InputStream stream) throws IOException
+		public StreamEater(InputStream stream) throws IOException
 		{
 			this.buffer = new BufferedReader(new InputStreamReader(stream, "US-ASCII"));
-			running = true;
-			start();
+			VirtualThreads.start(this, "process output");
 		}
 
-		public synchronized String[] getLines() throws InterruptedException,
+		public String[] getLines() throws InterruptedException,
 			IllegalStateException
 		{
-			synchronized(this)
+			if(!finished.await(10, TimeUnit.SECONDS))
 			{
-				if(running)
-				{
-					wait(10000);
-				}
-				if(running)
-				{
-					throw new IllegalStateException(
-						"Attempt to getLines when process not finished");
-				}
+				throw new IllegalStateException(
+					"Attempt to getLines when process not finished");
 			}
 			return lines.toArray(new String[lines.size()]);
 		}
@@ -635,11 +618,7 @@ public class WebMathsImageTex extends WebMathsImage
 					}
 					buffer = null;
 				}
-				synchronized(this)
-				{
-					running = false;
-					notify();
-				}
+				finished.countDown();
 			}
 		}
 	}
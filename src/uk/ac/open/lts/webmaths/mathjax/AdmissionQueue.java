@@ -0,0 +1,147 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Limits how many requests can wait for a MathJax instance, and for how long,
+ * so that when the server is overloaded new requests fail quickly instead of
+ * tying up threads until the client gives up anyway. Also keeps statistics
+ * about waiting.
+ */
+class AdmissionQueue
+{
+	/** Number of recent wait times kept for percentiles. */
+	private final static int WAIT_SAMPLES = 1000;
+
+	private final int maxDepth;
+	private final long maxWait;
+
+	private final AtomicInteger depth = new AtomicInteger();
+	private final AtomicLong rejections = new AtomicLong();
+
+	private final long[] waits = new long[WAIT_SAMPLES];
+	private int waitIndex, waitCount;
+
+	/**
+	 * @param maxDepth Maximum number of requests waiting at once (0 = no limit)
+	 * @param maxWait Maximum time a request can wait, in milliseconds
+	 */
+	AdmissionQueue(int maxDepth, long maxWait)
+	{
+		this.maxDepth = maxDepth;
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * @return Maximum time a request can wait, in milliseconds
+	 */
+	long getMaxWait()
+	{
+		return maxWait;
+	}
+
+	/**
+	 * Joins the queue. If this returns true, {@link #leave(long)} must be called
+	 * afterwards.
+	 * @return True if there was room, false if the request is rejected
+	 */
+	boolean enter()
+	{
+		while(true)
+		{
+			int current = depth.get();
+			if(maxDepth != 0 && current >= maxDepth)
+			{
+				rejections.incrementAndGet();
+				return false;
+			}
+			if(depth.compareAndSet(current, current + 1))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Leaves the queue.
+	 * @param waited Time spent waiting in milliseconds
+	 */
+	void leave(long waited)
+	{
+		depth.decrementAndGet();
+		recordWait(waited);
+	}
+
+	/**
+	 * Counts a request that was rejected after waiting too long.
+	 */
+	void timedOut()
+	{
+		rejections.incrementAndGet();
+	}
+
+	/**
+	 * Records the time a request waited (including requests that didn't need to
+	 * join the queue, which wait 0).
+	 * @param waited Time in milliseconds
+	 */
+	synchronized void recordWait(long waited)
+	{
+		waits[waitIndex] = waited;
+		waitIndex = (waitIndex + 1) % WAIT_SAMPLES;
+		waitCount = Math.min(waitCount + 1, WAIT_SAMPLES);
+	}
+
+	/**
+	 * @return Number of requests currently waiting
+	 */
+	int getDepth()
+	{
+		return depth.get();
+	}
+
+	/**
+	 * @return Maximum number of requests waiting at once (0 = no limit)
+	 */
+	int getMaxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * @return Total number of requests rejected
+	 */
+	long getRejections()
+	{
+		return rejections.get();
+	}
+
+	/**
+	 * @return Recent wait times in milliseconds, sorted
+	 */
+	synchronized long[] getSortedWaits()
+	{
+		long[] result = Arrays.copyOf(waits, waitCount);
+		Arrays.sort(result);
+		return result;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.util.*;
+
+/**
+ * Outputs that can be requested from MathJax.Node. Requests that don't need
+ * SVG are much cheaper, because MathJax doesn't have to lay out the equation.
+ * The names match the result sections in the batch processor protocol.
+ */
+public enum ConversionOutput
+{
+	/** SVG image (which includes the speech text as its title). */
+	SVG,
+	/** MathML (only for TeX equations). */
+	MATHML,
+	/** Speech text. */
+	SPEECH;
+
+	/** All outputs. */
+	public final static Set<ConversionOutput> ALL =
+		Collections.unmodifiableSet(EnumSet.allOf(ConversionOutput.class));
+}
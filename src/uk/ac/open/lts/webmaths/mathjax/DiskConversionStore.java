@@ -0,0 +1,858 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.*;
+import java.util.regex.*;
+import java.util.zip.CRC32;
+
+import uk.ac.open.lts.webmaths.ResultCache;
+import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.ConversionResults;
+
+/**
+ * Stores conversion results on local disk so that they survive restarts.
+ * <p>
+ * Results are keyed by a SHA-256 hash of the format, font, and content. They
+ * are appended to segment files; when a segment gets big enough it is sealed,
+ * a matching index file is written, and the segment is read via memory-mapped
+ * I/O from then on. The segment currently being written has no index file and
+ * is scanned on startup; if the server crashed part way through writing a
+ * record, the segment is truncated to the last complete record.
+ * <p>
+ * When the store gets too big, the oldest segment is compacted: results that
+ * were read since they were last written are copied to the current segment,
+ * and the rest are dropped.
+ * <p>
+ * Writes happen on a single background thread so they do not delay requests.
+ */
+class DiskConversionStore
+{
+	private final static Logger LOGGER = Logger.getLogger(DiskConversionStore.class.getName());
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Magic number at start of each record ('MJR1'). */
+	private final static int RECORD_MAGIC = 0x4d4a5231;
+
+	/** Magic number at start of each index file ('MJI1'). */
+	private final static int INDEX_MAGIC = 0x4d4a4931;
+
+	/** Length of hash key in bytes. */
+	private final static int KEY_LENGTH = 32;
+
+	/** Record header: magic, key, SVG length, MathML length, CRC. */
+	private final static int RECORD_HEADER_LENGTH = 4 + KEY_LENGTH + 4 + 4 + 4;
+
+	/** Largest and smallest size of a single segment file. */
+	private final static long MAX_SEGMENT_BYTES = 64L * 1024L * 1024L,
+		MIN_SEGMENT_BYTES = 1024L * 1024L;
+
+	/** Maximum number of results waiting to be written (more are ignored). */
+	private final static int MAX_PENDING_WRITES = 1000;
+
+	private final static Pattern REGEX_SEGMENT = Pattern.compile("^segment-([0-9]{8})\\.dat$");
+
+	/**
+	 * Hash key for an equation.
+	 */
+	private final static class Key
+	{
+		private final byte[] hash;
+		private final int hashCode;
+
+		private Key(byte[] hash)
+		{
+			this.hash = hash;
+			this.hashCode = Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return (obj instanceof Key) && Arrays.equals(hash, ((Key)obj).hash);
+		}
+	}
+
+	/**
+	 * Location of a record in a segment.
+	 */
+	private final static class Location
+	{
+		private final Segment segment;
+		private final long offset;
+		private final int length;
+
+		/** Set when the record is read; cleared when it is copied in compaction. */
+		private volatile boolean accessed;
+
+		private Location(Segment segment, long offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A single segment file.
+	 */
+	private final static class Segment
+	{
+		private final int id;
+		private final File file, indexFile;
+
+		/** Channel used for writing (null once sealed; only used on writer thread). */
+		private FileChannel channel;
+		private RandomAccessFile randomAccess;
+
+		/**
+		 * File used by readers until the segment is mapped (null once sealed). It
+		 * is separate from the write channel and is not a channel itself, so a
+		 * reader that is interrupted can't close it. It may be closed at any time,
+		 * so readers must check mapped afterwards.
+		 */
+		private volatile RandomAccessFile reader;
+
+		/** Memory-mapped contents (null until sealed). */
+		private volatile MappedByteBuffer mapped;
+
+		/** Length of valid data. */
+		private volatile long length;
+
+		private Segment(File folder, int id)
+		{
+			this.id = id;
+			String base = String.format("segment-%08d", id);
+			file = new File(folder, base + ".dat");
+			indexFile = new File(folder, base + ".idx");
+		}
+
+		/**
+		 * Reads bytes from the segment.
+		 * @param offset Position in file
+		 * @param data Array to fill
+		 * @throws IOException Any error
+		 */
+		private void read(long offset, byte[] data) throws IOException
+		{
+			MappedByteBuffer localMapped = mapped;
+			if(localMapped == null)
+			{
+				// The writer maps the segment before it closes the reader, so if
+				// the reader is gone or closed, the mapping must be there.
+				RandomAccessFile localReader = reader;
+				if(localReader != null)
+				{
+					try
+					{
+						synchronized(localReader)
+						{
+							localReader.seek(offset);
+							localReader.readFully(data);
+						}
+						return;
+					}
+					catch(IOException e)
+					{
+						if(mapped == null)
+						{
+							throw e;
+						}
+						// Segment was sealed while reading
+					}
+				}
+				localMapped = mapped;
+				if(localMapped == null)
+				{
+					throw new IOException("Segment closed: " + file);
+				}
+			}
+			ByteBuffer buffer = localMapped.duplicate();
+			buffer.position((int)offset);
+			buffer.get(data);
+		}
+
+		/**
+		 * Opens the segment for writing.
+		 * @throws IOException Any error
+		 */
+		private void openForWrite() throws IOException
+		{
+			randomAccess = new RandomAccessFile(file, "rw");
+			channel = randomAccess.getChannel();
+			reader = new RandomAccessFile(file, "r");
+		}
+
+		/**
+		 * Maps the segment for reading and closes the write channel.
+		 * @throws IOException Any error
+		 */
+		private void map() throws IOException
+		{
+			if(channel == null)
+			{
+				randomAccess = new RandomAccessFile(file, "r");
+				channel = randomAccess.getChannel();
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			closeChannel();
+		}
+
+		private void closeChannel() throws IOException
+		{
+			RandomAccessFile localReader = reader;
+			if(localReader != null)
+			{
+				reader = null;
+				localReader.close();
+			}
+			if(randomAccess != null)
+			{
+				randomAccess.close();
+				randomAccess = null;
+				channel = null;
+			}
+		}
+
+		private void delete()
+		{
+			try
+			{
+				closeChannel();
+			}
+			catch(IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Error closing " + file, e);
+			}
+			// Note: on Windows, the files cannot be deleted until the mapping is
+			// garbage-collected. That only wastes space; they are not read again.
+			indexFile.delete();
+			if(!file.delete())
+			{
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	private final File folder;
+	private final long maxBytes, maxSegmentBytes;
+
+	private final ConcurrentHashMap<Key, Location> index =
+		new ConcurrentHashMap<Key, Location>();
+
+	/** Sealed segments in order, oldest first (only used on writer thread). */
+	private final LinkedList<Segment> sealed = new LinkedList<Segment>();
+
+	/** Segment being written (only used on writer thread). */
+	private Segment active;
+
+	private final AtomicLong totalBytes = new AtomicLong(),
+		hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	private final ThreadPoolExecutor writer;
+
+	/**
+	 * Opens the store, creating the folder if needed and recovering any
+	 * existing segments.
+	 * @param folder Folder for segment files
+	 * @param maxBytes Approximate maximum total size of files
+	 * @throws IOException If the folder can't be used
+	 */
+	DiskConversionStore(File folder, long maxBytes) throws IOException
+	{
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+		maxSegmentBytes = Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxBytes / 8));
+		if(!folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Unable to create disk cache folder: " + folder);
+		}
+
+		recover();
+
+		writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "MathJax disk cache writer");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			}, new ThreadPoolExecutor.DiscardPolicy());
+		// Start the thread now, because flush adds to the queue directly.
+		writer.prestartAllCoreThreads();
+	}
+
+	/**
+	 * Loads all existing segments. The last one (if it has no index file) becomes
+	 * the active segment.
+	 * @throws IOException Any error
+	 */
+	private void recover() throws IOException
+	{
+		// Find existing segments in order.
+		TreeMap<Integer, File> found = new TreeMap<Integer, File>();
+		File[] files = folder.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				Matcher m = REGEX_SEGMENT.matcher(file.getName());
+				if(m.matches())
+				{
+					found.put(Integer.parseInt(m.group(1)), file);
+				}
+			}
+		}
+
+		for(int id : found.keySet())
+		{
+			Segment segment = new Segment(folder, id);
+			if(!loadIndex(segment))
+			{
+				scan(segment);
+			}
+			totalBytes.addAndGet(segment.length);
+
+			if(segment.indexFile.exists())
+			{
+				segment.map();
+				sealed.add(segment);
+			}
+			else if(id == found.lastKey() && segment.length < maxSegmentBytes)
+			{
+				segment.openForWrite();
+				active = segment;
+			}
+			else
+			{
+				seal(segment);
+			}
+		}
+
+		if(active == null)
+		{
+			startNewSegment();
+		}
+	}
+
+	/**
+	 * Loads the index file for a segment, if there is a valid one.
+	 * @param segment Segment
+	 * @return True if index was loaded
+	 */
+	private boolean loadIndex(Segment segment)
+	{
+		if(!segment.indexFile.exists())
+		{
+			return false;
+		}
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.indexFile)));
+			try
+			{
+				CRC32 crc = new CRC32();
+				if(in.readInt() != INDEX_MAGIC)
+				{
+					return false;
+				}
+				long length = in.readLong();
+				if(length != segment.file.length())
+				{
+					return false;
+				}
+				int count = in.readInt();
+				List<Key> keys = new ArrayList<Key>(count);
+				List<Location> locations = new ArrayList<Location>(count);
+				for(int i = 0; i < count; i++)
+				{
+					byte[] hash = new byte[KEY_LENGTH];
+					in.readFully(hash);
+					long offset = in.readLong();
+					int recordLength = in.readInt();
+					crc.update(hash);
+					keys.add(new Key(hash));
+					locations.add(new Location(segment, offset, recordLength));
+				}
+				if(in.readLong() != crc.getValue())
+				{
+					return false;
+				}
+				segment.length = length;
+				for(int i = 0; i < count; i++)
+				{
+					index.put(keys.get(i), locations.get(i));
+				}
+				return true;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Ignoring invalid index " + segment.indexFile, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Scans a segment to build its index. If a record is incomplete or corrupt,
+	 * the segment is truncated at that point.
+	 * @param segment Segment
+	 * @throws IOException Any error
+	 */
+	private void scan(Segment segment) throws IOException
+	{
+		segment.indexFile.delete();
+		RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long fileLength = channel.size();
+			long offset = 0;
+			ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+			while(offset + RECORD_HEADER_LENGTH <= fileLength)
+			{
+				header.clear();
+				channel.read(header, offset);
+				header.flip();
+				if(header.getInt() != RECORD_MAGIC)
+				{
+					break;
+				}
+				byte[] hash = new byte[KEY_LENGTH];
+				header.get(hash);
+				int svgLength = header.getInt(), mathmlLength = header.getInt();
+				int expectedCrc = header.getInt();
+				long recordLength = (long)RECORD_HEADER_LENGTH + svgLength + mathmlLength;
+				if(svgLength < 0 || mathmlLength < 0 || offset + recordLength > fileLength)
+				{
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate(svgLength + mathmlLength);
+				while(body.hasRemaining())
+				{
+					channel.read(body, offset + RECORD_HEADER_LENGTH + body.position());
+				}
+				CRC32 crc = new CRC32();
+				crc.update(hash);
+				crc.update(body.array());
+				if((int)crc.getValue() != expectedCrc)
+				{
+					break;
+				}
+				index.put(new Key(hash), new Location(segment, offset, (int)recordLength));
+				offset += recordLength;
+			}
+			if(offset != fileLength)
+			{
+				LOGGER.log(Level.WARNING, "Truncating incomplete disk cache segment "
+					+ segment.file + " from " + fileLength + " to " + offset + " bytes");
+				channel.truncate(offset);
+			}
+			segment.length = offset;
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Starts a new active segment. Only called on writer thread (or in constructor).
+	 * @throws IOException Any error
+	 */
+	private void startNewSegment() throws IOException
+	{
+		int id = 0;
+		if(!sealed.isEmpty())
+		{
+			id = sealed.getLast().id + 1;
+		}
+		if(active != null)
+		{
+			id = active.id + 1;
+		}
+		active = new Segment(folder, id);
+		active.openForWrite();
+		active.channel.truncate(0);
+		active.length = 0;
+	}
+
+	/**
+	 * Seals a segment: writes it to disk, writes an index file, and maps it.
+	 * @param segment Segment
+	 * @throws IOException Any error
+	 */
+	private void seal(Segment segment) throws IOException
+	{
+		if(segment.channel != null)
+		{
+			segment.channel.force(false);
+		}
+
+		// Get all the index entries for this segment.
+		CRC32 crc = new CRC32();
+		File temp = new File(folder, segment.indexFile.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(temp)));
+		try
+		{
+			List<Map.Entry<Key, Location>> entries = new ArrayList<Map.Entry<Key, Location>>();
+			for(Map.Entry<Key, Location> entry : index.entrySet())
+			{
+				if(entry.getValue().segment == segment)
+				{
+					entries.add(entry);
+				}
+			}
+			out.writeInt(INDEX_MAGIC);
+			out.writeLong(segment.length);
+			out.writeInt(entries.size());
+			for(Map.Entry<Key, Location> entry : entries)
+			{
+				out.write(entry.getKey().hash);
+				out.writeLong(entry.getValue().offset);
+				out.writeInt(entry.getValue().length);
+				crc.update(entry.getKey().hash);
+			}
+			out.writeLong(crc.getValue());
+		}
+		finally
+		{
+			out.close();
+		}
+		if(!temp.renameTo(segment.indexFile))
+		{
+			segment.indexFile.delete();
+			if(!temp.renameTo(segment.indexFile))
+			{
+				throw new IOException("Unable to write index " + segment.indexFile);
+			}
+		}
+
+		segment.map();
+		sealed.add(segment);
+	}
+
+	/**
+	 * Gets the key for an equation.
+	 * @param eq Equation
+	 * @return Key
+	 */
+	private static Key getKey(InputEquation eq)
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((eq.getFormat() + "\n" + eq.getFont() + "\n").getBytes(UTF8));
+			digest.update(eq.getContent().getBytes(UTF8));
+			return new Key(digest.digest());
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * Gets a result from the store.
+	 * @param eq Equation
+	 * @return Result or null if not stored (or there was an error reading it)
+	 */
+	ConversionResults get(InputEquation eq)
+	{
+		Key key = getKey(eq);
+		Location location = index.get(key);
+		if(location != null)
+		{
+			try
+			{
+				ConversionResults results = read(key, location);
+				location.accessed = true;
+				hits.incrementAndGet();
+				return results;
+			}
+			catch(IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Error reading disk cache; removing entry", e);
+				index.remove(key, location);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Reads and checks a record.
+	 * @param key Expected key
+	 * @param location Location of record
+	 * @return Results
+	 * @throws IOException If there's an error or the record is not valid
+	 */
+	private ConversionResults read(Key key, Location location) throws IOException
+	{
+		byte[] data = new byte[location.length];
+		location.segment.read(location.offset, data);
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if(buffer.getInt() != RECORD_MAGIC)
+		{
+			throw new IOException("Invalid record magic number");
+		}
+		byte[] hash = new byte[KEY_LENGTH];
+		buffer.get(hash);
+		if(!Arrays.equals(hash, key.hash))
+		{
+			throw new IOException("Record does not match key");
+		}
+		int svgLength = buffer.getInt(), mathmlLength = buffer.getInt();
+		int expectedCrc = buffer.getInt();
+		if(RECORD_HEADER_LENGTH + svgLength + mathmlLength != data.length)
+		{
+			throw new IOException("Record length does not match index");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 4, KEY_LENGTH);
+		crc.update(data, RECORD_HEADER_LENGTH, svgLength + mathmlLength);
+		if((int)crc.getValue() != expectedCrc)
+		{
+			throw new IOException("Record checksum failed");
+		}
+		return new ConversionResults(
+			new String(data, RECORD_HEADER_LENGTH, svgLength, UTF8),
+			new String(data, RECORD_HEADER_LENGTH + svgLength, mathmlLength, UTF8));
+	}
+
+	/**
+	 * Adds a result to the store in the background. If there are too many
+	 * results waiting to be written, it is ignored.
+	 * @param eq Equation
+	 * @param results Results
+	 */
+	void storeAsync(final InputEquation eq, final ConversionResults results)
+	{
+		writer.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Key key = getKey(eq);
+					if(index.containsKey(key))
+					{
+						return;
+					}
+					append(key, results.getSvg().getBytes(UTF8),
+						results.getMathml().getBytes(UTF8));
+					while(totalBytes.get() > maxBytes && !sealed.isEmpty())
+					{
+						compactOldest();
+					}
+				}
+				catch(IOException e)
+				{
+					LOGGER.log(Level.WARNING, "Error writing disk cache", e);
+				}
+				catch(RuntimeException e)
+				{
+					LOGGER.log(Level.WARNING, "Unexpected error writing disk cache", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends a record to the active segment, starting a new segment if it is
+	 * full. Only called on writer thread.
+	 * @param key Key
+	 * @param svg SVG data
+	 * @param mathml MathML data
+	 * @throws IOException Any error
+	 */
+	private void append(Key key, byte[] svg, byte[] mathml) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(key.hash);
+		crc.update(svg);
+		crc.update(mathml);
+
+		int length = RECORD_HEADER_LENGTH + svg.length + mathml.length;
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(RECORD_MAGIC);
+		buffer.put(key.hash);
+		buffer.putInt(svg.length);
+		buffer.putInt(mathml.length);
+		buffer.putInt((int)crc.getValue());
+		buffer.put(svg);
+		buffer.put(mathml);
+		buffer.flip();
+
+		long offset = active.length;
+		while(buffer.hasRemaining())
+		{
+			active.channel.write(buffer, offset + buffer.position());
+		}
+		active.length = offset + length;
+		totalBytes.addAndGet(length);
+
+		// Only add to index once the data is written, so readers don't see it early.
+		index.put(key, new Location(active, offset, length));
+
+		if(active.length >= maxSegmentBytes)
+		{
+			seal(active);
+			startNewSegment();
+		}
+	}
+
+	/**
+	 * Removes the oldest segment. Records that have been read since they were
+	 * written are copied to the active segment first. Only called on writer
+	 * thread.
+	 * @throws IOException Any error
+	 */
+	private void compactOldest() throws IOException
+	{
+		Segment oldest = sealed.removeFirst();
+		for(Map.Entry<Key, Location> entry : index.entrySet())
+		{
+			Location location = entry.getValue();
+			if(location.segment != oldest)
+			{
+				continue;
+			}
+			boolean keep = location.accessed;
+			if(keep)
+			{
+				try
+				{
+					ConversionResults results = read(entry.getKey(), location);
+					index.remove(entry.getKey(), location);
+					append(entry.getKey(), results.getSvg().getBytes(UTF8),
+						results.getMathml().getBytes(UTF8));
+				}
+				catch(IOException e)
+				{
+					keep = false;
+				}
+			}
+			if(!keep)
+			{
+				index.remove(entry.getKey(), location);
+				evictions.incrementAndGet();
+			}
+		}
+		totalBytes.addAndGet(-oldest.length);
+		oldest.delete();
+	}
+
+	/**
+	 * Waits until all pending writes have completed.
+	 * @throws IOException If interrupted
+	 */
+	void flush() throws IOException
+	{
+		if(writer.isShutdown())
+		{
+			throw new IOException("Disk cache is closed");
+		}
+		FutureTask<Object> barrier = new FutureTask<Object>(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+			}
+		}, null);
+		try
+		{
+			// Add to the queue directly, waiting for space if necessary; using
+			// execute would discard it if the queue is full.
+			writer.getQueue().put(barrier);
+			barrier.get();
+		}
+		catch(InterruptedException e)
+		{
+			throw new IOException("Interrupted waiting for disk cache", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Finishes pending writes and closes files.
+	 */
+	void close()
+	{
+		writer.shutdown();
+		try
+		{
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+			if(active != null)
+			{
+				// Map the segment rather than just closing it, so that threads still
+				// reading it are not affected
+				if(active.channel != null)
+				{
+					active.channel.force(false);
+				}
+				active.map();
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+		catch(IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Error closing disk cache", e);
+		}
+	}
+
+	/**
+	 * @return Current statistics
+	 */
+	ResultCache.Stats getStats()
+	{
+		return new ResultCache.Stats(hits.get(), misses.get(), evictions.get(),
+			index.size(), totalBytes.get(), maxBytes);
+	}
+}
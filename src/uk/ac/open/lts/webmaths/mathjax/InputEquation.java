@@ -103,7 +103,8 @@ public abstract class InputEquation
 			return false;
 		}
 		InputEquation other = (InputEquation)obj;
-		return content.equals(other.content) && getFormat().equals(other.getFormat());
+		return content.equals(other.content) && getFormat().equals(other.getFormat())
+			&& font.equals(other.font);
 	}
 
 	/**
@@ -0,0 +1,431 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The MathJax instances for a single font.
+ * <p>
+ * Idle instances are kept on a lock-free stack, so the most recently used
+ * instance is reused first and spare ones stay idle long enough to be closed.
+ * Requests that can't get an instance wait in a queue; when an instance is
+ * released it is handed directly to the first waiting request, rather than
+ * waking all of them. There is a separate queue for each {@link Priority};
+ * when both have requests waiting, interactive requests get
+ * {@link #INTERACTIVE_WEIGHT} instances for every one given to a bulk request.
+ * <p>
+ * This class does not decide when to create or close instances; that is up to
+ * {@link MathJaxNodeExecutable}.
+ */
+class InstancePool
+{
+	/** Number of interactive requests served for each bulk one, when both wait. */
+	final static int INTERACTIVE_WEIGHT = 4;
+
+	private final String font;
+	private final int pipelineDepth;
+
+	/** All open instances for this font. */
+	private final CopyOnWriteArrayList<MathJaxNodeInstance> members =
+		new CopyOnWriteArrayList<MathJaxNodeInstance>();
+
+	/** Top of stack of idle instances. */
+	private final AtomicReference<IdleNode> idle = new AtomicReference<IdleNode>();
+
+	/** Requests waiting for an instance, in order. */
+	private final ConcurrentLinkedQueue<Waiter> interactiveWaiters =
+		new ConcurrentLinkedQueue<Waiter>(), bulkWaiters = new ConcurrentLinkedQueue<Waiter>();
+
+	/** Interactive requests served since the last bulk one (while bulk ones wait). */
+	private final AtomicInteger interactiveInRow = new AtomicInteger();
+
+	/**
+	 * Entry in the idle stack. The stack may contain instances that have since
+	 * been closed; these are skipped.
+	 */
+	private final static class IdleNode
+	{
+		private final MathJaxNodeInstance instance;
+		private final IdleNode next;
+
+		private IdleNode(MathJaxNodeInstance instance, IdleNode next)
+		{
+			this.instance = instance;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * A request waiting for an instance. It ends up either with an instance,
+	 * woken (so it should try again), or cancelled (if it stopped waiting).
+	 */
+	final static class Waiter
+	{
+		private final static Object WOKEN = new Object(), CANCELLED = new Object();
+
+		private final Thread thread = Thread.currentThread();
+		private final AtomicReference<Object> state = new AtomicReference<Object>();
+
+		/**
+		 * Gives an instance (with a request slot already reserved) to the waiter.
+		 * @param instance Instance
+		 * @return True if the waiter took it, false if it had already stopped waiting
+		 */
+		private boolean give(MathJaxNodeInstance instance)
+		{
+			if(state.compareAndSet(null, instance))
+			{
+				LockSupport.unpark(thread);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Wakes the waiter so that it tries again to get an instance.
+		 * @return True if the waiter was woken, false if it had already stopped waiting
+		 */
+		boolean wake()
+		{
+			if(state.compareAndSet(null, WOKEN))
+			{
+				LockSupport.unpark(thread);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Stops waiting.
+		 * @return Instance if one was given to the waiter before it stopped, else null
+		 */
+		private MathJaxNodeInstance cancel()
+		{
+			if(state.compareAndSet(null, CANCELLED))
+			{
+				return null;
+			}
+			return getInstance();
+		}
+
+		private MathJaxNodeInstance getInstance()
+		{
+			Object value = state.get();
+			return value instanceof MathJaxNodeInstance ? (MathJaxNodeInstance)value : null;
+		}
+	}
+
+	/**
+	 * @param font Font used by all instances in the pool
+	 * @param pipelineDepth Maximum number of requests to send to an instance at once
+	 */
+	InstancePool(String font, int pipelineDepth)
+	{
+		this.font = font;
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	/**
+	 * @return Font used by all instances in the pool
+	 */
+	String getFont()
+	{
+		return font;
+	}
+
+	/**
+	 * @return All open instances (safe to iterate while the pool changes)
+	 */
+	List<MathJaxNodeInstance> getMembers()
+	{
+		return members;
+	}
+
+	/**
+	 * Adds a newly created instance, which already has one request slot reserved.
+	 * @param instance New instance
+	 */
+	void add(MathJaxNodeInstance instance)
+	{
+		members.add(instance);
+	}
+
+	/**
+	 * Removes an instance that is being closed.
+	 * @param instance Instance
+	 * @return True if it was removed, false if it had already been removed
+	 */
+	boolean remove(MathJaxNodeInstance instance)
+	{
+		return members.remove(instance);
+	}
+
+	/**
+	 * Gets an instance without waiting. Prefers an idle instance; otherwise uses
+	 * the least busy instance that can accept another request, so that a request
+	 * queues inside MathJax behind as few others as possible. Bulk requests
+	 * don't take these extra slots while interactive requests are waiting, as
+	 * that would skip the wait queue and delay the interactive ones further.
+	 * @param priority Priority of request
+	 * @return Instance with a request slot reserved, or null if none available
+	 */
+	MathJaxNodeInstance tryAcquire(Priority priority)
+	{
+		MathJaxNodeInstance instance = popIdle(false);
+		if(instance != null)
+		{
+			return instance;
+		}
+		if(pipelineDepth <= 1
+			|| (priority == Priority.BULK && !interactiveWaiters.isEmpty()))
+		{
+			return null;
+		}
+		while(true)
+		{
+			MathJaxNodeInstance best = null;
+			int bestUsers = pipelineDepth;
+			for(MathJaxNodeInstance possible : members)
+			{
+				int users = possible.getUsers();
+				if(users > 0 && users < bestUsers)
+				{
+					best = possible;
+					bestUsers = users;
+				}
+			}
+			if(best == null)
+			{
+				return null;
+			}
+			if(best.tryReserveExtra(pipelineDepth))
+			{
+				return best;
+			}
+			// Another request took the slot (or it became idle); look again.
+		}
+	}
+
+	/**
+	 * Takes an idle instance so it can be closed. The instance is removed from
+	 * the pool.
+	 * @return Instance (already marked closed) or null if none idle
+	 */
+	MathJaxNodeInstance tryRetireIdle()
+	{
+		MathJaxNodeInstance instance = popIdle(true);
+		if(instance != null)
+		{
+			members.remove(instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Releases a request slot on an instance. If there are waiting requests,
+	 * the slot goes straight to the first one.
+	 * @param instance Instance
+	 * @return True if the instance is now idle
+	 */
+	boolean release(MathJaxNodeInstance instance)
+	{
+		if(!members.contains(instance))
+		{
+			// Instance was closed meanwhile.
+			return false;
+		}
+		if(handToWaiter(instance))
+		{
+			return false;
+		}
+		if(instance.releaseUser() > 0)
+		{
+			return false;
+		}
+		pushIdle(instance);
+
+		// A request may have started waiting after we checked the queue, but
+		// before the instance was on the idle stack; give it one now.
+		while(!interactiveWaiters.isEmpty() || !bulkWaiters.isEmpty())
+		{
+			MathJaxNodeInstance again = popIdle(false);
+			if(again == null)
+			{
+				break;
+			}
+			if(!handToWaiter(again))
+			{
+				again.releaseUser();
+				pushIdle(again);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for an instance to be released.
+	 * @param timeout Maximum time to wait in milliseconds
+	 * @param alsoQueue Another queue to wait in (so that the waiter can be woken
+	 *   by other events), or null
+	 * @param priority Priority of request
+	 * @return Instance with a request slot reserved, or null if the time ran out
+	 *   or the waiter was woken
+	 * @throws IOException If interrupted
+	 */
+	MathJaxNodeInstance await(long timeout, Queue<Waiter> alsoQueue, Priority priority)
+		throws IOException
+	{
+		Waiter waiter = new Waiter();
+		Queue<Waiter> waiters = priority == Priority.BULK ? bulkWaiters : interactiveWaiters;
+		waiters.add(waiter);
+		if(alsoQueue != null)
+		{
+			alsoQueue.add(waiter);
+		}
+		try
+		{
+			// Check again in case an instance was released just before we queued.
+			MathJaxNodeInstance instance = tryAcquire(priority);
+			if(instance != null)
+			{
+				MathJaxNodeInstance extra = waiter.cancel();
+				if(extra != null)
+				{
+					release(extra);
+				}
+				return instance;
+			}
+
+			long deadline = System.currentTimeMillis() + timeout;
+			while(waiter.state.get() == null)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+				{
+					break;
+				}
+				LockSupport.parkNanos(this, remaining * 1000000L);
+				if(Thread.interrupted())
+				{
+					MathJaxNodeInstance extra = waiter.cancel();
+					if(extra != null)
+					{
+						release(extra);
+					}
+					throw new IOException("MathJax processing thread interrupted");
+				}
+			}
+			return waiter.cancel();
+		}
+		finally
+		{
+			waiters.remove(waiter);
+			if(alsoQueue != null)
+			{
+				alsoQueue.remove(waiter);
+			}
+		}
+	}
+
+	/**
+	 * Hands an instance to the first waiting request.
+	 * @param instance Instance with a request slot reserved
+	 * @return True if a waiter took it
+	 */
+	private boolean handToWaiter(MathJaxNodeInstance instance)
+	{
+		Waiter waiter;
+		while((waiter = pollWaiter()) != null)
+		{
+			if(waiter.give(instance))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Takes the next waiting request, choosing between the interactive and bulk
+	 * queues according to {@link #INTERACTIVE_WEIGHT}.
+	 * @return Waiter or null if none
+	 */
+	private Waiter pollWaiter()
+	{
+		boolean bulkWaiting = !bulkWaiters.isEmpty();
+		if(!bulkWaiting || interactiveInRow.get() < INTERACTIVE_WEIGHT)
+		{
+			Waiter waiter = interactiveWaiters.poll();
+			if(waiter != null)
+			{
+				if(bulkWaiting)
+				{
+					interactiveInRow.incrementAndGet();
+				}
+				return waiter;
+			}
+		}
+		interactiveInRow.set(0);
+		Waiter waiter = bulkWaiters.poll();
+		return waiter != null ? waiter : interactiveWaiters.poll();
+	}
+
+	private void pushIdle(MathJaxNodeInstance instance)
+	{
+		while(true)
+		{
+			IdleNode head = idle.get();
+			if(idle.compareAndSet(head, new IdleNode(instance, head)))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes an instance from the idle stack.
+	 * @param retire If true, marks it closed; otherwise reserves a request slot
+	 * @return Instance or null if none idle
+	 */
+	private MathJaxNodeInstance popIdle(boolean retire)
+	{
+		while(true)
+		{
+			IdleNode head = idle.get();
+			if(head == null)
+			{
+				return null;
+			}
+			if(!idle.compareAndSet(head, head.next))
+			{
+				continue;
+			}
+			// Skip instances that were closed while on the stack.
+			if(retire ? head.instance.retireIfIdle() : head.instance.tryReserveIdle())
+			{
+				return head.instance;
+			}
+		}
+	}
+}
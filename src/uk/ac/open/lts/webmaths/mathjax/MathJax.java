@@ -18,9 +18,10 @@ Copyright 2015 The Open University
 */
 package uk.ac.open.lts.webmaths.mathjax;
 
-import java.awt.RenderingHints;
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.*;
 
 import javax.servlet.ServletContext;
@@ -28,14 +29,11 @@ import javax.xml.ws.WebServiceContext;
 import javax.xml.ws.handler.MessageContext;
 import javax.xml.xpath.*;
 
-import org.apache.batik.gvt.renderer.ImageRenderer;
 import org.apache.batik.transcoder.*;
-import org.apache.batik.transcoder.image.PNGTranscoder;
 import org.apache.fop.render.ps.EPSTranscoder;
 import org.w3c.dom.*;
-import org.w3c.dom.ls.*;
 
-import uk.ac.open.lts.webmaths.WebMathsService;
+import uk.ac.open.lts.webmaths.*;
 import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.ConversionResults;
 import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.Status;
 
@@ -54,6 +52,23 @@ public class MathJax
 	/** Name of attribute in ServletContext that stores singleton value. */
 	private static final String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.MathJax";
 
+	private static final String PARAM_OUTPUTCACHEMEGABYTES = "mathjax-output-cache-megabytes";
+
+	private static final String PARAM_RENDERTHREADS = "mathjax-render-threads";
+
+	private static final String PARAM_JAVA2DPNG = "mathjax-java2d-png";
+
+	private static final String PARAM_BATCHTIMEOUTSECONDS = "mathjax-batch-timeout-seconds";
+
+	/** Default maximum time for a batch of equations. */
+	private static final int DEFAULT_BATCH_TIMEOUT_SECONDS = 60;
+
+	/** Default size of output cache. */
+	private static final long DEFAULT_OUTPUT_CACHE_MEGABYTES = 32;
+
+	/** Approximate memory used by each output cache entry apart from the data. */
+	private static final long OUTPUT_CACHE_ENTRY_OVERHEAD = 200;
+
 	/** Ratio to use for converting size to ex */
 	private static final double CORRECT_DRAWING_UNITS_PER_EX = 428;
 
@@ -103,9 +118,82 @@ public class MathJax
 	private MathJaxNodeExecutable mjNode;
 
 	private final XPath xpath;
-	private final XPathExpression xpathAnnotation, xpathSvgTitle, xpathNormalizeSpace;
+	private final XPathExpression xpathAnnotation;
+
+	private ExecutorService threadPool, renderPool;
+
+	private final PngRasteriser pngRasteriser;
+
+	private final long batchTimeout;
+
+	/** Cache of finished SVG (String), PNG and EPS (byte[]) output. */
+	private final ResultCache<OutputKey, Object> outputCache;
+
+	/**
+	 * Key for the output cache. Identifies the output type and all the settings
+	 * that affect it.
+	 */
+	private final static class OutputKey
+	{
+		private final InputEquation eq;
+		private final String type;
+		private final double exSize;
+		private final String rgb;
+
+		/**
+		 * @param eq Equation
+		 * @param type Output type
+		 * @param exSize SIZE_IN_EX or ex size in pixels
+		 * @param rgb Colour code or null
+		 */
+		private OutputKey(InputEquation eq, String type, double exSize, String rgb)
+		{
+			this.eq = eq;
+			this.type = type;
+			this.exSize = exSize;
+			this.rgb = rgb;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof OutputKey))
+			{
+				return false;
+			}
+			OutputKey other = (OutputKey)obj;
+			return other.eq.equals(eq) && other.type.equals(type) &&
+				Double.compare(other.exSize, exSize) == 0 &&
+				(rgb == null ? other.rgb == null : rgb.equals(other.rgb));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			long bits = Double.doubleToLongBits(exSize);
+			return ((eq.hashCode() * 31 + type.hashCode()) * 31 +
+				(int)(bits ^ (bits >>> 32))) * 31 + (rgb == null ? 0 : rgb.hashCode());
+		}
+	}
+
+	/** Output types for the cache. */
+	private final static String OUTPUT_SVG = "svg", OUTPUT_SVG_UNCORRECTED = "svg-raw",
+		OUTPUT_PNG = "png", OUTPUT_EPS = "eps";
 
-	private ExecutorService threadPool;
+	/**
+	 * Works out the size of output cache entries.
+	 */
+	private final static TinyLfuCache.Weigher<OutputKey, Object> OUTPUT_WEIGHER =
+		new TinyLfuCache.Weigher<OutputKey, Object>()
+	{
+		@Override
+		public long getBytes(OutputKey key, Object value)
+		{
+			long bytes = value instanceof String ? 2L * ((String)value).length()
+				: ((byte[])value).length;
+			return 2L * key.eq.getContent().length() + bytes + OUTPUT_CACHE_ENTRY_OVERHEAD;
+		}
+	};
 
 	/**
 	 * Constructor.
@@ -114,9 +202,83 @@ public class MathJax
 	 */
 	protected MathJax(ServletContext servletContext)
 	{
-		// Set up the executable and thread pool.
+		// Set up the executable and thread pools. The MathJax pool has enough
+		// threads to keep every instance busy with as many requests as it will
+		// accept at once; they spend most of their time waiting. The render pool
+		// does CPU work (SVG processing, PNG and EPS), so it is sized to match
+		// the processors. In both, tasks wait in priority order, so that
+		// interactive work doesn't queue behind a bulk job. If virtual threads
+		// are turned on, MathJax tasks each get their own virtual thread instead;
+		// they are still served in priority order when waiting for an instance.
 		mjNode = createExecutable(servletContext);
-		threadPool = Executors.newFixedThreadPool(mjNode.getMaxInstances());
+		if(VirtualThreads.isEnabled())
+		{
+			threadPool = VirtualThreads.newTaskExecutor();
+		}
+		else
+		{
+			int threads = mjNode.getMaxInstances() * mjNode.getPipelineDepth();
+			threadPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>());
+		}
+		int renderThreads = Runtime.getRuntime().availableProcessors();
+		String renderParam = servletContext == null ? null :
+			servletContext.getInitParameter(PARAM_RENDERTHREADS);
+		if(renderParam != null && !renderParam.trim().isEmpty())
+		{
+			try
+			{
+				renderThreads = Integer.parseInt(renderParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_RENDERTHREADS + " (must be integer)");
+			}
+			if(renderThreads < 1)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_RENDERTHREADS + " (must be at least 1)");
+			}
+		}
+		renderPool = new ThreadPoolExecutor(renderThreads, renderThreads, 0L,
+			TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		String java2dParam = servletContext == null ? null :
+			servletContext.getInitParameter(PARAM_JAVA2DPNG);
+		pngRasteriser = new PngRasteriser(renderThreads,
+			java2dParam == null || !java2dParam.trim().equals("false"));
+
+		// Set up the output cache.
+		long outputCacheMegabytes = DEFAULT_OUTPUT_CACHE_MEGABYTES;
+		String cacheParam = servletContext == null ? null :
+			servletContext.getInitParameter(PARAM_OUTPUTCACHEMEGABYTES);
+		if(cacheParam != null)
+		{
+			try
+			{
+				outputCacheMegabytes = Long.parseLong(cacheParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_OUTPUTCACHEMEGABYTES + " (must be integer)");
+			}
+		}
+		outputCache = new TinyLfuCache<OutputKey, Object>(
+			outputCacheMegabytes * 1024L * 1024L, OUTPUT_WEIGHER);
+
+		int batchTimeoutSeconds = DEFAULT_BATCH_TIMEOUT_SECONDS;
+		String timeoutParam = servletContext == null ? null :
+			servletContext.getInitParameter(PARAM_BATCHTIMEOUTSECONDS);
+		if(timeoutParam != null)
+		{
+			try
+			{
+				batchTimeoutSeconds = Integer.parseInt(timeoutParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_BATCHTIMEOUTSECONDS + " (must be integer)");
+			}
+		}
+		batchTimeout = batchTimeoutSeconds * 1000L;
 
 		// Precompile the xpath expressions.
 		xpath = XPathFactory.newInstance().newXPath();
@@ -124,8 +286,6 @@ public class MathJax
 		try
 		{
 			xpathAnnotation = InputTexEquation.getXPathExpression(xpath);
-			xpathSvgTitle = xpath.compile("/s:svg/s:title");
-			xpathNormalizeSpace = xpath.compile("normalize-space(.)");
 		}
 		catch(XPathExpressionException e)
 		{
@@ -152,8 +312,11 @@ public class MathJax
 		try
 		{
 			threadPool.shutdown();
+			renderPool.shutdown();
 			threadPool.awaitTermination(10, TimeUnit.SECONDS);
+			renderPool.awaitTermination(10, TimeUnit.SECONDS);
 			threadPool = null;
+			renderPool = null;
 		}
 		catch(InterruptedException e)
 		{
@@ -171,7 +334,54 @@ public class MathJax
 	 */
 	public String getMathml(InputTexEquation eq) throws MathJaxException, IOException
 	{
-		return mjNode.convertEquation(eq).getMathml();
+		return getMathml(eq, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Converts TeX to MathML.
+	 * @param eq TeX equation
+	 * @param priority Priority when waiting for MathJax
+	 * @return MathML string
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public String getMathml(InputTexEquation eq, Priority priority)
+		throws MathJaxException, IOException
+	{
+		// Only MathML is needed, so MathJax doesn't need to lay out the SVG.
+		return mjNode.convertEquation(eq, priority,
+			EnumSet.of(ConversionOutput.MATHML)).getMathml();
+	}
+
+	/**
+	 * Runs MathJax on an equation (if its results aren't already cached), so
+	 * that other methods can then get output for it without waiting for MathJax.
+	 * @param eq Equation
+	 * @param priority Priority when waiting for MathJax
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public void prepare(InputEquation eq, Priority priority)
+		throws MathJaxException, IOException
+	{
+		prepare(eq, priority, ConversionOutput.ALL);
+	}
+
+	/**
+	 * Runs MathJax on an equation to produce some outputs (if they aren't
+	 * already cached). Anything that uses SVG needs {@link ConversionOutput#SVG}.
+	 * @param eq Equation
+	 * @param priority Priority when waiting for MathJax
+	 * @param outputs Outputs that will be needed
+	 * @return Conversion results (these can be passed to
+	 *   {@link #getSvgOutputs(InputEquation, ConversionResults, double, String)})
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public ConversionResults prepare(InputEquation eq, Priority priority,
+		Set<ConversionOutput> outputs) throws MathJaxException, IOException
+	{
+		return mjNode.convertEquation(eq, priority, outputs);
 	}
 
 	/**
@@ -205,36 +415,37 @@ public class MathJax
 			}
 		}
 
-		// Convert the equation and get text from SVG.
-		ConversionResults results = mjNode.convertEquation(eq);
-		return getEnglishFromSvg(results.getSvg());
+		// Convert the equation and use the speech text from it.
+		return getSpeech(eq, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Gets the speech text (English) produced by MathJax for an equation. This
+	 * is kept with the converted equation, so it doesn't need to be read from
+	 * the SVG.
+	 * @param eq Equation
+	 * @param priority Priority when waiting for MathJax
+	 * @return English text
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public String getSpeech(InputEquation eq, Priority priority)
+		throws MathJaxException, IOException
+	{
+		// Only speech is needed, so MathJax doesn't need to lay out the SVG.
+		return mjNode.convertEquation(eq, priority,
+			EnumSet.of(ConversionOutput.SPEECH)).getSpeech();
 	}
 
 	/**
 	 * Gets English text from an already-obtained SVG.
 	 * @param svg SVG code
 	 * @return English text
-	 * @throws IOException If any error parsing SVG
 	 * @throws IllegalArgumentException If there isn't a description in the SVG
 	 */
-	public String getEnglishFromSvg(String svg)
-		throws IOException, IllegalArgumentException
+	public String getEnglishFromSvg(String svg) throws IllegalArgumentException
 	{
-		Document svgDoc = WebMathsService.parseXml(context, svg);
-		try
-		{
-			Node result = (Node)xpathSvgTitle.evaluate(svgDoc, XPathConstants.NODE);
-			if(result == null)
-			{
-				throw new IllegalArgumentException("SVG does not include <title>");
-			}
-
-			return (String)xpathNormalizeSpace.evaluate(result, XPathConstants.STRING);
-		}
-		catch(XPathExpressionException e)
-		{
-			throw new Error(e);
-		}
+		return SvgRewriter.getTitle(svg);
 	}
 
 	/** Parameter for {@link #getSvg(InputEquation, float)} when using ex sizes */
@@ -244,16 +455,20 @@ public class MathJax
 		"^<svg[^>]* style=\"vertical-align: ((-?[0-9]+(?:\\.[0-9]+)?)ex)");
 	private final static Pattern REGEX_BASELINE_PIXELS = Pattern.compile(
 		"^<svg[^>]* style=\"vertical-align: ((-?[0-9]+(?:\\.[0-9]+)?)px)");
-	private final static Pattern REGEX_WIDTH = Pattern.compile(
-		"^<svg[^>]* width=\"(([0-9]+(?:\\.[0-9]+)?)(ex)?)\"");
-	private final static Pattern REGEX_HEIGHT = Pattern.compile(
-		"^<svg[^>]* height=\"(([0-9]+(?:\\.[0-9]+)?)ex)\"");
 	private final static Pattern REGEX_VIEWBOX = Pattern.compile(
 		"^<svg[^>]* viewBox=\"(-?[0-9.]+) (-?[0-9.]+) (-?[0-9.]+) (-?[0-9.]+)\"");
 	private final static Pattern REGEX_HEIGHT_PX = Pattern.compile(
 		"^<svg[^>]* height=\"(([0-9]+(?:\\.[0-9]+)?)px)\"");
-	private final static Pattern REGEX_COLOUR = Pattern.compile(
-		"(<[^>]+ )(stroke=\"currentColor\" fill=\"currentColor\"|fill=\"currentColor\" stroke=\"currentColor\")");
+
+	// Patterns for values of attributes on the root element.
+	private final static Pattern REGEX_VIEWBOX_VALUE = Pattern.compile(
+		"(-?[0-9.]+) (-?[0-9.]+) (-?[0-9.]+) (-?[0-9.]+)");
+	private final static Pattern REGEX_BASELINE_EX_VALUE = Pattern.compile(
+		"vertical-align: ((-?[0-9]+(?:\\.[0-9]+)?)ex)");
+	private final static Pattern REGEX_WIDTH_VALUE = Pattern.compile(
+		"([0-9]+(?:\\.[0-9]+)?)(ex)?");
+	private final static Pattern REGEX_HEIGHT_VALUE = Pattern.compile(
+		"([0-9]+(?:\\.[0-9]+)?)ex");
 
 	/**
 	 * Rounds numbers suitable for use in SVG. They are rounded to 4 digits but
@@ -289,208 +504,188 @@ public class MathJax
 	public String getSvg(InputEquation eq, boolean correctBaseline, double exSize, String rgb)
 		throws MathJaxException, IOException
 	{
-		boolean convertToPixels = exSize != SIZE_IN_EX;
-		String svg = mjNode.convertEquation(eq).getSvg();
-
-		double correctedHeight = 0.0, correctedWidth = 0.0, correctedBaseline = 0.0;
-
-		try
-		{
-			// Parse SVG.
-			Document svgDom = WebMathsService.parseXml(context, svg);
+		return getSvg(eq, correctBaseline, exSize, rgb, Priority.INTERACTIVE);
+	}
 
-			// Get the view box.
-			Element root = svgDom.getDocumentElement();
-			String viewBox = root.getAttribute("viewBox");
-			Matcher m = Pattern.compile("(-?[0-9.]+) (-?[0-9.]+) (-?[0-9.]+) (-?[0-9.]+)").matcher(viewBox);
-			if(!m.matches())
-			{
-				throw new IOException("Unexpected SVG format (viewBox)");
-			}
+	/**
+	 * Gets SVG for an equation. See {@link #getSvg(InputEquation, boolean, double, String)}.
+	 * @param eq Equation
+	 * @param correctBaseline If true, adjusts the reported baseline which is wrong
+	 * @param exSize SIZE_IN_EX or ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @param priority Priority when waiting for MathJax
+	 * @return SVG as text
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public String getSvg(InputEquation eq, boolean correctBaseline, double exSize,
+		String rgb, Priority priority) throws MathJaxException, IOException
+	{
+		return getSvgOutputs(eq, exSize, rgb, priority).getSvg(correctBaseline, exSize);
+	}
 
-			// Get viewbox Y and height.
-			double viewY = Double.parseDouble(m.group(2));
-			double viewHeight = Double.parseDouble(m.group(4));
-			double viewX = Double.parseDouble(m.group(1));
-			double viewWidth = Double.parseDouble(m.group(3));
+	/**
+	 * Gets an object that provides all the SVG-based outputs for an equation at
+	 * one size and colour. The MathJax output is parsed at most once, however
+	 * many outputs are requested, and each output is only built if it's used
+	 * (and isn't already in the output cache).
+	 * @param eq Equation
+	 * @param exSize Ex size in pixels (or SIZE_IN_EX if only ex outputs are needed)
+	 * @param rgb Colour code or null to leave as-is
+	 * @param priority Priority when waiting for MathJax
+	 * @return Outputs object (not thread-safe)
+	 */
+	public SvgOutputs getSvgOutputs(InputEquation eq, double exSize, String rgb,
+		Priority priority)
+	{
+		return new SvgOutputs(eq, null, exSize, rgb, priority);
+	}
 
-			// In some cases, this has a bogus width of 1 million units.
-			if(viewWidth >= 999999.9)
-			{
-				throw new MathJaxException("Unbounded equation (use of \\\\ outside suitable environment?)");
-			}
+	/**
+	 * Gets an object that provides all the SVG-based outputs for an equation
+	 * that has already been converted, without using MathJax again.
+	 * @param eq Equation
+	 * @param results Results from {@link #prepare(InputEquation, Priority, Set)},
+	 *   including SVG
+	 * @param exSize Ex size in pixels (or SIZE_IN_EX if only ex outputs are needed)
+	 * @param rgb Colour code or null to leave as-is
+	 * @return Outputs object (not thread-safe)
+	 */
+	public SvgOutputs getSvgOutputs(InputEquation eq, ConversionResults results,
+		double exSize, String rgb)
+	{
+		return new SvgOutputs(eq, results, exSize, rgb, null);
+	}
 
-			if(correctBaseline)
-			{
-				// Now get the height in ex - this used to read it from the file but
-				// we now hardcoded it based on drawing units, because MathJax.Node
-				// returns inconsistent results e.g. for the equations "xqx" and "xxx".
-				double heightEx = viewHeight / CORRECT_DRAWING_UNITS_PER_EX;
-				double widthEx = viewWidth / CORRECT_DRAWING_UNITS_PER_EX;
-
-				// We now can calculate baseline in ex.
-				double baselineEx = ((viewY + viewHeight) / viewHeight) * heightEx;
-
-				// If we know pixels, I'm going to make this an exact number of pixels
-				// by slightly increasing the height of the equation.
-				if (convertToPixels)
-				{
-					// First make the size from top to baseline into an even number of pixels.
-					double ascentPixels = (-viewY / viewHeight) * heightEx * exSize;
-					double heightOffsetPixels = Math.ceil(ascentPixels) - ascentPixels;
-					double heightOffsetEx = heightOffsetPixels / exSize;
-					double oldHeightEx = heightEx;
-					heightEx += heightOffsetEx;
-					double oldViewHeight = viewHeight;
-					viewHeight = (viewHeight / oldHeightEx) * heightEx;
-					viewY -= (viewHeight - oldViewHeight);
-
-					// Next make baseline to bottom into an even number.
-					baselineEx = (((viewY + viewHeight) / viewHeight) * heightEx);
-					double baselinePixels = baselineEx * exSize;
-					heightOffsetPixels = Math.ceil(baselinePixels) - baselinePixels;
-					heightOffsetEx = heightOffsetPixels / exSize;
-
-					oldHeightEx = heightEx;
-					heightEx += heightOffsetEx;
-					root.setAttribute("height", round(heightEx) + "ex");
-					viewHeight = (viewHeight / oldHeightEx) * heightEx;
-					root.setAttribute("viewBox", viewX + " " + round(viewY) + " " +
-						viewWidth + " " + round(viewHeight));
-					baselineEx = ((viewY + viewHeight) / viewHeight) * heightEx;
-				}
+	/**
+	 * Lays out SVG from MathJax at a given size.
+	 * @param source Parsed SVG from MathJax (not changed)
+	 * @param correctBaseline If true, adjusts the reported baseline which is wrong
+	 * @param exSize SIZE_IN_EX or ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @return SVG as text
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	private static String layoutSvg(SvgRewriter source, boolean correctBaseline,
+		double exSize, String rgb) throws MathJaxException, IOException
+	{
+		boolean convertToPixels = exSize != SIZE_IN_EX;
 
-				// Replace current value in the style attribute.
-				String style = root.getAttribute("style");
-				style = style.replaceFirst("vertical-align: -?[0-9.]+",
-					"vertical-align: " + round(-baselineEx));
+		// Only the root element's attributes change, so they are edited directly
+		// and the rest of the SVG is copied.
+		SvgRewriter root = new SvgRewriter(source);
 
-				// Reset margin to 0.
-				style = style.concat("margin: 0px");
-				root.setAttribute("style", style);
+		// Get the view box.
+		Matcher m = REGEX_VIEWBOX_VALUE.matcher(root.getAttribute("viewBox"));
+		if(!m.matches())
+		{
+			throw new IOException("Unexpected SVG format (viewBox)");
+		}
 
-				// Remember the precise figures for next calculation.
-				correctedHeight = heightEx;
-				correctedWidth = widthEx;
-				correctedBaseline = -baselineEx;
-			}
+		// Get viewbox Y and height.
+		double viewY = Double.parseDouble(m.group(2));
+		double viewHeight = Double.parseDouble(m.group(4));
+		double viewX = Double.parseDouble(m.group(1));
+		double viewWidth = Double.parseDouble(m.group(3));
 
-			// Write back to the serialized version.
-			DOMImplementationLS domImplementation = (DOMImplementationLS)svgDom.getImplementation();
-			LSSerializer lsSerializer = domImplementation.createLSSerializer();
-			lsSerializer.getDomConfig().setParameter("xml-declaration", false);
-			svg = lsSerializer.writeToString(svgDom);
+		// In some cases, this has a bogus width of 1 million units.
+		if(viewWidth >= 999999.9)
+		{
+			throw new MathJaxException("Unbounded equation (use of \\\\ outside suitable environment?)");
 		}
-		catch(Exception e)
+
+		double correctedHeight = 0.0, correctedWidth = 0.0, correctedBaseline = 0.0;
+		if(correctBaseline)
 		{
-			if(e instanceof MathJaxException)
+			// Now get the height in ex - this used to read it from the file but
+			// we now hardcoded it based on drawing units, because MathJax.Node
+			// returns inconsistent results e.g. for the equations "xqx" and "xxx".
+			double heightEx = viewHeight / CORRECT_DRAWING_UNITS_PER_EX;
+			double widthEx = viewWidth / CORRECT_DRAWING_UNITS_PER_EX;
+
+			// We now can calculate baseline in ex.
+			double baselineEx = ((viewY + viewHeight) / viewHeight) * heightEx;
+
+			// If we know pixels, I'm going to make this an exact number of pixels
+			// by slightly increasing the height of the equation.
+			if (convertToPixels)
 			{
-				throw (MathJaxException)e;
+				// First make the size from top to baseline into an even number of pixels.
+				double ascentPixels = (-viewY / viewHeight) * heightEx * exSize;
+				double heightOffsetPixels = Math.ceil(ascentPixels) - ascentPixels;
+				double heightOffsetEx = heightOffsetPixels / exSize;
+				double oldHeightEx = heightEx;
+				heightEx += heightOffsetEx;
+				double oldViewHeight = viewHeight;
+				viewHeight = (viewHeight / oldHeightEx) * heightEx;
+				viewY -= (viewHeight - oldViewHeight);
+
+				// Next make baseline to bottom into an even number.
+				baselineEx = (((viewY + viewHeight) / viewHeight) * heightEx);
+				double baselinePixels = baselineEx * exSize;
+				heightOffsetPixels = Math.ceil(baselinePixels) - baselinePixels;
+				heightOffsetEx = heightOffsetPixels / exSize;
+
+				oldHeightEx = heightEx;
+				heightEx += heightOffsetEx;
+				root.setAttribute("height", round(heightEx) + "ex");
+				viewHeight = (viewHeight / oldHeightEx) * heightEx;
+				root.setAttribute("viewBox", viewX + " " + round(viewY) + " " +
+					viewWidth + " " + round(viewHeight));
+				baselineEx = ((viewY + viewHeight) / viewHeight) * heightEx;
 			}
-			throw new IOException(e);
+
+			// Replace current value in the style attribute.
+			String style = root.getAttribute("style");
+			style = style.replaceFirst("vertical-align: -?[0-9.]+",
+				"vertical-align: " + round(-baselineEx));
+
+			// Reset margin to 0.
+			style = style.concat("margin: 0px");
+			root.setAttribute("style", style);
+
+			// Remember the precise figures for next calculation.
+			correctedHeight = heightEx;
+			correctedWidth = widthEx;
+			correctedBaseline = -baselineEx;
 		}
 
 		if(convertToPixels)
 		{
-			Matcher m = REGEX_BASELINE_EX.matcher(svg);
+			String style = root.getAttribute("style");
+			m = REGEX_BASELINE_EX_VALUE.matcher(style);
 			if(!m.find())
 			{
 				throw new IOException("MathJax SVG does not match expected baseline pattern");
 			}
 			double baseline = correctBaseline ? correctedBaseline : Double.parseDouble(m.group(2));
 			baseline *= exSize;
-			svg = svg.substring(0, m.start(1)) + round(baseline) + "px" +
-				svg.substring(m.end(1));
+			root.setAttribute("style", style.substring(0, m.start(1)) + round(baseline) + "px" +
+				style.substring(m.end(1)));
 
-			m = REGEX_WIDTH.matcher(svg);
-			if(!m.find())
+			m = REGEX_WIDTH_VALUE.matcher(root.getAttribute("width"));
+			if(!m.matches())
 			{
 				throw new IOException("MathJax SVG does not match expected width pattern");
 			}
-			double width = correctBaseline ? correctedWidth : Double.parseDouble(m.group(2));
-			svg = svg.substring(0, m.start(1)) + round(width * exSize) + "px" +
-				svg.substring(m.end(1));
+			double width = correctBaseline ? correctedWidth : Double.parseDouble(m.group(1));
+			root.setAttribute("width", round(width * exSize) + "px");
 
-			m = REGEX_HEIGHT.matcher(svg);
-			if(!m.find())
+			m = REGEX_HEIGHT_VALUE.matcher(root.getAttribute("height"));
+			if(!m.matches())
 			{
 				throw new IOException("MathJax SVG does not match expected height pattern");
 			}
-			double height = correctBaseline ? correctedHeight : Double.parseDouble(m.group(2));
-			svg = svg.substring(0, m.start(1)) + round(height * exSize) + "px" +
-				svg.substring(m.end(1));
-		}
-
-		if(rgb != null)
-		{
-			svg = recolourSvg(svg, rgb);
+			double height = correctBaseline ? correctedHeight : Double.parseDouble(m.group(1));
+			root.setAttribute("height", round(height * exSize) + "px");
 		}
 
-		return svg;
-	}
-
-	/**
-	 * Obtains a PNG transcoder that uses high quality settings.
-	 * @return Transcoder with settings improved
-	 */
-	private PNGTranscoder createTranscoder()
-	{
-    return new PNGTranscoder()
-    {
-      @Override
-      protected ImageRenderer createRenderer()
-      {
-        ImageRenderer r = super.createRenderer();
-
-        RenderingHints rh = r.getRenderingHints();
-
-        rh.add(new RenderingHints(RenderingHints.KEY_ALPHA_INTERPOLATION,
-            RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY));
-        rh.add(new RenderingHints(RenderingHints.KEY_INTERPOLATION,
-            RenderingHints.VALUE_INTERPOLATION_BICUBIC));
-
-        rh.add(new RenderingHints(RenderingHints.KEY_ANTIALIASING,
-            RenderingHints.VALUE_ANTIALIAS_ON));
-
-        rh.add(new RenderingHints(RenderingHints.KEY_COLOR_RENDERING,
-            RenderingHints.VALUE_COLOR_RENDER_QUALITY));
-        rh.add(new RenderingHints(RenderingHints.KEY_DITHERING,
-            RenderingHints.VALUE_DITHER_DISABLE));
-
-        rh.add(new RenderingHints(RenderingHints.KEY_RENDERING,
-            RenderingHints.VALUE_RENDER_QUALITY));
-
-        rh.add(new RenderingHints(RenderingHints.KEY_STROKE_CONTROL,
-            RenderingHints.VALUE_STROKE_PURE));
-
-        r.setRenderingHints(rh);
-
-        return r;
-      }
-    };
-  }
-
-	/**
-	 * Recolours an SVG file by changing black to the given colour.
-	 * @param svg SVG file
-	 * @param rgb Colour code
-	 * @return Recoloured SVG
-	 */
-	private String recolourSvg(String svg, String rgb)
-	{
-		if(!rgb.matches("#[0-9a-f]{6}"))
+		if(rgb != null && !rgb.matches("#[0-9a-f]{6}"))
 		{
 			throw new IllegalArgumentException("Invalid RGB colour (must match #000000): " + rgb);
 		}
-		Matcher m = REGEX_COLOUR.matcher(svg);
-		StringBuffer out = new StringBuffer();
-		while(m.find())
-		{
-			String replace = m.group(1) + "stroke=\"" + rgb + "\" fill=\"" + rgb + "\"";
-			m.appendReplacement(out, replace);
-		}
-		m.appendTail(out);
-		return out.toString();
+		return root.write(rgb);
 	}
 
 	/**
@@ -610,6 +805,38 @@ public class MathJax
 		return svg;
 	}
 
+	/**
+	 * Gets PNG for an equation. This is the same as calling
+	 * {@link #getPngFromSvg(String)} on the pixel SVG, but the result is cached.
+	 * @param eq Equation
+	 * @param exSize Ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @return PNG data
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public byte[] getPng(InputEquation eq, double exSize, String rgb)
+		throws MathJaxException, IOException
+	{
+		return getPng(eq, exSize, rgb, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Gets PNG for an equation.
+	 * @param eq Equation
+	 * @param exSize Ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @param priority Priority when waiting for MathJax
+	 * @return PNG data
+	 * @throws MathJaxException Error processing equation
+	 * @throws IOException Other error
+	 */
+	public byte[] getPng(InputEquation eq, double exSize, String rgb, Priority priority)
+		throws MathJaxException, IOException
+	{
+		return getSvgOutputs(eq, exSize, rgb, priority).getPng();
+	}
+
 	/**
 	 * Gets PNG from an SVG image. The SVG must have been converted to pixels.
 	 * @param svg SVG (pixel format)
@@ -622,19 +849,7 @@ public class MathJax
 		svg = offsetSvg(svg, PNG_OFFSET);
 		svg = makeThin(svg);
 
-		ByteArrayOutputStream output = new ByteArrayOutputStream();
-		PNGTranscoder transcoder = createTranscoder();
-		try
-		{
-			transcoder.transcode(new TranscoderInput(new StringReader(svg)),
-				new TranscoderOutput(output));
-			return output.toByteArray();
-		}
-		catch(TranscoderException e)
-		{
-			e.printStackTrace();
-			throw new IOException("Transcoder failed", e);
-		}
+		return pngRasteriser.rasterise(svg);
 	}
 
 	/**
@@ -658,7 +873,33 @@ public class MathJax
 	public byte[] getEps(InputEquation eq, double ex, String rgb)
 		throws MathJaxException, IOException
 	{
-		String svg = getSvg(eq, true, ex, rgb);
+		return getEps(eq, ex, rgb, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Gets EPS from an input equation.
+	 * @param eq Equation
+	 * @param ex Ex size in pixels
+	 * @param rgb Colour code or null to leave as-is
+	 * @param priority Priority when waiting for MathJax
+	 * @return EPS data
+	 * @throws MathJaxException If there's a MathJax error processing the equation
+	 * @throws IOException Any other problem
+	 */
+	public byte[] getEps(InputEquation eq, double ex, String rgb, Priority priority)
+		throws MathJaxException, IOException
+	{
+		return getSvgOutputs(eq, ex, rgb, priority).getEps();
+	}
+
+	/**
+	 * Gets EPS from an SVG image. The SVG must have been converted to pixels.
+	 * @param svg SVG (pixel format)
+	 * @return EPS data
+	 * @throws IOException Any error processing
+	 */
+	private byte[] getEpsFromSvg(String svg) throws IOException
+	{
 		svg = makeThin(svg);
 
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
@@ -680,6 +921,167 @@ public class MathJax
 		return output.toByteArray();
 	}
 
+	/**
+	 * SVG-based outputs for one equation at one size and colour, from
+	 * {@link MathJax#getSvgOutputs(InputEquation, double, String, Priority)}.
+	 * Each output is built when first requested, from the cache if possible;
+	 * otherwise the MathJax SVG is parsed once and shared by all of them.
+	 */
+	public final class SvgOutputs
+	{
+		private final InputEquation eq;
+		private final double exSize;
+		private final String rgb;
+		private final Priority priority;
+
+		/** MathJax results (null until needed, unless supplied). */
+		private ConversionResults results;
+
+		/** Parsed MathJax SVG (null until needed). */
+		private SvgRewriter source;
+
+		private String exSvg, pxSvg;
+
+		private SvgOutputs(InputEquation eq, ConversionResults results,
+			double exSize, String rgb, Priority priority)
+		{
+			this.eq = eq;
+			this.results = results;
+			this.exSize = exSize;
+			this.rgb = rgb;
+			this.priority = priority;
+		}
+
+		/**
+		 * @return SVG with baseline corrected, in ex
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public String getExSvg() throws MathJaxException, IOException
+		{
+			if(exSvg == null)
+			{
+				exSvg = getSvg(true, SIZE_IN_EX);
+			}
+			return exSvg;
+		}
+
+		/**
+		 * @return SVG with baseline corrected, in pixels
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public String getPxSvg() throws MathJaxException, IOException
+		{
+			if(pxSvg == null)
+			{
+				pxSvg = getSvg(true, exSize);
+			}
+			return pxSvg;
+		}
+
+		/**
+		 * @return Baseline of the ex SVG, in ex
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public double getExBaseline() throws MathJaxException, IOException
+		{
+			return getExBaselineFromSvg(getExSvg());
+		}
+
+		/**
+		 * @return Baseline of the pixel SVG, in pixels
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public double getPxBaseline() throws MathJaxException, IOException
+		{
+			return getPxBaselineFromSvg(getPxSvg());
+		}
+
+		/**
+		 * @return Baseline of the PNG image, in pixels
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public double getPngBaseline() throws MathJaxException, IOException
+		{
+			// Moving the image up doesn't change its baseline; moving it down
+			// increases the height below the baseline by whole pixels.
+			double baseline = getPxBaseline();
+			if(PNG_OFFSET < 0)
+			{
+				baseline -= Math.ceil(-PNG_OFFSET);
+			}
+			return baseline;
+		}
+
+		/**
+		 * @return PNG image
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public byte[] getPng() throws MathJaxException, IOException
+		{
+			OutputKey key = new OutputKey(eq, OUTPUT_PNG, exSize, rgb);
+			byte[] png = (byte[])outputCache.get(key);
+			if(png == null)
+			{
+				png = getPngFromSvg(getPxSvg());
+				outputCache.put(key, png);
+			}
+			return png;
+		}
+
+		/**
+		 * @return EPS image
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		public byte[] getEps() throws MathJaxException, IOException
+		{
+			OutputKey key = new OutputKey(eq, OUTPUT_EPS, exSize, rgb);
+			byte[] eps = (byte[])outputCache.get(key);
+			if(eps == null)
+			{
+				eps = getEpsFromSvg(getPxSvg());
+				outputCache.put(key, eps);
+			}
+			return eps;
+		}
+
+		/**
+		 * Gets SVG at a given size, using the cache if possible.
+		 * @param correctBaseline If true, adjusts the reported baseline which is wrong
+		 * @param size SIZE_IN_EX or ex size in pixels
+		 * @return SVG as text
+		 * @throws MathJaxException Error processing equation
+		 * @throws IOException Other error
+		 */
+		private String getSvg(boolean correctBaseline, double size)
+			throws MathJaxException, IOException
+		{
+			OutputKey key = new OutputKey(eq,
+				correctBaseline ? OUTPUT_SVG : OUTPUT_SVG_UNCORRECTED, size, rgb);
+			String svg = (String)outputCache.get(key);
+			if(svg == null)
+			{
+				if(source == null)
+				{
+					if(results == null)
+					{
+						results = mjNode.convertEquation(eq, priority);
+					}
+					source = new SvgRewriter(results.getSvg());
+				}
+				svg = layoutSvg(source, correctBaseline, size, rgb);
+				outputCache.put(key, svg);
+			}
+			return svg;
+		}
+	}
+
 	/**
 	 * Gets status from the MathJax.Node processor.
 	 * @return Status object
@@ -690,11 +1092,94 @@ public class MathJax
 	}
 
 	/**
-	 * Executes on the thread pool used for MathJax.Node running.
-	 * @param runnable Command to execute
+	 * @return Statistics for the cache of finished SVG, PNG and EPS output
+	 */
+	public ResultCache.Stats getOutputCacheStats()
+	{
+		return outputCache.getStats();
+	}
+
+	/**
+	 * Removes everything from the output cache.
+	 */
+	void clearOutputCache()
+	{
+		outputCache.clear();
+	}
+
+	/**
+	 * Starts the minimum number of MathJax.Node instances, waiting until they
+	 * are ready.
+	 */
+	public void warmUp()
+	{
+		mjNode.warmUp();
+	}
+
+	/**
+	 * Task on the thread pool. Tasks run in priority order, then in the order
+	 * they were submitted.
+	 */
+	private final static class PrioritizedTask<T> extends FutureTask<T>
+		implements Comparable<PrioritizedTask<?>>
+	{
+		private final static AtomicLong nextSequence = new AtomicLong();
+
+		private final Priority priority;
+		private final long sequence;
+
+		private PrioritizedTask(Callable<T> callable, Priority priority)
+		{
+			super(callable);
+			this.priority = priority;
+			this.sequence = nextSequence.getAndIncrement();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask<?> other)
+		{
+			int result = priority.compareTo(other.priority);
+			if(result != 0)
+			{
+				return result;
+			}
+			return sequence < other.sequence ? -1 : sequence > other.sequence ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Submits a task to the thread pool used for MathJax.Node running. Tasks
+	 * should mainly wait for MathJax (e.g. {@link #prepare(InputEquation, Priority)}).
+	 * @param task Task to run
+	 * @param priority Priority of task
+	 * @return Future for the result of the task
+	 */
+	public <T> Future<T> submitOnThreadPool(Callable<T> task, Priority priority)
+	{
+		PrioritizedTask<T> future = new PrioritizedTask<T>(task, priority);
+		threadPool.execute(future);
+		return future;
+	}
+
+	/**
+	 * Submits a task to the thread pool used for CPU-bound work such as
+	 * processing SVG and rendering PNG or EPS.
+	 * @param task Task to run
+	 * @param priority Priority of task
+	 * @return Future for the result of the task
+	 */
+	public <T> Future<T> submitOnRenderPool(Callable<T> task, Priority priority)
+	{
+		PrioritizedTask<T> future = new PrioritizedTask<T>(task, priority);
+		renderPool.execute(future);
+		return future;
+	}
+
+	/**
+	 * @return Maximum time in milliseconds to spend on a batch of equations
 	 */
-	public void executeOnThreadPool(Runnable runnable)
+	public long getBatchTimeout()
 	{
-		threadPool.execute(runnable);
+		return batchTimeout;
 	}
 }
@@ -2,11 +2,16 @@ package uk.ac.open.lts.webmaths.mathjax;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.logging.*;
 import java.util.regex.*;
 
 import javax.servlet.ServletContext;
 
+import uk.ac.open.lts.webmaths.ResultCache;
+import uk.ac.open.lts.webmaths.TinyLfuCache;
+
 public class MathJaxNodeExecutable
 {
 	private final static Logger LOGGER = Logger.getLogger(MathJaxNodeExecutable.class.getName());
@@ -17,18 +22,55 @@ public class MathJaxNodeExecutable
 	/** Servlet parameter used to indicate maximum number of Node instances. */
 	private static final String PARAM_MATHJAXNODEINSTANCES = "mathjaxnode-instances";
 
+	/** Servlet parameter used to set minimum idle instances per font (e.g. "TeX=2"). */
+	private static final String PARAM_MATHJAXNODEMINIDLE = "mathjaxnode-min-idle";
+
+	/** Servlet parameter used to set number of requests sent to an instance at once. */
+	private static final String PARAM_MATHJAXNODEPIPELINEDEPTH = "mathjaxnode-pipeline-depth";
+
+	/** Servlet parameter used to set maximum number of requests waiting for an instance. */
+	private static final String PARAM_MATHJAXNODEMAXQUEUE = "mathjaxnode-max-queue";
+
+	/** Servlet parameter used to set maximum time (seconds) a request waits for an instance. */
+	private static final String PARAM_MATHJAXNODEMAXQUEUEWAIT = "mathjaxnode-max-queue-wait-seconds";
+
+	/** Servlet parameter used to set size of result cache (in megabytes). */
+	private static final String PARAM_MATHJAXNODECACHEMEGABYTES = "mathjaxnode-cache-megabytes";
+
+	/** Servlet parameter used to set folder for disk cache (blank to disable). */
+	private static final String PARAM_MATHJAXNODEDISKCACHEFOLDER = "mathjaxnode-disk-cache-folder";
+
+	/** Servlet parameter used to set size of disk cache (in megabytes). */
+	private static final String PARAM_MATHJAXNODEDISKCACHEMEGABYTES = "mathjaxnode-disk-cache-megabytes";
+
 	/** If true, logs content sent/retrieved to executable to stderr */
 	private final static boolean LOG_COMMUNICATION = false;
 
 	/** Time allowed for MathJax to process an equation or return a line of text. */
 	final static int PROCESSING_TIMEOUT = 30000;
 
+	/** Default size of result cache, if not set in servlet parameters. */
+	private final static int DEFAULT_CACHE_MEGABYTES = 64;
+
+	/** Equation used to check that a new instance works before it is used. */
+	private final static String PROBE_FORMAT = "TeX", PROBE_CONTENT = "x";
+
+	/** Default number of requests sent to an instance at once. */
+	private final static int DEFAULT_PIPELINE_DEPTH = 4;
+
+	/** Default maximum number of requests waiting for an instance. */
+	private final static int DEFAULT_MAX_QUEUE = 100;
+
+	/** Default maximum time a request waits for an instance, in seconds. */
+	private final static int DEFAULT_MAX_QUEUE_WAIT_SECONDS = 20;
+
+	/** Default size of disk cache, if not set in servlet parameters. */
+	private final static int DEFAULT_DISK_CACHE_MEGABYTES = 1024;
+
 	/**
-	 * Number of recent results to cache - quite low as we mainly only expect this
-	 * to be used to improve performance within a request or in rapidly sequential
-	 * requests.
+	 * Estimated memory used by a cache entry in addition to the strings.
 	 */
-	private final static int CACHE_SIZE = 100;
+	private final static int CACHE_ENTRY_OVERHEAD = 128;
 
 	/**
 	 * Number of recent results to keep performance stats on.
@@ -47,36 +89,57 @@ public class MathJaxNodeExecutable
 	private final static Pattern REGEX_PACKAGEVERSION = Pattern.compile(
 		"^\\s*\"version\"\\s*:\\s*\"([^\"]+)\"\\s*,\\s*$");
 
+	/** Regex used for each font=count in minimum idle parameter */
+	private final static Pattern REGEX_MINIDLE = Pattern.compile(
+		"^([^=\\s]+)\\s*=\\s*([0-9]+)$");
+
 	/** Maximum number of instances of MathJax.node to run at once. */
 	private int maxInstances = 4;
 
+	/** Maximum number of requests sent to a single instance at once. */
+	private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+
 	/** Path to executable script */
 	private String executablePath;
 
 	/** Folder path to MathJax.node */
 	private String mathJaxFolder;
 
-	/** Current instances. */
-	private ArrayList<MathJaxNodeInstance> instances;
-	
-	/** Available instances (subset of Instances) */
-	private NavigableSet<MathJaxNodeInstance> availableInstances = new TreeSet<MathJaxNodeInstance>();
+	/** Minimum number of idle instances to keep for each font. */
+	private Map<String, Integer> minIdle = Collections.emptyMap();
+
+	/** False until the minimum idle instances have been started. */
+	private volatile boolean ready = true;
+
+	/** Pool of instances for each font. */
+	private final ConcurrentHashMap<String, InstancePool> pools =
+		new ConcurrentHashMap<String, InstancePool>();
+
+	/** Total number of instances (including ones being created). */
+	private final AtomicInteger instanceCount = new AtomicInteger();
 
 	/** Time at which an instance was last created (so we don't create too fast) */
-	private long lastCreatedInstance;
+	private final AtomicLong lastCreatedInstance = new AtomicLong();
+
+	/**
+	 * Requests waiting because the maximum number of instances are already
+	 * running; one is woken whenever an instance becomes idle or is closed.
+	 */
+	private final ConcurrentLinkedQueue<InstancePool.Waiter> capacityWaiters =
+		new ConcurrentLinkedQueue<InstancePool.Waiter>();
 
-	/** Cache of recent conversion results. */
-	private Map<InputEquation, ConversionResults> cache =
-		new HashMap<InputEquation, ConversionResults>(CACHE_SIZE);
+	/** Limits requests waiting for an instance. */
+	private AdmissionQueue admission;
 
-	/** Ordered list of items in cache so we can remove older ones. */
-	private LinkedList<InputEquation> cacheKeys = new LinkedList<InputEquation>();
+	/** Cache of conversion results. */
+	private ResultCache<InputEquation, ConversionResults> cache;
 
-	/** Number of cache hits. */
-	private int countCacheHits;
+	/** Disk store of conversion results (null if not enabled). */
+	private DiskConversionStore diskStore;
 
-	/** Number of cache misses. */
-	private int countCacheMisses;
+	/** Conversions currently in progress, so that duplicate requests can wait. */
+	private final ConcurrentHashMap<InputEquation, InFlight> inFlight =
+		new ConcurrentHashMap<InputEquation, InFlight>();
 
 	/** Number of errors. */
 	private int countErrors;
@@ -105,8 +168,6 @@ public class MathJaxNodeExecutable
 	private final static long INSTANCE_CREATION_DELAY = 1000L;
 	/** Time it will wait for an instance to become available (if one exists) */
 	private final static long INSTANCE_WAIT_TIME = 500L;
-	/** Arbitrary long time for waiting forever */
-	private final static long LONG_TIME = 100000L;
 
 	/** Checker for flushing spares */
 	protected PeriodicChecker checker;
@@ -271,15 +332,26 @@ public class MathJaxNodeExecutable
 	 */
 	public static class Status
 	{
-		private int cacheHits, cacheMisses, errorCount;
+		private int errorCount;
+		private boolean ready;
+		private ResultCache.Stats cacheStats, diskCacheStats;
 		private Error[] errors;
 		private EquationDetails[] recentEquations;
+		private int queueDepth, maxQueueDepth;
+		private long rejections;
+		private long[] sortedWaits;
 
-		public Status(int cacheHits, int cacheMisses, int errorCount, Error[] errors,
-			EquationDetails[] recentEquations)
+		public Status(boolean ready, ResultCache.Stats cacheStats, ResultCache.Stats diskCacheStats,
+			int queueDepth, int maxQueueDepth, long rejections, long[] sortedWaits,
+			int errorCount, Error[] errors, EquationDetails[] recentEquations)
 		{
-			this.cacheHits = cacheHits;
-			this.cacheMisses = cacheMisses;
+			this.ready = ready;
+			this.cacheStats = cacheStats;
+			this.diskCacheStats = diskCacheStats;
+			this.queueDepth = queueDepth;
+			this.maxQueueDepth = maxQueueDepth;
+			this.rejections = rejections;
+			this.sortedWaits = sortedWaits;
 			this.errorCount = errorCount;
 			this.errors = errors;
 
@@ -307,20 +379,88 @@ public class MathJaxNodeExecutable
 			Arrays.sort(this.recentEquations);
 		}
 
+		/**
+		 * @return True if the minimum idle instances have been started
+		 */
+		public boolean isReady()
+		{
+			return ready;
+		}
+
+		/**
+		 * @return Number of requests currently waiting for an instance
+		 */
+		public int getQueueDepth()
+		{
+			return queueDepth;
+		}
+
+		/**
+		 * @return Maximum number of requests that can wait (0 = no limit)
+		 */
+		public int getMaxQueueDepth()
+		{
+			return maxQueueDepth;
+		}
+
+		/**
+		 * @return Number of requests rejected because the server was overloaded
+		 */
+		public long getRejections()
+		{
+			return rejections;
+		}
+
+		/**
+		 * Gets a percentile of the time recent requests spent waiting for an
+		 * instance.
+		 * @param percent Percentile (e.g. 99)
+		 * @return Wait time in milliseconds, or -1 if there are no requests yet
+		 */
+		public long getQueueWaitPercentile(double percent)
+		{
+			if(sortedWaits.length == 0)
+			{
+				return -1;
+			}
+			int index = (int)Math.ceil(percent / 100.0 * sortedWaits.length) - 1;
+			return sortedWaits[Math.max(0, Math.min(sortedWaits.length - 1, index))];
+		}
+
 		/**
 		 * @return Number of equations that were retrieved from cache
 		 */
-		public int getCacheHits()
+		public long getCacheHits()
 		{
-			return cacheHits;
+			return cacheStats.getHits();
 		}
 
 		/**
 		 * @return Number of equations that were actually converted
 		 */
-		public int getCacheMisses()
+		public long getCacheMisses()
+		{
+			if(diskCacheStats != null)
+			{
+				return diskCacheStats.getMisses();
+			}
+			return cacheStats.getMisses();
+		}
+
+		/**
+		 * @return Full statistics from the result cache
+		 */
+		public ResultCache.Stats getCacheStats()
+		{
+			return cacheStats;
+		}
+
+		/**
+		 * @return Full statistics from the disk cache, or null if not enabled
+		 */
+		public ResultCache.Stats getDiskCacheStats()
 		{
-			return cacheMisses;
+			return diskCacheStats;
 		}
 
 		/**
@@ -349,21 +489,36 @@ public class MathJaxNodeExecutable
 	}
 
 	/**
-	 * Results from conversion via the MathJax-node command-line tool.
+	 * Results from conversion via the MathJax-node command-line tool. If only
+	 * some outputs were requested, the others are null; results for the same
+	 * equation can be merged.
 	 */
 	public static class ConversionResults
 	{
 		private String svg;
 		private String mathml;
+		private volatile String speech;
 
 		protected ConversionResults(String svg, String mathMl)
+		{
+			this(svg, mathMl, null);
+		}
+
+		/**
+		 * @param svg SVG code, or null if not requested
+		 * @param mathMl MathML code (empty string if none), or null if not requested
+		 * @param speech Speech text, or null to read it from the SVG title when
+		 *   first needed
+		 */
+		protected ConversionResults(String svg, String mathMl, String speech)
 		{
 			this.svg = svg;
 			this.mathml = mathMl;
+			this.speech = speech == null ? null : SvgRewriter.normalizeSpace(speech);
 		}
 
 		/**
-		 * @return SVG code (as string)
+		 * @return SVG code (as string), or null if not requested
 		 */
 		public String getSvg()
 		{
@@ -371,14 +526,158 @@ public class MathJaxNodeExecutable
 		}
 
 		/**
-		 * @return MathJax code (empty string if none)
+		 * @return MathJax code (empty string if none), or null if not requested
 		 */
 		public String getMathml()
 		{
 			return mathml;
 		}
+
+		/**
+		 * @return Speech text (English) for the equation, or null if not requested
+		 * @throws IllegalArgumentException If there is no speech text and the SVG
+		 *   doesn't include a title
+		 */
+		public String getSpeech() throws IllegalArgumentException
+		{
+			String result = speech;
+			if(result == null && svg != null)
+			{
+				result = SvgRewriter.getTitle(svg);
+				speech = result;
+			}
+			return result;
+		}
+
+		/**
+		 * @param output Output type
+		 * @return True if these results include the output
+		 */
+		public boolean has(ConversionOutput output)
+		{
+			switch(output)
+			{
+				case SVG:
+					return svg != null;
+				case MATHML:
+					return mathml != null;
+				default:
+					return speech != null || svg != null;
+			}
+		}
+
+		/**
+		 * @param outputs Output types
+		 * @return True if these results include all the outputs
+		 */
+		public boolean hasAll(Set<ConversionOutput> outputs)
+		{
+			for(ConversionOutput output : outputs)
+			{
+				if(!has(output))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Combines these results with others for the same equation.
+		 * @param other Other results
+		 * @return Results including everything from both
+		 */
+		public ConversionResults merge(ConversionResults other)
+		{
+			String otherSpeech = other.speech;
+			return new ConversionResults(other.svg != null ? other.svg : svg,
+				other.mathml != null ? other.mathml : mathml,
+				otherSpeech != null ? otherSpeech : speech);
+		}
+
+		/**
+		 * @return Approximate memory used by the strings in this object
+		 */
+		public long getBytes()
+		{
+			String result = speech;
+			return 2L * ((svg == null ? 0 : svg.length()) +
+				(mathml == null ? 0 : mathml.length()) +
+				(result == null ? 0 : result.length()));
+		}
+	}
+
+	/**
+	 * A conversion in progress. Other requests for the same equation wait for
+	 * it to finish and then get the same result or exception.
+	 */
+	private static class InFlight
+	{
+		private final CountDownLatch done = new CountDownLatch(1);
+		private ConversionResults results;
+		private Throwable exception;
+
+		private void succeeded(ConversionResults results)
+		{
+			this.results = results;
+			done.countDown();
+		}
+
+		private void failed(Throwable exception)
+		{
+			this.exception = exception;
+			done.countDown();
+		}
+
+		/**
+		 * Waits for the conversion to finish.
+		 * @return Converted data
+		 * @throws IOException Error running MathJax
+		 * @throws MathJaxException MathJax reports an error
+		 */
+		private ConversionResults await() throws IOException, MathJaxException
+		{
+			try
+			{
+				done.await();
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException("MathJax processing thread interrupted", e);
+			}
+			if(exception instanceof IOException)
+			{
+				throw (IOException)exception;
+			}
+			if(exception instanceof MathJaxException)
+			{
+				throw (MathJaxException)exception;
+			}
+			if(exception instanceof RuntimeException)
+			{
+				throw (RuntimeException)exception;
+			}
+			if(exception instanceof java.lang.Error)
+			{
+				throw (java.lang.Error)exception;
+			}
+			return results;
+		}
 	}
 
+	/**
+	 * Works out the size of cache entries.
+	 */
+	private final static TinyLfuCache.Weigher<InputEquation, ConversionResults> WEIGHER =
+		new TinyLfuCache.Weigher<InputEquation, ConversionResults>()
+	{
+		@Override
+		public long getBytes(InputEquation key, ConversionResults value)
+		{
+			return 2L * key.getContent().length() + value.getBytes() + CACHE_ENTRY_OVERHEAD;
+		}
+	};
+
 	/**
 	 * Thread that runs periodically to see if we can close down spare Node instances.
 	 */
@@ -442,7 +741,8 @@ public class MathJaxNodeExecutable
 					}
 
 					closeSpareInstances();
-					
+					ensureMinIdle();
+
 					synchronized(this)
 					{
 						notifyAll();
@@ -464,8 +764,20 @@ public class MathJaxNodeExecutable
 	 * Empty constructor for unit test.
 	 */
 	protected MathJaxNodeExecutable()
+	{
+		this(1);
+	}
+
+	/**
+	 * Constructor for unit test with a specific pipeline depth.
+	 * @param pipelineDepth Maximum number of requests sent to an instance at once
+	 */
+	protected MathJaxNodeExecutable(int pipelineDepth)
 	{
 		maxInstances = 4;
+		this.pipelineDepth = pipelineDepth;
+		cache = createCache(DEFAULT_CACHE_MEGABYTES * 1024L * 1024L);
+		admission = new AdmissionQueue(DEFAULT_MAX_QUEUE, DEFAULT_MAX_QUEUE_WAIT_SECONDS * 1000L);
 		basicInit();
 	}
 
@@ -496,6 +808,104 @@ public class MathJaxNodeExecutable
 			throw new IllegalArgumentException("Required parameter " + PARAM_MATHJAXNODEINSTANCES + " missing");
 		}
 
+		String minIdleParam = servletContext.getInitParameter(PARAM_MATHJAXNODEMINIDLE);
+		if(minIdleParam != null)
+		{
+			setMinIdle(minIdleParam);
+		}
+
+		String depthParam = servletContext.getInitParameter(PARAM_MATHJAXNODEPIPELINEDEPTH);
+		if(depthParam != null)
+		{
+			try
+			{
+				pipelineDepth = Integer.parseInt(depthParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEPIPELINEDEPTH + " (must be integer)");
+			}
+			if(pipelineDepth < 1)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEPIPELINEDEPTH + " (must be at least 1)");
+			}
+		}
+
+		long cacheMegabytes = DEFAULT_CACHE_MEGABYTES;
+		String cacheParam = servletContext.getInitParameter(PARAM_MATHJAXNODECACHEMEGABYTES);
+		if(cacheParam != null)
+		{
+			try
+			{
+				cacheMegabytes = Long.parseLong(cacheParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODECACHEMEGABYTES + " (must be integer)");
+			}
+		}
+		cache = createCache(cacheMegabytes * 1024L * 1024L);
+
+		String diskFolder = servletContext.getInitParameter(PARAM_MATHJAXNODEDISKCACHEFOLDER);
+		if(diskFolder != null && !diskFolder.trim().isEmpty())
+		{
+			long diskMegabytes = DEFAULT_DISK_CACHE_MEGABYTES;
+			String diskParam = servletContext.getInitParameter(PARAM_MATHJAXNODEDISKCACHEMEGABYTES);
+			if(diskParam != null)
+			{
+				try
+				{
+					diskMegabytes = Long.parseLong(diskParam.trim());
+				}
+				catch(NumberFormatException e)
+				{
+					throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEDISKCACHEMEGABYTES + " (must be integer)");
+				}
+			}
+			try
+			{
+				diskStore = new DiskConversionStore(new File(diskFolder.trim()),
+					diskMegabytes * 1024L * 1024L);
+			}
+			catch(IOException e)
+			{
+				// Carry on without it rather than failing the whole service.
+				LOGGER.log(Level.SEVERE, "Unable to open MathJax disk cache", e);
+			}
+		}
+
+		int maxQueue = DEFAULT_MAX_QUEUE;
+		String queueParam = servletContext.getInitParameter(PARAM_MATHJAXNODEMAXQUEUE);
+		if(queueParam != null)
+		{
+			try
+			{
+				maxQueue = Integer.parseInt(queueParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEMAXQUEUE + " (must be integer)");
+			}
+		}
+		int maxQueueWait = DEFAULT_MAX_QUEUE_WAIT_SECONDS;
+		String queueWaitParam = servletContext.getInitParameter(PARAM_MATHJAXNODEMAXQUEUEWAIT);
+		if(queueWaitParam != null)
+		{
+			try
+			{
+				maxQueueWait = Integer.parseInt(queueWaitParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEMAXQUEUEWAIT + " (must be integer)");
+			}
+			if(maxQueueWait < 1)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEMAXQUEUEWAIT + " (must be at least 1)");
+			}
+		}
+		admission = new AdmissionQueue(maxQueue, maxQueueWait * 1000L);
+
 		basicInit();
 	}
 
@@ -552,228 +962,361 @@ public class MathJaxNodeExecutable
 	}
 
 	/**
-	 * Shared part of constructor.
+	 * Sets the minimum number of idle instances for each font.
+	 * @param value Comma-separated list of font=count, e.g. "TeX=2,STIX-Web=1"
+	 * @throws IllegalArgumentException If the value is not valid
 	 */
-	private void basicInit()
+	void setMinIdle(String value) throws IllegalArgumentException
 	{
-		instances = new ArrayList<MathJaxNodeInstance>(maxInstances);
-		lastSimultaneousUsed = new long[maxInstances];
-		checker = new PeriodicChecker();
+		Map<String, Integer> parsed = new HashMap<String, Integer>();
+		for(String part : value.split(","))
+		{
+			part = part.trim();
+			if(part.isEmpty())
+			{
+				continue;
+			}
+			Matcher m = REGEX_MINIDLE.matcher(part);
+			if(!m.matches())
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_MATHJAXNODEMINIDLE + " (must be font=count): " + part);
+			}
+			parsed.put(m.group(1), Integer.parseInt(m.group(2)));
+		}
+		minIdle = parsed;
+		ready = parsed.isEmpty();
 	}
 
 	/**
-	 * Logs a message when extra logging is turned on.
-	 * @param message Message to log
+	 * Starts the minimum idle instances for each font, waiting until they are
+	 * all ready. Called when the application starts, so that the first requests
+	 * do not have to wait for Node to start.
 	 */
-	void log(String message)
+	public void warmUp()
 	{
-		if(!LOG_COMMUNICATION)
-		{
-			return;
-		}
-		LOGGER.log(Level.INFO, "[WebMaths] " + message);
+		ensureMinIdle();
+		ready = true;
 	}
 
-	private final static Pattern REGEX_BEGIN = Pattern.compile("^<<BEGIN:([A-Z0-9]+)$");
-	private final static Pattern REGEX_END = Pattern.compile("^<<END:([A-Z0-9]+)$");
-
 	/**
-	 * Converts an equation using MathJax.
-	 * @param eq Equation
-	 * @return Converted data
-	 * @throws IOException Error running MathJax
-	 * @throws MathJaxException MathJax reports an error
+	 * @return True if the minimum idle instances have been started
 	 */
-	public ConversionResults convertEquation(InputEquation eq)
-		throws IOException, MathJaxException
+	public boolean isReady()
 	{
-		ConversionResults got;
-
-		// Use cache if available.
-		synchronized(cache)
-		{
-			got = cache.get(eq);
-			if(got != null)
-			{
-				countCacheHits++;
-				return got;
-			}
-			countCacheMisses++;
-		}
+		return ready;
+	}
 
-		MathJaxNodeInstance instance = null;
-		long startedWaiting = System.currentTimeMillis();
-		synchronized(instances)
+	/**
+	 * Starts new instances if there are fewer idle instances for a font than
+	 * the configured minimum (and we are not already at the maximum).
+	 */
+	private void ensureMinIdle()
+	{
+		for(Map.Entry<String, Integer> entry : minIdle.entrySet())
 		{
-			outer: while(instance == null)
+			InstancePool pool = getPool(entry.getKey());
+			while(countIdle(pool) < entry.getValue())
 			{
-				// Find a free instance with the correct font.
-				for(MathJaxNodeInstance possible : availableInstances)
+				// Reserve space for the instance; these don't have to wait for the
+				// creation delay because they are started one at a time.
+				int count = instanceCount.get();
+				if(count >= maxInstances)
 				{
-					if(possible.getFont().equals(eq.getFont()))
-					{
-						instance = possible;
-						availableInstances.remove(instance);
-						break outer;
-					}
+					return;
 				}
-
-				// Check if there are ANY instances with the correct font.
-				boolean some = false;
-				for(MathJaxNodeInstance possible : instances)
+				if(!instanceCount.compareAndSet(count, count + 1))
 				{
-					if(possible.getFont().equals(eq.getFont()))
-					{
-						some = true;
-						break;
-					}
+					continue;
 				}
-
-				// If there is already at least one instance dealing with this font,
-				// give it a little while before creating another.
-				if(some)
+				if(!createWarmInstance(pool))
 				{
-					long delay = (startedWaiting + INSTANCE_WAIT_TIME) - System.currentTimeMillis();
-					if (delay > 0)
-					{
-						// Wait up to the delay limit.
-						instancesWait(delay);
-
-						// After waiting, retry outer loop to see if one is available now.
-						continue outer;
-					}
+					return;
 				}
+			}
+		}
+	}
 
-				// Check if we've already created the maximum number.
-				if(instances.size() >= maxInstances)
-				{
-					// We are already at max instances so can't create another one.
-					// Instead, grab another available instance.
-					MathJaxNodeInstance available = null;
-					for(MathJaxNodeInstance possible : availableInstances)
-					{
-						available = possible;
-						break;
-					}
-					if(available != null)
-					{
-						// Close this instance.
-						available.closeInstance();
-						availableInstances.remove(available);
-						instances.remove(available);
-
-						// Replace it with a new one with this font.
-						instance = createInstance(eq.getFont());
-						instances.add(instance);
-						break;
-					}
+	/**
+	 * @param pool Pool
+	 * @return Number of idle instances in pool
+	 */
+	private static int countIdle(InstancePool pool)
+	{
+		int idle = 0;
+		for(MathJaxNodeInstance instance : pool.getMembers())
+		{
+			if(instance.getUsers() == 0)
+			{
+				idle++;
+			}
+		}
+		return idle;
+	}
 
-					// Wait indefinitely until something becomes available.
-					instancesWait(LONG_TIME);
+	/**
+	 * Creates an instance and converts a probe equation, then makes it available
+	 * in the pool. It must already have been counted in instanceCount.
+	 * @param pool Pool
+	 * @return True if successful, false if there was an error (which is logged)
+	 */
+	private boolean createWarmInstance(InstancePool pool)
+	{
+		MathJaxNodeInstance instance;
+		try
+		{
+			instance = createInstance(pool.getFont());
+		}
+		catch(IOException e)
+		{
+			instanceCount.decrementAndGet();
+			wakeCapacityWaiter();
+			LOGGER.log(Level.WARNING, "Unable to start MathJax instance", e);
+			return false;
+		}
+		instance.tryReserveIdle();
+		try
+		{
+			int id = instance.sendRequest(PROBE_FORMAT, PROBE_CONTENT);
+			Map<String, String> result = instance.readResult(id);
+			if(result.get("SVG").isEmpty())
+			{
+				throw new IOException("Probe equation failed: " + result.get("ERRORS"));
+			}
+		}
+		catch(IOException e)
+		{
+			instance.retire();
+			instanceCount.decrementAndGet();
+			wakeCapacityWaiter();
+			String stderr = "";
+			try
+			{
+				stderr = instance.closeWithStderr();
+			}
+			catch(IOException e2)
+			{
+			}
+			LOGGER.log(Level.WARNING, "MathJax instance failed probe equation\n" + stderr, e);
+			return false;
+		}
+		pool.add(instance);
+		if(pool.release(instance))
+		{
+			wakeCapacityWaiter();
+		}
+		return true;
+	}
 
-					// Retry outer loop so we can recheck if there are any of our
-					// font after waiting. Otherwise we could potentially be doing this
-					// code branch (where there are supposed to be none of that font)
-					// twice at once.
-					continue;
-				}
+	/**
+	 * Shared part of constructor.
+	 */
+	private void basicInit()
+	{
+		lastSimultaneousUsed = new long[maxInstances];
+		checker = new PeriodicChecker();
+	}
 
-				// We are not at max instances. Create another instance of the right
-				// font, provided we aren't creating instances too quickly.
-				long delay = (lastCreatedInstance + INSTANCE_CREATION_DELAY) - System.currentTimeMillis();
-				if (delay > 0)
-				{
-					// Wait up to the delay limit.
-					instancesWait(delay);
+	/**
+	 * Creates the result cache. This is a separate function so that a different
+	 * cache implementation can be used.
+	 * @param maxBytes Maximum size of cache in bytes
+	 * @return New cache
+	 */
+	protected ResultCache<InputEquation, ConversionResults> createCache(long maxBytes)
+	{
+		return new TinyLfuCache<InputEquation, ConversionResults>(maxBytes, WEIGHER);
+	}
 
-					// After waiting, retry outer loop in case something else created an
-					// instance etc.
-					continue outer;
-				}
+	/**
+	 * Logs a message when extra logging is turned on.
+	 * @param message Message to log
+	 */
+	void log(String message)
+	{
+		if(!LOG_COMMUNICATION)
+		{
+			return;
+		}
+		LOGGER.log(Level.INFO, "[WebMaths] " + message);
+	}
 
-				// If we get here then we haven't added an instance lately, so add one
-				// now.
-				lastCreatedInstance = System.currentTimeMillis();
-				instance = createInstance(eq.getFont());
-				instances.add(instance);
+	/**
+	 * Sets limits on requests waiting for an instance. (Used in unit tests;
+	 * normally set from servlet parameters.)
+	 * @param maxQueue Maximum number of requests waiting (0 = no limit)
+	 * @param maxQueueWait Maximum time a request waits, in milliseconds
+	 */
+	void setQueueLimits(int maxQueue, long maxQueueWait)
+	{
+		admission = new AdmissionQueue(maxQueue, maxQueueWait);
+	}
+
+	/**
+	 * Converts an equation using MathJax.
+	 * @param eq Equation
+	 * @return Converted data
+	 * @throws IOException Error running MathJax
+	 * @throws MathJaxException MathJax reports an error
+	 */
+	public ConversionResults convertEquation(InputEquation eq)
+		throws IOException, MathJaxException
+	{
+		return convertEquation(eq, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Converts an equation using MathJax.
+	 * @param eq Equation
+	 * @param priority Priority when waiting for a MathJax instance
+	 * @return Converted data
+	 * @throws IOException Error running MathJax
+	 * @throws MathJaxException MathJax reports an error
+	 */
+	public ConversionResults convertEquation(InputEquation eq, Priority priority)
+		throws IOException, MathJaxException
+	{
+		return convertEquation(eq, priority, ConversionOutput.ALL);
+	}
+
+	/**
+	 * Converts an equation using MathJax, producing only some outputs. The
+	 * results may include other outputs too, if they were already available.
+	 * @param eq Equation
+	 * @param priority Priority when waiting for a MathJax instance
+	 * @param outputs Outputs required
+	 * @return Converted data
+	 * @throws IOException Error running MathJax
+	 * @throws MathJaxException MathJax reports an error
+	 */
+	public ConversionResults convertEquation(InputEquation eq, Priority priority,
+		Set<ConversionOutput> outputs) throws IOException, MathJaxException
+	{
+		InFlight flight;
+		boolean checked = false;
+		while(true)
+		{
+			// Use cache if available. (Only the first check counts in the stats.)
+			ConversionResults got = checked ? cache.peek(eq) : cache.get(eq);
+			checked = true;
+			if(got != null && got.hasAll(outputs))
+			{
+				return got;
+			}
+
+			// If somebody else is already converting the same equation, wait for
+			// their result instead of using another instance. (If they didn't ask
+			// for everything needed here, try again afterwards.)
+			flight = new InFlight();
+			InFlight existing = inFlight.putIfAbsent(eq, flight);
+			if(existing == null)
+			{
 				break;
 			}
+			got = existing.await();
+			if(got.hasAll(outputs))
+			{
+				return got;
+			}
+		}
+		try
+		{
+			// Check the cache again, in case another conversion finished between
+			// the cache check and adding this one.
+			ConversionResults got = cache.peek(eq);
+			if(got == null || !got.hasAll(outputs))
+			{
+				got = convertUncached(eq, priority, outputs);
+			}
+			flight.succeeded(got);
+			return got;
+		}
+		catch(IOException e)
+		{
+			flight.failed(e);
+			throw e;
+		}
+		catch(MathJaxException e)
+		{
+			flight.failed(e);
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			flight.failed(e);
+			throw e;
+		}
+		catch(java.lang.Error e)
+		{
+			flight.failed(e);
+			throw e;
+		}
+		finally
+		{
+			inFlight.remove(eq, flight);
+		}
+	}
+
+	/**
+	 * Converts an equation that is not in the memory cache (or only has some
+	 * outputs there), using the disk cache or MathJax. Stores the result in both
+	 * caches. Only complete results are stored on disk; partial ones are merged
+	 * with any that are already in memory.
+	 * @param eq Equation
+	 * @param priority Priority when waiting for a MathJax instance
+	 * @param outputs Outputs required
+	 * @return Converted data
+	 * @throws IOException Error running MathJax
+	 * @throws MathJaxException MathJax reports an error
+	 */
+	private ConversionResults convertUncached(InputEquation eq, Priority priority,
+		Set<ConversionOutput> outputs) throws IOException, MathJaxException
+	{
+		ConversionResults got;
+		if(diskStore != null)
+		{
+			got = diskStore.get(eq);
+			if(got != null)
+			{
+				cache.put(eq, got);
+				return got;
+			}
+		}
 
-			// Track how many instances are currently in use.
-			int currentlyUsed = instances.size() - availableInstances.size();
-			lastSimultaneousUsed[currentlyUsed - 1] = System.currentTimeMillis();
+		// Only ask for outputs that aren't already in the cache.
+		ConversionResults partial = cache.peek(eq);
+		EnumSet<ConversionOutput> request = outputs.isEmpty() ?
+			EnumSet.allOf(ConversionOutput.class) : EnumSet.copyOf(outputs);
+		if(partial != null)
+		{
+			for(Iterator<ConversionOutput> i = request.iterator(); i.hasNext(); )
+			{
+				if(partial.has(i.next()))
+				{
+					i.remove();
+				}
+			}
+			if(request.isEmpty())
+			{
+				return partial;
+			}
 		}
 
+		InstancePool pool = getPool(eq.getFont());
+		MathJaxNodeInstance instance = acquireInstance(pool, priority);
+
 		boolean instanceRemoved = false;
 		try
 		{
 			long start = System.currentTimeMillis();
 			try
 			{
-				// Send the type value.
-				instance.sendLine(eq.getFormat());
-
 				// Strip CRs from value, and ensure there aren't two LFs in a row or any the end.
 				String value = eq.getContent().trim().replaceAll("\r", "").replaceAll("\n\n+", "\n");
 
-				// Send value.
-				instance.sendLine(value);
-				instance.sendLine("");
-				instance.flush();
-
-				// Start reading lines from output.
-				String first = instance.readLine();
-				log("[READ] " + first);
-				if(!first.equals("<<BEGIN:RESULT"))
-				{
-					throw new IOException("Expecting result start: " + first);
-				}
-
-				// Read the rest of it, splitting it into sections.
-				Map<String, String> result = new HashMap<String, String>();
-				result.put("ERRORS", "");
-				result.put("SVG", "");
-				result.put("MATHML", "");
-				String section = null;
-				while(true)
-				{
-					String line = instance.readLine();
-					log("[READ] " + line);
-					if(section == null)
-					{
-						if(line.equals("<<END:RESULT"))
-						{
-							break;
-						}
-						Matcher m = REGEX_BEGIN.matcher(line);
-						if(!m.matches())
-						{
-							throw new IOException("Expecting BEGIN line: " + line);
-						}
-						section = m.group(1);
-						if(!result.containsKey(section))
-						{
-							throw new IOException("Unknown result section: " + line);
-						}
-					}
-					else
-					{
-						Matcher m = REGEX_END.matcher(line);
-						if(m.matches())
-						{
-							if(!m.group(1).equals(section))
-							{
-								throw new IOException("Non-matching END, expecting " + section + ": " + line);
-							}
-							result.put(section, result.get(section).trim());
-							section = null;
-						}
-						else
-						{
-							result.put(section, result.get(section) + line + "\n");
-						}
-					}
-				}
+				// Send the request and wait for its result (other requests may be
+				// sent to the same instance meanwhile).
+				int id = instance.sendRequest(eq.getFormat(), value, request);
+				Map<String, String> result = instance.readResult(id);
 
 				String error = result.get("ERRORS");
 				if(FAKE_ERRORS)
@@ -791,8 +1334,10 @@ public class MathJaxNodeExecutable
 					}
 				}
 
-				// If no error is reported but there's no SVG either, it's an error.
-				if(error.isEmpty() && result.get("SVG").isEmpty())
+				// If no error is reported but there's no output either, it's an error.
+				if(error.isEmpty() && result.get("SVG").isEmpty() &&
+					(request.contains(ConversionOutput.SVG) ||
+					(result.get("MATHML").isEmpty() && result.get("SPEECH").isEmpty())))
 				{
 					error = "Empty result";
 				}
@@ -801,17 +1346,35 @@ public class MathJaxNodeExecutable
 					trackError(new Error(eq, error));
 					throw new MathJaxException(error);
 				}
-				got = new ConversionResults(result.get("SVG"), result.get("MATHML"));
+				// With SVG, missing speech can be read from its title later.
+				String speech = result.get("SPEECH");
+				if(request.contains(ConversionOutput.SVG) ||
+					!request.contains(ConversionOutput.SPEECH))
+				{
+					speech = speech.isEmpty() ? null : speech;
+				}
+				got = new ConversionResults(
+					request.contains(ConversionOutput.SVG) ? result.get("SVG") : null,
+					request.contains(ConversionOutput.MATHML) ? result.get("MATHML") : null,
+					speech);
 			}
 			catch(IOException e)
 			{
 				log("[FAILURE] " + e.getMessage());
 
 				// If an IO exception occurs, stop the processor and read any text from
-				// stderr.
-				String stderr = instance.closeWithStderr();
+				// stderr. (Other requests using the same instance will also fail, but
+				// only the first one closes it.)
 				instanceRemoved = true;
-				log("[STDERR DUMP]\n" + stderr);
+				String stderr = "";
+				if(pool.remove(instance))
+				{
+					instance.retire();
+					instanceCount.decrementAndGet();
+					wakeCapacityWaiter();
+					stderr = instance.closeWithStderr();
+					log("[STDERR DUMP]\n" + stderr);
+				}
 
 				// Add stderr information to error if present.
 				if(!stderr.isEmpty())
@@ -839,48 +1402,260 @@ public class MathJaxNodeExecutable
 		}
 		finally
 		{
-			synchronized(instances)
+			if(!instanceRemoved && pool.release(instance))
+			{
+				wakeCapacityWaiter();
+			}
+		}
+
+		if(partial != null)
+		{
+			got = partial.merge(got);
+		}
+		cache.put(eq, got);
+		if(diskStore != null && got.hasAll(ConversionOutput.ALL))
+		{
+			diskStore.storeAsync(eq, got);
+		}
+		return got;
+	}
+
+	/**
+	 * Gets the pool for a font, creating it if necessary.
+	 * @param font Font
+	 * @return Pool
+	 */
+	private InstancePool getPool(String font)
+	{
+		InstancePool pool = pools.get(font);
+		if(pool == null)
+		{
+			pool = new InstancePool(font, pipelineDepth);
+			InstancePool existing = pools.putIfAbsent(font, pool);
+			if(existing != null)
 			{
-				if(instanceRemoved)
+				pool = existing;
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets an instance to process an equation, waiting or creating a new one
+	 * if necessary.
+	 * @param pool Pool for the equation's font
+	 * @param priority Priority when waiting
+	 * @return Instance with a request slot reserved for the caller
+	 * @throws MathJaxOverloadedException If too many requests are waiting
+	 * @throws IOException If an instance can't be created, or interrupted
+	 */
+	private MathJaxNodeInstance acquireInstance(InstancePool pool, Priority priority)
+		throws IOException
+	{
+		MathJaxNodeInstance instance = pool.tryAcquire(priority);
+		if(instance != null)
+		{
+			admission.recordWait(0);
+		}
+		else
+		{
+			// Nothing available straight away, so wait in the queue if there's room.
+			if(!admission.enter())
+			{
+				throw new MathJaxOverloadedException("Too many equations waiting (maximum "
+					+ admission.getMaxDepth() + ")");
+			}
+			long startedWaiting = System.currentTimeMillis();
+			try
+			{
+				instance = waitForInstance(pool, priority, startedWaiting,
+					startedWaiting + admission.getMaxWait());
+			}
+			finally
+			{
+				admission.leave(System.currentTimeMillis() - startedWaiting);
+			}
+			if(instance == null)
+			{
+				admission.timedOut();
+				throw new MathJaxOverloadedException("Timed out waiting for MathJax (after "
+					+ admission.getMaxWait() + " ms)");
+			}
+		}
+
+		// Track how many instances are currently in use.
+		int currentlyUsed = 0;
+		for(InstancePool each : pools.values())
+		{
+			for(MathJaxNodeInstance possible : each.getMembers())
+			{
+				if(possible.getUsers() > 0)
 				{
-					instances.remove(instance);
+					currentlyUsed++;
 				}
-				else
+			}
+		}
+		if(currentlyUsed > 0)
+		{
+			lastSimultaneousUsed[Math.min(currentlyUsed, maxInstances) - 1] =
+				System.currentTimeMillis();
+		}
+		return instance;
+	}
+
+	/**
+	 * Waits for an instance, creating a new one if allowed.
+	 * @param pool Pool for the equation's font
+	 * @param priority Priority when waiting
+	 * @param startedWaiting Time at which waiting started
+	 * @param deadline Time at which to give up
+	 * @return Instance with a request slot reserved, or null if the deadline passed
+	 * @throws IOException If an instance can't be created, or interrupted
+	 */
+	private MathJaxNodeInstance waitForInstance(InstancePool pool, Priority priority,
+		long startedWaiting, long deadline) throws IOException
+	{
+		while(true)
+		{
+			MathJaxNodeInstance instance = pool.tryAcquire(priority);
+			if(instance != null)
+			{
+				return instance;
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+			{
+				return null;
+			}
+
+			// If there is already at least one instance dealing with this font,
+			// give it a little while before creating another.
+			long delay = (startedWaiting + INSTANCE_WAIT_TIME) - System.currentTimeMillis();
+			if(!pool.getMembers().isEmpty() && delay > 0)
+			{
+				instance = pool.await(Math.min(delay, remaining), null, priority);
+				if(instance != null)
+				{
+					return instance;
+				}
+				continue;
+			}
+
+			// Create another instance, if allowed.
+			delay = reserveCreation();
+			if(delay == 0)
+			{
+				return createPooledInstance(pool);
+			}
+			if(delay > 0)
+			{
+				// Wait until we're allowed to create one (or an instance frees up).
+				instance = pool.await(Math.min(delay, remaining), null, priority);
+				if(instance != null)
 				{
-					availableInstances.add(instance);
+					return instance;
 				}
-				instances.notifyAll();
+				continue;
+			}
+
+			// We are already at max instances so can't create another one.
+			// Instead, close an idle instance with a different font.
+			for(InstancePool other : pools.values())
+			{
+				if(other == pool)
+				{
+					continue;
+				}
+				MathJaxNodeInstance available = other.tryRetireIdle();
+				if(available != null)
+				{
+					// Replace it with a new one with this font (the count is unchanged).
+					available.closeInstance();
+					return createPooledInstance(pool);
+				}
+			}
+
+			// Wait until something becomes available or idle.
+			instance = pool.await(remaining, capacityWaiters, priority);
+			if(instance != null)
+			{
+				return instance;
 			}
 		}
+	}
 
-		synchronized(cache)
+	/**
+	 * Decides whether a new instance can be created. If so, it is counted
+	 * immediately.
+	 * @return 0 if it can be created, a positive number of milliseconds if it
+	 *   can be created after that delay, or -1 if the maximum is already running
+	 */
+	private long reserveCreation()
+	{
+		while(true)
 		{
-			cache.put(eq, got);
-			cacheKeys.addLast(eq);
-			if(cacheKeys.size() > CACHE_SIZE)
+			int count = instanceCount.get();
+			if(count >= maxInstances)
+			{
+				return -1;
+			}
+			// Don't create instances too quickly.
+			long last = lastCreatedInstance.get();
+			long now = System.currentTimeMillis();
+			long delay = (last + INSTANCE_CREATION_DELAY) - now;
+			if(delay > 0)
 			{
-				InputEquation remove = cacheKeys.removeFirst();
-				cache.remove(remove);
+				return delay;
 			}
+			if(!lastCreatedInstance.compareAndSet(last, now))
+			{
+				continue;
+			}
+			if(instanceCount.compareAndSet(count, count + 1))
+			{
+				return 0;
+			}
+			lastCreatedInstance.compareAndSet(now, last);
 		}
-
-		return got;
 	}
 
 	/**
-	 * Waits on the instances object. Must be called inside synchronization.
-	 * @param delay Time to wait
-	 * @throws IOException If waiting is interrupted
+	 * Creates an instance and adds it to a pool. It must already have been
+	 * counted in instanceCount.
+	 * @param pool Pool
+	 * @return New instance with a request slot reserved
+	 * @throws IOException If it can't be created
 	 */
-	private void instancesWait(long delay) throws IOException
+	private MathJaxNodeInstance createPooledInstance(InstancePool pool) throws IOException
 	{
+		MathJaxNodeInstance instance;
 		try
 		{
-			instances.wait(delay);
+			instance = createInstance(pool.getFont());
 		}
-		catch(InterruptedException e)
+		catch(IOException e)
 		{
-			throw new IOException("MathJax processing thread interrupted", e);
+			instanceCount.decrementAndGet();
+			wakeCapacityWaiter();
+			throw e;
+		}
+		instance.tryReserveIdle();
+		pool.add(instance);
+		return instance;
+	}
+
+	/**
+	 * Wakes one request that is waiting because there were too many instances.
+	 */
+	private void wakeCapacityWaiter()
+	{
+		InstancePool.Waiter waiter;
+		while((waiter = capacityWaiters.poll()) != null)
+		{
+			if(waiter.wake())
+			{
+				return;
+			}
 		}
 	}
 
@@ -889,66 +1664,82 @@ public class MathJaxNodeExecutable
 	 */
 	private void closeSpareInstances()
 	{
-		synchronized(instances)
+		// Don't close instances if there's only one left.
+		int count = instanceCount.get();
+		if(count <= 1)
+		{
+			return;
+		}
+
+		// Work out the max number simultaneously used at any point in the recent past.
+		int maxUsed = 1;
+		long now = System.currentTimeMillis();
+		for(int i = 1; i < lastSimultaneousUsed.length; i++)
 		{
-			// Don't close instances if there's only one left.
-			if(instances.size() <= 1)
+			if(lastSimultaneousUsed[i] > now - FLUSH_SPARES_AFTER)
 			{
-				return;
+				maxUsed = i + 1;
 			}
+		}
 
-			// Work out the max number simultaneously used at any point in the recent past.
-			int maxUsed = 1;
-			long now = System.currentTimeMillis();
-			for(int i = 1; i < lastSimultaneousUsed.length; i++)
+		// If it's less than currently active, remove some.
+		if(maxUsed < count)
+		{
+			int flush = count - maxUsed;
+
+			// Sort idle instances so as to remove oldest instances first.
+			NavigableSet<MathJaxNodeInstance> idleReversed = new TreeSet<MathJaxNodeInstance>();
+			for(InstancePool pool : pools.values())
 			{
-				if(lastSimultaneousUsed[i] > now - FLUSH_SPARES_AFTER)
+				for(MathJaxNodeInstance possible : pool.getMembers())
 				{
-					maxUsed = i + 1;
+					if(possible.getUsers() == 0)
+					{
+						idleReversed.add(possible);
+					}
 				}
 			}
+			idleReversed = idleReversed.descendingSet();
 
-			// If it's less than currently active, remove some.
-			if(maxUsed < instances.size())
+			// First remove anything using a non-default font, then default-font
+			// instances too.
+			List<MathJaxNodeInstance> forTheChop = new ArrayList<MathJaxNodeInstance>(maxInstances);
+			for(MathJaxNodeInstance spare : idleReversed)
 			{
-				int flush = instances.size() - maxUsed;
-				List<MathJaxNodeInstance> forTheChop = new ArrayList<MathJaxNodeInstance>(maxInstances);
-				
-				// use a reverse order view to remove oldest instances first
-				NavigableSet<MathJaxNodeInstance> availableReversed = availableInstances.descendingSet();
-				
-				// First remove anything using a non-default font.
-				for(MathJaxNodeInstance spare : availableReversed)
+				if(!spare.getFont().equals(InputEquation.DEFAULT_FONT))
 				{
-					if(!spare.getFont().equals(InputEquation.DEFAULT_FONT))
-					{
-						forTheChop.add(spare);
-						flush--;
-						if(flush <= 0)
-						{
-							break;
-						}
-					}
+					forTheChop.add(spare);
 				}
-				// Now remove default-font instances too.
-				if(flush > 0)
+			}
+			for(MathJaxNodeInstance spare : idleReversed)
+			{
+				if(spare.getFont().equals(InputEquation.DEFAULT_FONT))
 				{
-					for(MathJaxNodeInstance spare : availableReversed)
-					{
-						forTheChop.add(spare);
-						flush--;
-						if(flush <= 0)
-						{
-							break;
-						}
-					}
+					forTheChop.add(spare);
 				}
-				
-				for(MathJaxNodeInstance spare : forTheChop)
+			}
+
+			for(MathJaxNodeInstance spare : forTheChop)
+			{
+				if(flush <= 0)
+				{
+					break;
+				}
+				// Keep the minimum number of idle instances for the font.
+				InstancePool pool = getPool(spare.getFont());
+				Integer min = minIdle.get(spare.getFont());
+				if(min != null && countIdle(pool) <= min)
+				{
+					continue;
+				}
+				// Only close it if nobody started using it meanwhile.
+				if(spare.retireIfIdle())
 				{
+					pool.remove(spare);
+					instanceCount.decrementAndGet();
 					spare.closeInstance();
-					availableInstances.remove(spare);
-					instances.remove(spare);
+					flush--;
+					wakeCapacityWaiter();
 				}
 			}
 		}
@@ -972,14 +1763,22 @@ public class MathJaxNodeExecutable
 	{
 		checker.close();
 		checker = null;
-		synchronized(instances)
+		for(InstancePool pool : pools.values())
 		{
-			while(!instances.isEmpty())
+			for(MathJaxNodeInstance instance : pool.getMembers())
 			{
-				MathJaxNodeInstance instance = instances.remove(0);
-				instance.closeInstance();
+				if(pool.remove(instance))
+				{
+					instance.retire();
+					instanceCount.decrementAndGet();
+					instance.closeInstance();
+				}
 			}
 		}
+		if(diskStore != null)
+		{
+			diskStore.close();
+		}
 	}
 
 	/**
@@ -988,16 +1787,13 @@ public class MathJaxNodeExecutable
 	 */
 	public Status getStatus()
 	{
-		int hits, misses;
-		synchronized(cache)
-		{
-			hits = countCacheHits;
-			misses = countCacheMisses;
-		}
-
+		ResultCache.Stats cacheStats = cache.getStats();
+		ResultCache.Stats diskCacheStats = diskStore == null ? null : diskStore.getStats();
 		synchronized(errors)
 		{
-			return new Status(hits, misses, countErrors,
+			return new Status(ready, cacheStats, diskCacheStats, admission.getDepth(),
+				admission.getMaxDepth(), admission.getRejections(),
+				admission.getSortedWaits(), countErrors,
 				errors.toArray(new Error[errors.size()]), equationTimes);
 		}
 	}
@@ -1037,4 +1833,12 @@ public class MathJaxNodeExecutable
 	{
 		return maxInstances;
 	}
+
+	/**
+	 * @return Maximum number of requests sent to a single instance at once
+	 */
+	public int getPipelineDepth()
+	{
+		return pipelineDepth;
+	}
 }
@@ -2,6 +2,9 @@ package uk.ac.open.lts.webmaths.mathjax;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.*;
 
 /**
@@ -9,16 +12,35 @@ import java.util.logging.*;
  * <p>
  * Sorted by start date - the reason for this is so that we can close them
  * starting from the older ones first.
+ * <p>
+ * Each request is tagged with an ID so that several requests can be sent
+ * before the results come back; a {@link ResultReader} matches results to
+ * requests.
  */
 class MathJaxNodeInstance implements Comparable<MathJaxNodeInstance>
 {
 	private long started;
-	private TimeoutReader stdout;
+	private ResultReader stdout;
 	private OutputStream stdin;
 	private Process process;
 	private MathJaxNodeExecutable parent;
 	private String font;
 
+	/**
+	 * Number of requests currently using this instance, or -1 once it has been
+	 * taken out of use.
+	 */
+	private final AtomicInteger users = new AtomicInteger();
+
+	/** ID for next request. */
+	private int nextRequestId = 1;
+
+	/**
+	 * Held while writing to the process or closing it. (A lock rather than a
+	 * monitor, so that virtual threads blocked on the pipe can unmount.)
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
 	private final static Logger LOGGER = Logger.getLogger(MathJaxNodeInstance.class.getName());
 
 	/**
@@ -32,6 +54,18 @@ class MathJaxNodeInstance implements Comparable<MathJaxNodeInstance>
 		this.font = font;
 	}
 
+	/**
+	 * Constructor for unit testing only, which reads results from a stream.
+	 * @param started Time started
+	 * @param font Font
+	 * @param stdout Stream containing results
+	 */
+	protected MathJaxNodeInstance(long started, String font, InputStream stdout)
+	{
+		this(started, font);
+		this.stdout = new ResultReader(stdout);
+	}
+
 	/**
 	 * @param executablePath Path to executable script
 	 * @param mathJaxFolder Path to MathJax folder
@@ -51,7 +85,7 @@ class MathJaxNodeInstance implements Comparable<MathJaxNodeInstance>
 			font
 		};
 		process = Runtime.getRuntime().exec(executableParams);
-		stdout = new TimeoutReader(process.getInputStream());
+		stdout = new ResultReader(process.getInputStream());
 		stdin = process.getOutputStream();
 		this.font = font;
 		this.parent = parent;
@@ -65,15 +99,155 @@ class MathJaxNodeInstance implements Comparable<MathJaxNodeInstance>
 		return font;
 	}
 
-	synchronized void closeInstance()
+	/**
+	 * @return Number of requests currently using this instance (-1 if closed)
+	 */
+	int getUsers()
+	{
+		return users.get();
+	}
+
+	/**
+	 * Reserves a request slot if the instance is idle.
+	 * @return True if reserved
+	 */
+	boolean tryReserveIdle()
 	{
-		checkNotClosed();
-		stdout.requestExit();
-		process.destroy();
-		process = null;
-		stdout.waitForExit();
-		stdout = null;
-		stdin = null;
+		return users.compareAndSet(0, 1);
+	}
+
+	/**
+	 * Reserves a request slot if the instance is already in use but can accept
+	 * another request.
+	 * @param pipelineDepth Maximum number of requests at once
+	 * @return True if reserved
+	 */
+	boolean tryReserveExtra(int pipelineDepth)
+	{
+		while(true)
+		{
+			int current = users.get();
+			if(current < 1 || current >= pipelineDepth)
+			{
+				return false;
+			}
+			if(users.compareAndSet(current, current + 1))
+			{
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Releases a request slot.
+	 * @return Number of requests still using the instance
+	 */
+	int releaseUser()
+	{
+		return users.decrementAndGet();
+	}
+
+	/**
+	 * Marks the instance as taken out of use, if it is idle.
+	 * @return True if it was idle and is now marked
+	 */
+	boolean retireIfIdle()
+	{
+		return users.compareAndSet(0, -1);
+	}
+
+	/**
+	 * Marks the instance as taken out of use (e.g. after an error).
+	 */
+	void retire()
+	{
+		users.set(-1);
+	}
+
+	/**
+	 * Sends a request to the application. Does not wait for the result.
+	 * @param format Format line
+	 * @param value Equation content (must not contain blank lines)
+	 * @return Request ID, for use with {@link #readResult(int)}
+	 * @throws IOException Any error
+	 */
+	int sendRequest(String format, String value) throws IOException
+	{
+		return sendRequest(format, value, ConversionOutput.ALL);
+	}
+
+	/**
+	 * Sends a request to the application for some outputs only. Does not wait
+	 * for the result.
+	 * @param format Format line
+	 * @param value Equation content (must not contain blank lines)
+	 * @param outputs Outputs required
+	 * @return Request ID, for use with {@link #readResult(int)}
+	 * @throws IOException Any error
+	 */
+	int sendRequest(String format, String value, Set<ConversionOutput> outputs)
+		throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if(users.get() < 0)
+			{
+				throw new IOException("MathJax instance has already been closed");
+			}
+			int id = nextRequestId++;
+			stdout.expect(id);
+			sendLine("<<REQUEST:" + id);
+			if(!outputs.containsAll(ConversionOutput.ALL))
+			{
+				StringBuilder line = new StringBuilder();
+				for(ConversionOutput output : outputs)
+				{
+					line.append(line.length() == 0 ? "<<OUTPUTS:" : ",");
+					line.append(output.name());
+				}
+				sendLine(line.toString());
+			}
+			sendLine(format);
+			sendLine(value);
+			sendLine("");
+			flush();
+			return id;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the result of a request.
+	 * @param id Request ID from {@link #sendRequest(String, String)}
+	 * @return Map from section name (ERRORS, SVG, MATHML, SPEECH) to section content
+	 * @throws IOException Any error reading output, or timeout
+	 */
+	Map<String, String> readResult(int id) throws IOException
+	{
+		return stdout.getResult(id, MathJaxNodeExecutable.PROCESSING_TIMEOUT);
+	}
+
+	void closeInstance()
+	{
+		lock.lock();
+		try
+		{
+			checkNotClosed();
+			stdout.requestExit();
+			process.destroy();
+			process = null;
+			stdout.waitForExit();
+			stdout = null;
+			stdin = null;
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -81,11 +255,19 @@ class MathJaxNodeInstance implements Comparable<MathJaxNodeInstance>
 	 * @param text Text to send
 	 * @throws IOException Any error
 	 */
-	synchronized void sendLine(String text) throws IOException
+	void sendLine(String text) throws IOException
 	{
-		checkNotClosed();
-		stdin.write((text + "\n").getBytes(Charset.forName("UTF-8")));
-		parent.log("[SENT] " + text);
+		lock.lock();
+		try
+		{
+			checkNotClosed();
+			stdin.write((text + "\n").getBytes(Charset.forName("UTF-8")));
+			parent.log("[SENT] " + text);
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	private void checkNotClosed()
@@ -96,41 +278,51 @@ class MathJaxNodeInstance implements Comparable<MathJaxNodeInstance>
 		}
 	}
 
-	synchronized void flush() throws IOException
-	{
-		checkNotClosed();
-		stdin.flush();
-	}
-
-	synchronized String readLine() throws IOException
+	void flush() throws IOException
 	{
-		checkNotClosed();
-		return stdout.getNextLine(MathJaxNodeExecutable.PROCESSING_TIMEOUT);
+		lock.lock();
+		try
+		{
+			checkNotClosed();
+			stdin.flush();
+		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
-	synchronized String closeWithStderr() throws IOException
+	String closeWithStderr() throws IOException
 	{
-		checkNotClosed();
-		TimeoutReader stderr = new TimeoutReader(process.getErrorStream());
-		StringBuilder out = new StringBuilder();
+		lock.lock();
 		try
 		{
-			for(int i=0; i<100; i++)
+			checkNotClosed();
+			TimeoutReader stderr = new TimeoutReader(process.getErrorStream());
+			StringBuilder out = new StringBuilder();
+			try
+			{
+				for(int i=0; i<100; i++)
+				{
+					String line = stderr.getNextLine(1000);
+					out.append(line);
+					out.append('\n');
+				}
+			}
+			catch(IOException e2)
 			{
-				String line = stderr.getNextLine(1000);
-				out.append(line);
-				out.append('\n');
+				parent.log("Exception while reading stderr");
+				e2.printStackTrace();
 			}
+			stderr.requestExit();
+			closeInstance();
+			stderr.waitForExit();
+			return out.toString();
 		}
-		catch(IOException e2)
+		finally
 		{
-			parent.log("Exception while reading stderr");
-			e2.printStackTrace();
+			lock.unlock();
 		}
-		stderr.requestExit();
-		closeInstance();
-		stderr.waitForExit();
-		return out.toString();
 	}
 
 	@Override
@@ -0,0 +1,33 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when an equation can't be processed because too many
+ * others are waiting for MathJax.
+ */
+public class MathJaxOverloadedException extends IOException
+{
+	MathJaxOverloadedException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,307 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.awt.RenderingHints;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.batik.gvt.renderer.ImageRenderer;
+import org.apache.batik.transcoder.*;
+import org.apache.batik.transcoder.image.PNGTranscoder;
+
+/**
+ * Converts SVG to PNG, keeping a pool of transcoders so that the expensive
+ * parts can be reused.
+ * <p>
+ * If enabled, MathJax SVG is drawn directly with Java2D by
+ * {@link SvgPathRenderer}, which is much faster; Batik is only used for SVG
+ * that it doesn't support.
+ * <p>
+ * Each pooled transcoder keeps its renderer (with the rendering hints already
+ * set up, and its working raster), an image that the result is drawn into, and
+ * the buffer that the PNG is written to. Images are allocated in sizes rounded
+ * up to {@link #BUCKET_PIXELS}, so that equations of similar size can share
+ * them. Very large images and buffers are not kept.
+ */
+class PngRasteriser
+{
+	/** Image sizes are rounded up to a multiple of this. */
+	private final static int BUCKET_PIXELS = 64;
+
+	/** Images (and renderers) larger than this many pixels are not reused. */
+	private final static int MAX_RETAINED_PIXELS = 1024 * 1024;
+
+	/** PNG buffers that grow larger than this are not reused. */
+	private final static int MAX_RETAINED_BYTES = 256 * 1024;
+
+	/** Initial size of PNG buffer. */
+	private final static int INITIAL_BUFFER_BYTES = 8 * 1024;
+
+	/** High quality rendering settings. */
+	final static RenderingHints QUALITY_HINTS = new RenderingHints(null);
+	static
+	{
+		QUALITY_HINTS.put(RenderingHints.KEY_ALPHA_INTERPOLATION,
+			RenderingHints.VALUE_ALPHA_INTERPOLATION_QUALITY);
+		QUALITY_HINTS.put(RenderingHints.KEY_INTERPOLATION,
+			RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+
+		QUALITY_HINTS.put(RenderingHints.KEY_ANTIALIASING,
+			RenderingHints.VALUE_ANTIALIAS_ON);
+
+		QUALITY_HINTS.put(RenderingHints.KEY_COLOR_RENDERING,
+			RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+		QUALITY_HINTS.put(RenderingHints.KEY_DITHERING,
+			RenderingHints.VALUE_DITHER_DISABLE);
+
+		QUALITY_HINTS.put(RenderingHints.KEY_RENDERING,
+			RenderingHints.VALUE_RENDER_QUALITY);
+
+		QUALITY_HINTS.put(RenderingHints.KEY_STROKE_CONTROL,
+			RenderingHints.VALUE_STROKE_PURE);
+	}
+
+	private final int maxIdle;
+	private final boolean direct;
+	private final LinkedList<PooledTranscoder> idle = new LinkedList<PooledTranscoder>();
+	private final AtomicLong fallbacks = new AtomicLong();
+
+	/**
+	 * @param maxIdle Maximum number of transcoders kept for reuse (more may be
+	 *   created if there are more threads rendering at once)
+	 * @param direct True to draw MathJax SVG directly with Java2D where
+	 *   possible; false to always use Batik
+	 */
+	PngRasteriser(int maxIdle, boolean direct)
+	{
+		this.maxIdle = maxIdle;
+		this.direct = direct;
+	}
+
+	/**
+	 * Converts SVG to PNG.
+	 * @param svg SVG (pixel format)
+	 * @return PNG data
+	 * @throws IOException Any error processing
+	 */
+	byte[] rasterise(String svg) throws IOException
+	{
+		PooledTranscoder transcoder = reserve();
+		try
+		{
+			byte[] png = direct ? transcoder.rasteriseDirect(svg) : null;
+			if(png == null)
+			{
+				if(direct)
+				{
+					fallbacks.incrementAndGet();
+				}
+				png = transcoder.rasterise(svg);
+			}
+			release(transcoder);
+			return png;
+		}
+		catch(TranscoderException e)
+		{
+			// The transcoder is not released, in case it was left in a bad state.
+			e.printStackTrace();
+			throw new IOException("Transcoder failed", e);
+		}
+	}
+
+	/**
+	 * @return Number of images that had to be rendered with Batik because the
+	 *   direct renderer didn't support them
+	 */
+	long getFallbackCount()
+	{
+		return fallbacks.get();
+	}
+
+	/**
+	 * @return Number of transcoders currently available for reuse
+	 */
+	synchronized int getIdleCount()
+	{
+		return idle.size();
+	}
+
+	/**
+	 * Reserves a transcoder. After this returns you should call
+	 * {@link #release(PooledTranscoder)}.
+	 * @return Transcoder from the pool, or a new one
+	 */
+	private synchronized PooledTranscoder reserve()
+	{
+		if(idle.isEmpty())
+		{
+			return new PooledTranscoder();
+		}
+		return idle.removeFirst();
+	}
+
+	/**
+	 * Returns a transcoder to the pool, unless it is full.
+	 * @param transcoder Transcoder
+	 */
+	private synchronized void release(PooledTranscoder transcoder)
+	{
+		if(idle.size() < maxIdle)
+		{
+			idle.addFirst(transcoder);
+		}
+	}
+
+	/**
+	 * PNG transcoder that uses high quality settings and keeps its renderer,
+	 * image and output buffer between calls. Not thread-safe.
+	 */
+	private static class PooledTranscoder extends PNGTranscoder
+	{
+		private ImageRenderer renderer;
+		private BufferedImage image;
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_BYTES);
+
+		/**
+		 * Converts SVG to PNG using Batik.
+		 * @param svg SVG
+		 * @return PNG data
+		 * @throws TranscoderException Any error processing
+		 */
+		byte[] rasterise(String svg) throws TranscoderException
+		{
+			buffer.reset();
+			try
+			{
+				transcode(new TranscoderInput(new StringReader(svg)),
+					new TranscoderOutput(buffer));
+			}
+			finally
+			{
+				// Don't keep the document.
+				if(renderer != null)
+				{
+					renderer.setTree(null);
+				}
+				trim();
+			}
+			return takeBytes();
+		}
+
+		/**
+		 * Converts SVG to PNG by drawing it directly, if supported.
+		 * @param svg SVG
+		 * @return PNG data, or null if the SVG isn't supported
+		 * @throws TranscoderException Any error writing PNG
+		 */
+		byte[] rasteriseDirect(String svg) throws TranscoderException
+		{
+			buffer.reset();
+			try
+			{
+				BufferedImage result = SvgPathRenderer.render(svg, this);
+				if(result == null)
+				{
+					return null;
+				}
+				writeImage(result, new TranscoderOutput(buffer));
+			}
+			finally
+			{
+				trim();
+			}
+			return takeBytes();
+		}
+
+		/**
+		 * Drops the image and renderer if they are too large to be worth reusing.
+		 */
+		private void trim()
+		{
+			if(image != null && image.getWidth() * image.getHeight() > MAX_RETAINED_PIXELS)
+			{
+				image = null;
+				renderer = null;
+			}
+		}
+
+		/**
+		 * @return Contents of PNG buffer (exact size)
+		 */
+		private byte[] takeBytes()
+		{
+			byte[] png = buffer.toByteArray();
+			if(png.length > MAX_RETAINED_BYTES)
+			{
+				buffer = new ByteArrayOutputStream(INITIAL_BUFFER_BYTES);
+			}
+			return png;
+		}
+
+		@Override
+		protected ImageRenderer createRenderer()
+		{
+			if(renderer != null)
+			{
+				return renderer;
+			}
+			renderer = super.createRenderer();
+
+			RenderingHints rh = renderer.getRenderingHints();
+			rh.add(QUALITY_HINTS);
+			renderer.setRenderingHints(rh);
+			return renderer;
+		}
+
+		@Override
+		public BufferedImage createImage(int width, int height)
+		{
+			if(image == null || image.getWidth() < width || image.getHeight() < height)
+			{
+				int bucketWidth = roundUp(Math.max(width, image == null ? 0 : image.getWidth()));
+				int bucketHeight = roundUp(Math.max(height, image == null ? 0 : image.getHeight()));
+				image = new BufferedImage(bucketWidth, bucketHeight, BufferedImage.TYPE_INT_ARGB);
+			}
+			else
+			{
+				// Clear the area that will be used (the result is drawn over it).
+				int[] data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+				int stride = image.getWidth();
+				for(int y = 0; y < height; y++)
+				{
+					Arrays.fill(data, y * stride, y * stride + width, 0);
+				}
+			}
+			return image.getSubimage(0, 0, width, height);
+		}
+
+		/**
+		 * @param size Size in pixels
+		 * @return Size rounded up to the next bucket
+		 */
+		private static int roundUp(int size)
+		{
+			return Math.max(BUCKET_PIXELS,
+				((size + BUCKET_PIXELS - 1) / BUCKET_PIXELS) * BUCKET_PIXELS);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+/**
+ * Scheduling class for an equation. When both kinds are waiting for MathJax,
+ * interactive equations get most of the capacity, so that page views are not
+ * held up by bulk jobs.
+ */
+public enum Priority
+{
+	/** Equation needed to show a page to a user. */
+	INTERACTIVE,
+	/** Equation in a large batch job (e.g. re-rendering a whole course). */
+	BULK
+}
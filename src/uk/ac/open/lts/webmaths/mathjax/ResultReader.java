@@ -0,0 +1,525 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+import java.util.regex.*;
+
+/**
+ * Reads results from the output of a MathJax process.
+ * <p>
+ * A single thread reads the output in large blocks and splits it into
+ * complete results in one pass. Each result is then handed to the request
+ * that is waiting for it, so the waiting thread only wakes up once per result
+ * rather than once per line.
+ * <p>
+ * Sections within a result are normally framed with their length in bytes
+ * (<code>&lt;&lt;SECTION:SVG:1234</code> followed by the content and a line
+ * break), so they are copied straight into an array of the right size. The
+ * older format, with content lines up to <code>&lt;&lt;END:SVG</code>, is
+ * still accepted.
+ * <p>
+ * (Process output streams can't be used with a selector, so one thread per
+ * process is still needed.)
+ * <p>
+ * Requests wait using a {@link ReentrantLock} rather than a monitor, so that
+ * a waiting virtual thread does not hold on to its carrier thread.
+ */
+class ResultReader implements Runnable
+{
+	private final static int BUFFER_SIZE = 64 * 1024;
+
+	private final static int MAXIMUM_LINE_LENGTH = 256 * 1024;
+
+	private final static int MAXIMUM_SECTION_LENGTH = 64 * 1024 * 1024;
+
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	private final static byte[] END_PREFIX = "<<END:".getBytes(UTF8);
+
+	private final static Pattern REGEX_BEGIN_RESULT = Pattern.compile("^<<BEGIN:RESULT(?::([0-9]+))?$");
+	private final static Pattern REGEX_END_RESULT = Pattern.compile("^<<END:RESULT(?::([0-9]+))?$");
+	private final static Pattern REGEX_SECTION = Pattern.compile("^<<SECTION:([A-Z0-9]+):([0-9]+)$");
+	private final static Pattern REGEX_BEGIN = Pattern.compile("^<<BEGIN:([A-Z0-9]+)$");
+	private final static Pattern REGEX_END = Pattern.compile("^<<END:([A-Z0-9]+)$");
+
+	private final InputStream in;
+	private boolean threadExit, exitRequested;
+
+	/** Guards all fields shared with requesting threads. */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Signalled when a result completes, reading fails, or the thread exits. */
+	private final Condition changed = lock.newCondition();
+
+	/** Requests that have been sent but not read, in order. */
+	private final LinkedList<Integer> outstanding = new LinkedList<Integer>();
+
+	/** Results without an ID that arrived before their request was recorded. */
+	private final LinkedList<Map<String, String>> unclaimed = new LinkedList<Map<String, String>>();
+
+	/** Results waiting to be collected. */
+	private final Map<Integer, Map<String, String>> completed =
+		new HashMap<Integer, Map<String, String>>();
+
+	/** Time at which the last result was completed (or reader started). */
+	private long lastProgress;
+
+	/** Set if reading fails; all waiting requests then fail. */
+	private IOException failure;
+
+	// Parser state (only used on reader thread).
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos, limit;
+	private boolean inResult;
+	private String resultId, section;
+	private Map<String, String> sections;
+
+	/** Content of a length-framed section, while it is being read. */
+	private byte[] data;
+	private int dataPos;
+
+	/** Content of a section in the older line-based format. */
+	private ByteArrayOutputStream lines;
+
+	/**
+	 * @param in Input stream to read
+	 */
+	ResultReader(InputStream in)
+	{
+		this.in = in;
+		lastProgress = System.currentTimeMillis();
+		Thread thread = new Thread(this, "stdout reader");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while(true)
+			{
+				processBuffer();
+
+				// Move any incomplete line to the start of the buffer, making it
+				// bigger if the line doesn't fit.
+				if(pos > 0)
+				{
+					System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+					limit -= pos;
+					pos = 0;
+				}
+				if(limit == buffer.length)
+				{
+					if(buffer.length >= MAXIMUM_LINE_LENGTH)
+					{
+						throw new IOException("Exceeded maximum line length");
+					}
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				}
+
+				int read = in.read(buffer, limit, buffer.length - limit);
+				if(read == -1)
+				{
+					throw new EOFException("MathJax process ended unexpectedly");
+				}
+				limit += read;
+			}
+		}
+		catch(IOException e)
+		{
+			lock.lock();
+			try
+			{
+				if(!exitRequested)
+				{
+					failure = e;
+				}
+				else
+				{
+					failure = new IOException("MathJax process has been closed");
+				}
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		finally
+		{
+			lock.lock();
+			try
+			{
+				threadExit = true;
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Processes as much of the buffer as possible.
+	 * @throws IOException If the output is not valid
+	 */
+	private void processBuffer() throws IOException
+	{
+		while(pos < limit)
+		{
+			if(data != null)
+			{
+				// Copy framed section content, then check for the line break after it.
+				int count = Math.min(limit - pos, data.length - dataPos);
+				System.arraycopy(buffer, pos, data, dataPos, count);
+				pos += count;
+				dataPos += count;
+				if(dataPos < data.length || pos == limit)
+				{
+					return;
+				}
+				if(buffer[pos++] != '\n')
+				{
+					throw new IOException("Expecting line break after section: " + section);
+				}
+				sections.put(section, new String(data, UTF8));
+				data = null;
+				section = null;
+				continue;
+			}
+
+			int lineEnd = -1;
+			for(int i = pos; i < limit; i++)
+			{
+				if(buffer[i] == '\n')
+				{
+					lineEnd = i;
+					break;
+				}
+			}
+			if(lineEnd == -1)
+			{
+				return;
+			}
+			int start = pos, length = lineEnd - pos;
+			pos = lineEnd + 1;
+			if(length > 0 && buffer[start + length - 1] == '\r')
+			{
+				length--;
+			}
+
+			// Content lines in the older format are kept as bytes.
+			if(lines != null && !startsWith(start, length, END_PREFIX))
+			{
+				lines.write(buffer, start, length);
+				lines.write('\n');
+				continue;
+			}
+			processLine(new String(buffer, start, length, UTF8));
+		}
+	}
+
+	/**
+	 * @param start Start of line in buffer
+	 * @param length Length of line
+	 * @param prefix Prefix
+	 * @return True if the line starts with the prefix
+	 */
+	private boolean startsWith(int start, int length, byte[] prefix)
+	{
+		if(length < prefix.length)
+		{
+			return false;
+		}
+		for(int i = 0; i < prefix.length; i++)
+		{
+			if(buffer[start + i] != prefix[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Processes a single line of output, other than section content.
+	 * @param text Line (without line break)
+	 * @throws IOException If the output is not valid
+	 */
+	private void processLine(String text) throws IOException
+	{
+		if(!inResult)
+		{
+			Matcher m = REGEX_BEGIN_RESULT.matcher(text);
+			if(!m.matches())
+			{
+				throw new IOException("Expecting result start: " + text);
+			}
+			inResult = true;
+			resultId = m.group(1);
+			sections = new HashMap<String, String>();
+			sections.put("ERRORS", "");
+			sections.put("SVG", "");
+			sections.put("MATHML", "");
+			sections.put("SPEECH", "");
+		}
+		else if(section == null)
+		{
+			Matcher m = REGEX_END_RESULT.matcher(text);
+			if(m.matches())
+			{
+				if(resultId != null && !resultId.equals(m.group(1)))
+				{
+					throw new IOException("Non-matching END, expecting RESULT:" + resultId + ": " + text);
+				}
+				inResult = false;
+				completeResult();
+				return;
+			}
+			m = REGEX_SECTION.matcher(text);
+			if(m.matches())
+			{
+				section = checkSection(m.group(1), text);
+				long length = Long.parseLong(m.group(2));
+				if(length > MAXIMUM_SECTION_LENGTH)
+				{
+					throw new IOException("Exceeded maximum section length: " + text);
+				}
+				data = new byte[(int)length];
+				dataPos = 0;
+				return;
+			}
+			m = REGEX_BEGIN.matcher(text);
+			if(!m.matches())
+			{
+				throw new IOException("Expecting BEGIN line: " + text);
+			}
+			section = checkSection(m.group(1), text);
+			lines = new ByteArrayOutputStream();
+		}
+		else
+		{
+			Matcher m = REGEX_END.matcher(text);
+			if(m.matches())
+			{
+				if(!m.group(1).equals(section))
+				{
+					throw new IOException("Non-matching END, expecting " + section + ": " + text);
+				}
+				sections.put(section, new String(lines.toByteArray(), UTF8));
+				lines = null;
+				section = null;
+				return;
+			}
+			// Not actually an end line, so it's content.
+			lines.write(text.getBytes(UTF8));
+			lines.write('\n');
+		}
+	}
+
+	/**
+	 * Checks a section name.
+	 * @param name Section name
+	 * @param text Line containing name (for error)
+	 * @return Section name
+	 * @throws IOException If the name isn't known
+	 */
+	private String checkSection(String name, String text) throws IOException
+	{
+		if(!sections.containsKey(name))
+		{
+			throw new IOException("Unknown result section: " + text);
+		}
+		return name;
+	}
+
+	/**
+	 * Makes the current result available to its request.
+	 * @throws IOException If the result isn't expected
+	 */
+	private void completeResult() throws IOException
+	{
+		Map<String, String> result = new HashMap<String, String>();
+		for(Map.Entry<String, String> entry : sections.entrySet())
+		{
+			result.put(entry.getKey(), entry.getValue().trim());
+		}
+		sections = null;
+
+		lock.lock();
+		try
+		{
+			if(resultId == null)
+			{
+				// Results without an ID (from older versions of the script) are for
+				// the oldest outstanding request.
+				if(outstanding.isEmpty())
+				{
+					unclaimed.add(result);
+				}
+				else
+				{
+					completed.put(outstanding.removeFirst(), result);
+				}
+			}
+			else
+			{
+				Integer id = Integer.valueOf(resultId);
+				if(!outstanding.remove(id))
+				{
+					throw new IOException("Unexpected result for request " + resultId);
+				}
+				completed.put(id, result);
+			}
+			lastProgress = System.currentTimeMillis();
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records that a request has been sent. Must be called before the request
+	 * is actually sent.
+	 * @param id Request ID
+	 */
+	void expect(int id)
+	{
+		lock.lock();
+		try
+		{
+			if(!unclaimed.isEmpty())
+			{
+				completed.put(id, unclaimed.removeFirst());
+			}
+			else
+			{
+				outstanding.add(id);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the result of a request. Times out if no results at all arrive
+	 * from the process for the given time, so requests queued behind others
+	 * are not timed out while the process is still working.
+	 * @param id Request ID
+	 * @param timeout Timeout in milliseconds
+	 * @return Map from section name (ERRORS, SVG, MATHML, SPEECH) to section content
+	 * @throws IOException If reading fails or times out
+	 */
+	Map<String, String> getResult(int id, long timeout) throws IOException
+	{
+		long started = System.currentTimeMillis();
+		lock.lock();
+		try
+		{
+			while(true)
+			{
+				Map<String, String> result = completed.remove(id);
+				if(result != null)
+				{
+					return result;
+				}
+				if(failure != null)
+				{
+					IOException e = new IOException(failure.getMessage());
+					e.initCause(failure);
+					throw e;
+				}
+				long deadline = Math.max(started, lastProgress) + timeout;
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0)
+				{
+					throw new IOException("Timeout waiting for result from process");
+				}
+				try
+				{
+					changed.await(remaining, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e)
+				{
+					throw new IOException("MathJax processing thread interrupted", e);
+				}
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Requests exit. (Should also close the process after this.)
+	 */
+	void requestExit()
+	{
+		lock.lock();
+		try
+		{
+			exitRequested = true;
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the thread to exit.
+	 */
+	void waitForExit()
+	{
+		lock.lock();
+		try
+		{
+			if(!exitRequested)
+			{
+				throw new IllegalStateException("Must call requestExit first");
+			}
+			while(!threadExit)
+			{
+				changed.await();
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// Ignore.
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
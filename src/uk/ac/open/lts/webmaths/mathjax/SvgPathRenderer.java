@@ -0,0 +1,1067 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.*;
+
+import org.apache.batik.transcoder.image.ImageTranscoder;
+
+/**
+ * Draws SVG from MathJax directly with Java2D, without using Batik.
+ * <p>
+ * MathJax only uses a small part of SVG: glyph paths in
+ * <code>&lt;defs&gt;</code>, referenced by <code>&lt;use&gt;</code> inside
+ * nested <code>&lt;g&gt;</code> elements with transforms, plus
+ * <code>&lt;rect&gt;</code> and <code>&lt;path&gt;</code> for lines and other
+ * shapes, all with simple fill and stroke settings. This class only handles
+ * that part. The SVG is read with a streaming parser and drawn as it goes; if
+ * anything else turns up, it gives up so that the caller can use Batik.
+ * <p>
+ * The result is intended to match Batik, so the image size, view box scaling
+ * (xMidYMid meet) and defaults are the same.
+ * <p>
+ * Parsed glyph paths are cached by ID, as the same glyphs appear in many
+ * equations.
+ */
+final class SvgPathRenderer
+{
+	private final static String SVG_NAMESPACE = "http://www.w3.org/2000/svg";
+	private final static String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+
+	/** Maximum number of glyph paths in the cache (it is cleared when full). */
+	private final static int MAX_CACHED_GLYPHS = 4096;
+
+	/** Cached glyph paths, by ID (the path data is checked as well). */
+	private final static Map<String, CachedPath> GLYPH_CACHE =
+		new ConcurrentHashMap<String, CachedPath>();
+
+	/** Stroke miter limit (SVG default). */
+	private final static float MITER_LIMIT = 4f;
+
+	private final static Pattern REGEX_NUMBER = Pattern.compile(
+		"[-+]?([0-9]+(\\.[0-9]*)?|\\.[0-9]+)([eE][-+]?[0-9]+)?");
+	private final static Pattern REGEX_HEX_COLOUR = Pattern.compile(
+		"#([0-9a-fA-F]{3}|[0-9a-fA-F]{6})");
+
+	/** Basic named colours (others are left to Batik). */
+	private final static Map<String, Color> NAMED_COLOURS = new HashMap<String, Color>();
+	static
+	{
+		String[] colours =
+		{
+			"black", "000000", "silver", "c0c0c0", "gray", "808080", "white", "ffffff",
+			"maroon", "800000", "red", "ff0000", "purple", "800080", "fuchsia", "ff00ff",
+			"green", "008000", "lime", "00ff00", "olive", "808000", "yellow", "ffff00",
+			"navy", "000080", "blue", "0000ff", "teal", "008080", "aqua", "00ffff"
+		};
+		for(int i = 0; i < colours.length; i += 2)
+		{
+			NAMED_COLOURS.put(colours[i], new Color(Integer.parseInt(colours[i + 1], 16)));
+		}
+	}
+
+	private final static XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	static
+	{
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	/**
+	 * Thrown internally when the SVG uses something that isn't supported.
+	 */
+	private final static class UnsupportedException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		UnsupportedException(String message)
+		{
+			super(message);
+		}
+	}
+
+	/**
+	 * Path data that has been parsed.
+	 */
+	private final static class CachedPath
+	{
+		private final String d;
+		private final Path2D.Float path;
+
+		CachedPath(String d, Path2D.Float path)
+		{
+			this.d = d;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * A path from <code>&lt;defs&gt;</code>, with its own presentation
+	 * attributes, which apply on top of the ones inherited from the
+	 * <code>&lt;use&gt;</code>.
+	 */
+	private final static class Glyph
+	{
+		private final Path2D.Float path;
+		private final Map<String, String> attributes;
+
+		Glyph(Path2D.Float path, Map<String, String> attributes)
+		{
+			this.path = path;
+			this.attributes = attributes;
+		}
+	}
+
+	/**
+	 * Inherited presentation settings.
+	 */
+	private final static class Style
+	{
+		/** Fill colour or null for none. */
+		private Color fill = Color.BLACK;
+		/** Stroke colour or null for none. */
+		private Color stroke = null;
+		private float strokeWidth = 1f;
+		private int windingRule = Path2D.WIND_NON_ZERO;
+
+		Style()
+		{
+		}
+
+		Style(Style other)
+		{
+			fill = other.fill;
+			stroke = other.stroke;
+			strokeWidth = other.strokeWidth;
+			windingRule = other.windingRule;
+		}
+	}
+
+	private final ImageTranscoder target;
+	private final Map<String, Glyph> defs = new HashMap<String, Glyph>();
+	private final LinkedList<Style> styles = new LinkedList<Style>();
+	private final LinkedList<AffineTransform> transforms = new LinkedList<AffineTransform>();
+
+	private XMLStreamReader reader;
+	private BufferedImage image;
+	private Graphics2D g;
+
+	/**
+	 * @param target Transcoder used to create the image
+	 */
+	private SvgPathRenderer(ImageTranscoder target)
+	{
+		this.target = target;
+	}
+
+	/**
+	 * Draws SVG into an image.
+	 * @param svg SVG (pixel format)
+	 * @param target Transcoder used to create the image (so that it can be
+	 *   reused)
+	 * @return Image or null if the SVG uses features that aren't supported
+	 */
+	static BufferedImage render(String svg, ImageTranscoder target)
+	{
+		try
+		{
+			return new SvgPathRenderer(target).draw(svg);
+		}
+		catch(UnsupportedException e)
+		{
+			return null;
+		}
+		catch(XMLStreamException e)
+		{
+			return null;
+		}
+		catch(NumberFormatException e)
+		{
+			return null;
+		}
+		catch(IllegalPathStateException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Reads and draws the SVG.
+	 * @param svg SVG
+	 * @return Image
+	 * @throws XMLStreamException If the XML is invalid
+	 * @throws UnsupportedException If anything isn't supported
+	 */
+	private BufferedImage draw(String svg) throws XMLStreamException, UnsupportedException
+	{
+		reader = FACTORY.createXMLStreamReader(new StringReader(svg));
+		try
+		{
+			while(reader.hasNext())
+			{
+				switch(reader.next())
+				{
+					case XMLStreamConstants.START_ELEMENT:
+						startElement();
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						styles.removeLast();
+						transforms.removeLast();
+						break;
+					case XMLStreamConstants.CHARACTERS:
+						checkWhitespace();
+						break;
+					case XMLStreamConstants.DTD:
+					case XMLStreamConstants.ENTITY_REFERENCE:
+						throw new UnsupportedException("DTD");
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+			if(g != null)
+			{
+				g.dispose();
+			}
+		}
+		if(image == null)
+		{
+			throw new UnsupportedException("No root element");
+		}
+		return image;
+	}
+
+	/**
+	 * Handles the start of an element (the reader is on its start tag).
+	 * @throws XMLStreamException If the XML is invalid
+	 * @throws UnsupportedException If the element isn't supported
+	 */
+	private void startElement() throws XMLStreamException, UnsupportedException
+	{
+		String name = reader.getLocalName();
+		if(!SVG_NAMESPACE.equals(reader.getNamespaceURI()))
+		{
+			throw new UnsupportedException("Namespace of " + name);
+		}
+		Map<String, String> attributes = getAttributes();
+		if(image == null)
+		{
+			if(!name.equals("svg"))
+			{
+				throw new UnsupportedException("Root element " + name);
+			}
+			startRoot(attributes);
+			return;
+		}
+		if(name.equals("title") || name.equals("desc"))
+		{
+			skipElement();
+			return;
+		}
+		if(name.equals("defs"))
+		{
+			checkUsed(attributes);
+			readDefs();
+			return;
+		}
+
+		Style style = new Style(styles.getLast());
+		applyStyle(attributes, style);
+		AffineTransform transform = new AffineTransform(transforms.getLast());
+		String transformValue = attributes.remove("transform");
+		if(transformValue != null)
+		{
+			applyTransform(transformValue, transform);
+		}
+
+		if(name.equals("g"))
+		{
+			checkUsed(attributes);
+			styles.add(style);
+			transforms.add(transform);
+			return;
+		}
+		if(name.equals("use"))
+		{
+			String href = attributes.remove("href");
+			Glyph glyph = href != null && href.startsWith("#") ? defs.get(href.substring(1)) : null;
+			if(glyph == null)
+			{
+				throw new UnsupportedException("use " + href);
+			}
+			transform.translate(getNumber(attributes, "x"), getNumber(attributes, "y"));
+			checkUsed(attributes);
+			applyStyle(new HashMap<String, String>(glyph.attributes), style);
+			skipContent();
+			paint(glyph.path, transform, style);
+			return;
+		}
+		if(name.equals("rect"))
+		{
+			float x = getNumber(attributes, "x"), y = getNumber(attributes, "y"),
+				width = getNumber(attributes, "width"), height = getNumber(attributes, "height");
+			if(width < 0 || height < 0)
+			{
+				throw new UnsupportedException("Negative rect size");
+			}
+			checkUsed(attributes);
+			skipContent();
+			if(width > 0 && height > 0)
+			{
+				paint(new Rectangle2D.Float(x, y, width, height), transform, style);
+			}
+			return;
+		}
+		if(name.equals("path"))
+		{
+			String d = attributes.remove("d");
+			if(d == null)
+			{
+				throw new UnsupportedException("path without d");
+			}
+			checkUsed(attributes);
+			skipContent();
+			paint(parsePath(d), transform, style);
+			return;
+		}
+		throw new UnsupportedException("Element " + name);
+	}
+
+	/**
+	 * Handles the root element, creating the image.
+	 * @param attributes Attributes
+	 * @throws UnsupportedException If anything isn't supported
+	 */
+	private void startRoot(Map<String, String> attributes) throws UnsupportedException
+	{
+		float width = getPixels(attributes.remove("width")),
+			height = getPixels(attributes.remove("height"));
+		String viewBox = attributes.remove("viewBox");
+		if(viewBox == null)
+		{
+			throw new UnsupportedException("No viewBox");
+		}
+		NumberReader in = new NumberReader(viewBox);
+		float viewX = in.readNumber(), viewY = in.readNumber(),
+			viewWidth = in.readNumber(), viewHeight = in.readNumber();
+		if(!in.atEnd() || viewWidth <= 0 || viewHeight <= 0)
+		{
+			throw new UnsupportedException("viewBox");
+		}
+
+		// The style on MathJax SVG only positions it in the page.
+		String style = attributes.remove("style");
+		if(style != null)
+		{
+			for(String declaration : style.split(";"))
+			{
+				String property = declaration.split(":")[0].trim();
+				if(!property.isEmpty() && !property.equals("vertical-align") &&
+					!property.startsWith("margin"))
+				{
+					throw new UnsupportedException("Root style " + property);
+				}
+			}
+		}
+
+		Style rootStyle = new Style();
+		applyStyle(attributes, rootStyle);
+		checkUsed(attributes);
+
+		// Same size as Batik uses.
+		int imageWidth = (int)(width + 0.5), imageHeight = (int)(height + 0.5);
+		if(imageWidth <= 0 || imageHeight <= 0)
+		{
+			throw new UnsupportedException("Empty image");
+		}
+		image = target.createImage(imageWidth, imageHeight);
+		g = image.createGraphics();
+		g.setRenderingHints(PngRasteriser.QUALITY_HINTS);
+
+		// View box (preserveAspectRatio xMidYMid meet). Like Batik, this fits the
+		// view box to the rounded image size.
+		double scale = Math.min((double)imageWidth / viewWidth, (double)imageHeight / viewHeight);
+		AffineTransform transform = new AffineTransform();
+		transform.translate((imageWidth - viewWidth * scale) / 2 - viewX * scale,
+			(imageHeight - viewHeight * scale) / 2 - viewY * scale);
+		transform.scale(scale, scale);
+		styles.add(rootStyle);
+		transforms.add(transform);
+	}
+
+	/**
+	 * Reads the content of the <code>&lt;defs&gt;</code> element, up to and
+	 * including its end tag.
+	 * @throws XMLStreamException If the XML is invalid
+	 * @throws UnsupportedException If anything isn't supported
+	 */
+	private void readDefs() throws XMLStreamException, UnsupportedException
+	{
+		while(true)
+		{
+			switch(reader.next())
+			{
+				case XMLStreamConstants.START_ELEMENT:
+				{
+					Map<String, String> attributes = getAttributes();
+					String id = attributes.remove("id"), d = attributes.remove("d");
+					if(!reader.getLocalName().equals("path") ||
+						!SVG_NAMESPACE.equals(reader.getNamespaceURI()) || id == null || d == null)
+					{
+						throw new UnsupportedException("defs content");
+					}
+					// Check the attributes now, but apply them when it is used.
+					Map<String, String> check = new HashMap<String, String>(attributes);
+					applyStyle(check, new Style());
+					checkUsed(check);
+					skipContent();
+					defs.put(id, new Glyph(getGlyphPath(id, d), attributes));
+					break;
+				}
+				case XMLStreamConstants.END_ELEMENT:
+					return;
+				case XMLStreamConstants.CHARACTERS:
+					checkWhitespace();
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Skips the rest of an element, including any content.
+	 * @throws XMLStreamException If the XML is invalid
+	 */
+	private void skipElement() throws XMLStreamException
+	{
+		int depth = 1;
+		while(depth > 0)
+		{
+			int event = reader.next();
+			if(event == XMLStreamConstants.START_ELEMENT)
+			{
+				depth++;
+			}
+			else if(event == XMLStreamConstants.END_ELEMENT)
+			{
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Reads up to the end tag of an element that shouldn't have any content.
+	 * @throws XMLStreamException If the XML is invalid
+	 * @throws UnsupportedException If there is content
+	 */
+	private void skipContent() throws XMLStreamException, UnsupportedException
+	{
+		while(true)
+		{
+			switch(reader.next())
+			{
+				case XMLStreamConstants.END_ELEMENT:
+					return;
+				case XMLStreamConstants.START_ELEMENT:
+					throw new UnsupportedException("Child of " + reader.getLocalName());
+				case XMLStreamConstants.CHARACTERS:
+					checkWhitespace();
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the current text is only whitespace.
+	 * @throws UnsupportedException If not
+	 */
+	private void checkWhitespace() throws UnsupportedException
+	{
+		if(!reader.isWhiteSpace())
+		{
+			throw new UnsupportedException("Text");
+		}
+	}
+
+	/**
+	 * @return Attributes of the current element, by local name (except for
+	 *   attributes in namespaces other than XLink, which include the namespace)
+	 */
+	private Map<String, String> getAttributes()
+	{
+		Map<String, String> attributes = new HashMap<String, String>();
+		for(int i = 0; i < reader.getAttributeCount(); i++)
+		{
+			String namespace = reader.getAttributeNamespace(i);
+			String name = reader.getAttributeLocalName(i);
+			if(namespace != null && !namespace.isEmpty() && !namespace.equals(XLINK_NAMESPACE))
+			{
+				name = "{" + namespace + "}" + name;
+			}
+			attributes.put(name, reader.getAttributeValue(i));
+		}
+		return attributes;
+	}
+
+	/**
+	 * Checks that all the remaining attributes are ones that don't affect
+	 * rendering.
+	 * @param attributes Attributes not already handled
+	 * @throws UnsupportedException If there are any others
+	 */
+	private static void checkUsed(Map<String, String> attributes) throws UnsupportedException
+	{
+		for(String name : attributes.keySet())
+		{
+			if(!name.equals("id") && !name.equals("class") && !name.equals("role") &&
+				!name.equals("focusable") && !name.startsWith("aria-"))
+			{
+				throw new UnsupportedException("Attribute " + name);
+			}
+		}
+	}
+
+	/**
+	 * Applies presentation attributes to a style, removing them from the map.
+	 * @param attributes Attributes
+	 * @param style Style to change
+	 * @throws UnsupportedException If any values aren't supported
+	 */
+	private static void applyStyle(Map<String, String> attributes, Style style)
+		throws UnsupportedException
+	{
+		String fill = attributes.remove("fill");
+		if(fill != null)
+		{
+			style.fill = getColour(fill);
+		}
+		String stroke = attributes.remove("stroke");
+		if(stroke != null)
+		{
+			style.stroke = getColour(stroke);
+		}
+		String strokeWidth = attributes.remove("stroke-width");
+		if(strokeWidth != null)
+		{
+			style.strokeWidth = getPixels(strokeWidth);
+			if(style.strokeWidth < 0)
+			{
+				throw new UnsupportedException("Negative stroke-width");
+			}
+		}
+		String fillRule = attributes.remove("fill-rule");
+		if(fillRule != null)
+		{
+			if(fillRule.equals("nonzero"))
+			{
+				style.windingRule = Path2D.WIND_NON_ZERO;
+			}
+			else if(fillRule.equals("evenodd"))
+			{
+				style.windingRule = Path2D.WIND_EVEN_ODD;
+			}
+			else
+			{
+				throw new UnsupportedException("fill-rule " + fillRule);
+			}
+		}
+	}
+
+	/**
+	 * @param value Colour value
+	 * @return Colour, or null for none
+	 * @throws UnsupportedException If it isn't a supported colour
+	 */
+	private static Color getColour(String value) throws UnsupportedException
+	{
+		value = value.trim();
+		if(value.equals("none"))
+		{
+			return null;
+		}
+		if(value.equals("currentColor"))
+		{
+			// The color property isn't supported, so this is always the default.
+			return Color.BLACK;
+		}
+		if(REGEX_HEX_COLOUR.matcher(value).matches())
+		{
+			String hex = value.substring(1);
+			if(hex.length() == 3)
+			{
+				hex = "" + hex.charAt(0) + hex.charAt(0) + hex.charAt(1) + hex.charAt(1) +
+					hex.charAt(2) + hex.charAt(2);
+			}
+			return new Color(Integer.parseInt(hex, 16));
+		}
+		Color named = NAMED_COLOURS.get(value.toLowerCase());
+		if(named == null)
+		{
+			throw new UnsupportedException("Colour " + value);
+		}
+		return named;
+	}
+
+	/**
+	 * Gets a number attribute (in user units), removing it from the map.
+	 * @param attributes Attributes
+	 * @param name Attribute name
+	 * @return Value, or 0 if not present
+	 * @throws UnsupportedException If the value isn't a plain number
+	 */
+	private static float getNumber(Map<String, String> attributes, String name)
+		throws UnsupportedException
+	{
+		String value = attributes.remove(name);
+		if(value == null)
+		{
+			return 0f;
+		}
+		value = value.trim();
+		if(!REGEX_NUMBER.matcher(value).matches())
+		{
+			throw new UnsupportedException(name + "=" + value);
+		}
+		return Float.parseFloat(value);
+	}
+
+	/**
+	 * @param value Value that is a number, optionally with px units
+	 * @return Number
+	 * @throws UnsupportedException If missing or any other format
+	 */
+	private static float getPixels(String value) throws UnsupportedException
+	{
+		if(value == null)
+		{
+			throw new UnsupportedException("Missing size");
+		}
+		value = value.trim();
+		if(value.endsWith("px"))
+		{
+			value = value.substring(0, value.length() - 2);
+		}
+		if(!REGEX_NUMBER.matcher(value).matches())
+		{
+			throw new UnsupportedException("Size " + value);
+		}
+		return Float.parseFloat(value);
+	}
+
+	/**
+	 * Fills and strokes a shape.
+	 * @param shape Shape
+	 * @param transform Transform (including the view box)
+	 * @param style Style
+	 */
+	private void paint(Shape shape, AffineTransform transform, Style style)
+	{
+		g.setTransform(transform);
+		if(style.fill != null)
+		{
+			if(shape instanceof Path2D && ((Path2D)shape).getWindingRule() != style.windingRule)
+			{
+				Path2D.Float copy = new Path2D.Float(shape);
+				copy.setWindingRule(style.windingRule);
+				shape = copy;
+			}
+			g.setColor(style.fill);
+			g.fill(shape);
+		}
+		if(style.stroke != null && style.strokeWidth > 0)
+		{
+			g.setStroke(new BasicStroke(style.strokeWidth, BasicStroke.CAP_BUTT,
+				BasicStroke.JOIN_MITER, MITER_LIMIT));
+			g.setColor(style.stroke);
+			g.draw(shape);
+		}
+	}
+
+	/**
+	 * Gets the path for a glyph, using the cache if possible.
+	 * @param id Glyph ID
+	 * @param d Path data
+	 * @return Path (must not be changed)
+	 * @throws UnsupportedException If the path data isn't supported
+	 */
+	private static Path2D.Float getGlyphPath(String id, String d) throws UnsupportedException
+	{
+		CachedPath cached = GLYPH_CACHE.get(id);
+		if(cached != null && cached.d.equals(d))
+		{
+			return cached.path;
+		}
+		Path2D.Float path = parsePath(d);
+		if(GLYPH_CACHE.size() >= MAX_CACHED_GLYPHS)
+		{
+			GLYPH_CACHE.clear();
+		}
+		GLYPH_CACHE.put(id, new CachedPath(d, path));
+		return path;
+	}
+
+	/**
+	 * Clears the glyph cache (for testing).
+	 */
+	static void clearGlyphCache()
+	{
+		GLYPH_CACHE.clear();
+	}
+
+	/**
+	 * @return Number of glyphs in the cache (for testing)
+	 */
+	static int getCachedGlyphCount()
+	{
+		return GLYPH_CACHE.size();
+	}
+
+	/**
+	 * Parses SVG path data. Everything except arcs is supported.
+	 * @param d Path data
+	 * @return Path
+	 * @throws UnsupportedException If the path data isn't supported
+	 */
+	static Path2D.Float parsePath(String d) throws UnsupportedException
+	{
+		Path2D.Float path = new Path2D.Float();
+		NumberReader in = new NumberReader(d);
+		char command = 0, previous = 0;
+		float x = 0, y = 0, startX = 0, startY = 0, controlX = 0, controlY = 0;
+		boolean closed = false;
+		while(!in.atEnd())
+		{
+			if(!in.atNumber())
+			{
+				command = in.next();
+			}
+			else if(command == 0 || command == 'Z' || command == 'z')
+			{
+				throw new UnsupportedException("Path data " + d);
+			}
+			char upper = Character.toUpperCase(command);
+			boolean relative = command != upper;
+			if(closed && upper != 'M' && upper != 'Z')
+			{
+				// Drawing after Z continues from the start of the subpath.
+				path.moveTo(startX, startY);
+			}
+			closed = false;
+			float offsetX = relative ? x : 0, offsetY = relative ? y : 0;
+			switch(upper)
+			{
+				case 'M':
+					x = offsetX + in.readNumber();
+					y = offsetY + in.readNumber();
+					path.moveTo(x, y);
+					startX = x;
+					startY = y;
+					// Further coordinate pairs are lines.
+					command = relative ? 'l' : 'L';
+					break;
+				case 'L':
+					x = offsetX + in.readNumber();
+					y = offsetY + in.readNumber();
+					path.lineTo(x, y);
+					break;
+				case 'H':
+					x = offsetX + in.readNumber();
+					path.lineTo(x, y);
+					break;
+				case 'V':
+					y = offsetY + in.readNumber();
+					path.lineTo(x, y);
+					break;
+				case 'C':
+				case 'S':
+				{
+					float x1, y1;
+					if(upper == 'C')
+					{
+						x1 = offsetX + in.readNumber();
+						y1 = offsetY + in.readNumber();
+					}
+					else if(previous == 'C' || previous == 'S')
+					{
+						x1 = 2 * x - controlX;
+						y1 = 2 * y - controlY;
+					}
+					else
+					{
+						x1 = x;
+						y1 = y;
+					}
+					controlX = offsetX + in.readNumber();
+					controlY = offsetY + in.readNumber();
+					x = offsetX + in.readNumber();
+					y = offsetY + in.readNumber();
+					path.curveTo(x1, y1, controlX, controlY, x, y);
+					break;
+				}
+				case 'Q':
+				case 'T':
+					if(upper == 'Q')
+					{
+						controlX = offsetX + in.readNumber();
+						controlY = offsetY + in.readNumber();
+					}
+					else if(previous == 'Q' || previous == 'T')
+					{
+						controlX = 2 * x - controlX;
+						controlY = 2 * y - controlY;
+					}
+					else
+					{
+						controlX = x;
+						controlY = y;
+					}
+					x = offsetX + in.readNumber();
+					y = offsetY + in.readNumber();
+					path.quadTo(controlX, controlY, x, y);
+					break;
+				case 'Z':
+					path.closePath();
+					x = startX;
+					y = startY;
+					closed = true;
+					break;
+				default:
+					throw new UnsupportedException("Path command " + command);
+			}
+			previous = upper;
+		}
+		return path;
+	}
+
+	/**
+	 * Applies an SVG transform attribute to a transform.
+	 * @param value Transform attribute value
+	 * @param transform Transform to change
+	 * @throws UnsupportedException If the value isn't supported
+	 */
+	static void applyTransform(String value, AffineTransform transform)
+		throws UnsupportedException
+	{
+		NumberReader in = new NumberReader(value);
+		while(!in.atEnd())
+		{
+			String name = in.readName();
+			in.expect('(');
+			float[] args = new float[6];
+			int count = 0;
+			while(in.atNumber())
+			{
+				if(count == args.length)
+				{
+					throw new UnsupportedException("Transform " + value);
+				}
+				args[count++] = in.readNumber();
+			}
+			in.expect(')');
+
+			if(name.equals("matrix") && count == 6)
+			{
+				transform.concatenate(new AffineTransform(args));
+			}
+			else if(name.equals("translate") && (count == 1 || count == 2))
+			{
+				transform.translate(args[0], args[1]);
+			}
+			else if(name.equals("scale") && (count == 1 || count == 2))
+			{
+				transform.scale(args[0], count == 2 ? args[1] : args[0]);
+			}
+			else if(name.equals("rotate") && (count == 1 || count == 3))
+			{
+				transform.rotate(Math.toRadians(args[0]), args[1], args[2]);
+			}
+			else if(name.equals("skewX") && count == 1)
+			{
+				transform.shear(Math.tan(Math.toRadians(args[0])), 0);
+			}
+			else if(name.equals("skewY") && count == 1)
+			{
+				transform.shear(0, Math.tan(Math.toRadians(args[0])));
+			}
+			else
+			{
+				throw new UnsupportedException("Transform " + value);
+			}
+		}
+	}
+
+	/**
+	 * Reads numbers and commands from path data or transform lists.
+	 */
+	private final static class NumberReader
+	{
+		private final String text;
+		private int pos;
+
+		NumberReader(String text)
+		{
+			this.text = text;
+		}
+
+		/**
+		 * Skips whitespace and commas.
+		 */
+		private void skipSeparators()
+		{
+			while(pos < text.length())
+			{
+				char c = text.charAt(pos);
+				if(c != ' ' && c != ',' && c != '\t' && c != '\r' && c != '\n')
+				{
+					break;
+				}
+				pos++;
+			}
+		}
+
+		/**
+		 * @return True if there is nothing else apart from separators
+		 */
+		boolean atEnd()
+		{
+			skipSeparators();
+			return pos >= text.length();
+		}
+
+		/**
+		 * @return True if the next thing is a number
+		 */
+		boolean atNumber()
+		{
+			if(atEnd())
+			{
+				return false;
+			}
+			char c = text.charAt(pos);
+			return (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '+';
+		}
+
+		/**
+		 * @return Next character (after separators)
+		 * @throws UnsupportedException If at end
+		 */
+		char next() throws UnsupportedException
+		{
+			if(atEnd())
+			{
+				throw new UnsupportedException("Unexpected end: " + text);
+			}
+			return text.charAt(pos++);
+		}
+
+		/**
+		 * Reads an expected character.
+		 * @param expected Character
+		 * @throws UnsupportedException If it's something else
+		 */
+		void expect(char expected) throws UnsupportedException
+		{
+			if(next() != expected)
+			{
+				throw new UnsupportedException("Expected " + expected + ": " + text);
+			}
+		}
+
+		/**
+		 * @return Name made of letters
+		 * @throws UnsupportedException If there isn't one
+		 */
+		String readName() throws UnsupportedException
+		{
+			skipSeparators();
+			int start = pos;
+			while(pos < text.length() && Character.isLetter(text.charAt(pos)))
+			{
+				pos++;
+			}
+			if(pos == start)
+			{
+				throw new UnsupportedException("Expected name: " + text);
+			}
+			return text.substring(start, pos);
+		}
+
+		/**
+		 * @return Number
+		 * @throws UnsupportedException If there isn't a valid number
+		 */
+		float readNumber() throws UnsupportedException
+		{
+			skipSeparators();
+			int start = pos;
+			if(pos < text.length() && (text.charAt(pos) == '-' || text.charAt(pos) == '+'))
+			{
+				pos++;
+			}
+			int digits = skipDigits();
+			if(pos < text.length() && text.charAt(pos) == '.')
+			{
+				pos++;
+				digits += skipDigits();
+			}
+			if(digits == 0)
+			{
+				throw new UnsupportedException("Expected number: " + text);
+			}
+			if(pos + 1 < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E'))
+			{
+				int exponent = pos;
+				pos++;
+				if(text.charAt(pos) == '-' || text.charAt(pos) == '+')
+				{
+					pos++;
+				}
+				if(skipDigits() == 0)
+				{
+					// Not an exponent after all.
+					pos = exponent;
+				}
+			}
+			return Float.parseFloat(text.substring(start, pos));
+		}
+
+		/**
+		 * @return Number of digits skipped
+		 */
+		private int skipDigits()
+		{
+			int start = pos;
+			while(pos < text.length() && text.charAt(pos) >= '0' && text.charAt(pos) <= '9')
+			{
+				pos++;
+			}
+			return pos - start;
+		}
+	}
+}
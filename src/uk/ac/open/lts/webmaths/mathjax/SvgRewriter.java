@@ -0,0 +1,324 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Rewrites SVG from MathJax in a single pass.
+ * <p>
+ * Only the attributes of the root <code>&lt;svg&gt;</code> element are
+ * parsed, so they can be read and changed. When the result is written, the
+ * rest of the document is copied as-is, except that <code>currentColor</code>
+ * stroke and fill values can be replaced with a colour.
+ * <p>
+ * There is also a method to read the title (speech text) with a single scan.
+ */
+class SvgRewriter
+{
+	private final static String ROOT_START = "<svg";
+	private final static String CURRENT_COLOUR = "\"currentColor\"";
+
+	private final String svg;
+
+	/** Root attributes in order (names and values; values are not unescaped). */
+	private final List<String> names = new ArrayList<String>(), values = new ArrayList<String>();
+
+	/** Index just after the root start tag. */
+	private final int contentStart;
+
+	/** True if the root tag was empty (ended with /&gt;). */
+	private final boolean emptyRoot;
+
+	/**
+	 * Parses the root start tag.
+	 * @param svg SVG text
+	 * @throws IOException If the root start tag can't be parsed
+	 */
+	SvgRewriter(String svg) throws IOException
+	{
+		this.svg = svg;
+		int pos = svg.indexOf(ROOT_START);
+		if(pos == -1)
+		{
+			throw new IOException("Unexpected SVG format (no root element)");
+		}
+		pos += ROOT_START.length();
+		int length = svg.length();
+		while(true)
+		{
+			int nameStart = skipSpace(pos);
+			if(nameStart >= length)
+			{
+				throw new IOException("Unexpected SVG format (unterminated root element)");
+			}
+			char c = svg.charAt(nameStart);
+			if(c == '>')
+			{
+				emptyRoot = false;
+				contentStart = nameStart + 1;
+				return;
+			}
+			if(c == '/' && svg.startsWith("/>", nameStart))
+			{
+				emptyRoot = true;
+				contentStart = nameStart + 2;
+				return;
+			}
+			if(nameStart == pos)
+			{
+				throw new IOException("Unexpected SVG format (root element)");
+			}
+
+			int nameEnd = nameStart;
+			while(nameEnd < length && "= \t\r\n/>".indexOf(svg.charAt(nameEnd)) == -1)
+			{
+				nameEnd++;
+			}
+			int equals = skipSpace(nameEnd);
+			if(equals >= length || svg.charAt(equals) != '=')
+			{
+				throw new IOException("Unexpected SVG format (root attribute)");
+			}
+			int quote = skipSpace(equals + 1);
+			if(quote >= length || (svg.charAt(quote) != '"' && svg.charAt(quote) != '\''))
+			{
+				throw new IOException("Unexpected SVG format (root attribute)");
+			}
+			int valueEnd = svg.indexOf(svg.charAt(quote), quote + 1);
+			if(valueEnd == -1)
+			{
+				throw new IOException("Unexpected SVG format (root attribute)");
+			}
+			names.add(svg.substring(nameStart, nameEnd));
+			values.add(svg.substring(quote + 1, valueEnd).replace("\"", "&quot;"));
+			pos = valueEnd + 1;
+		}
+	}
+
+	/**
+	 * Makes a copy, so that the same SVG can be rewritten in different ways
+	 * without parsing it again.
+	 * @param other Rewriter to copy
+	 */
+	SvgRewriter(SvgRewriter other)
+	{
+		this.svg = other.svg;
+		this.names.addAll(other.names);
+		this.values.addAll(other.values);
+		this.contentStart = other.contentStart;
+		this.emptyRoot = other.emptyRoot;
+	}
+
+	/**
+	 * @param pos Position in SVG
+	 * @return Position of next non-whitespace character (or end of string)
+	 */
+	private int skipSpace(int pos)
+	{
+		while(pos < svg.length() && Character.isWhitespace(svg.charAt(pos)))
+		{
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param name Attribute name
+	 * @return Attribute value (as written in the SVG) or "" if not present
+	 */
+	String getAttribute(String name)
+	{
+		int index = names.indexOf(name);
+		return index == -1 ? "" : values.get(index);
+	}
+
+	/**
+	 * Sets an attribute on the root element. Adds it at the end if it isn't
+	 * already present.
+	 * @param name Attribute name
+	 * @param value New value (must not need escaping)
+	 */
+	void setAttribute(String name, String value)
+	{
+		int index = names.indexOf(name);
+		if(index == -1)
+		{
+			names.add(name);
+			values.add(value);
+		}
+		else
+		{
+			values.set(index, value);
+		}
+	}
+
+	/**
+	 * Gets the text of the first <code>&lt;title&gt;</code> element in SVG (which
+	 * MathJax uses for the speech text), without parsing the rest.
+	 * @param svg SVG text
+	 * @return Title text, unescaped and with whitespace normalised
+	 * @throws IllegalArgumentException If there isn't a title
+	 */
+	static String getTitle(String svg) throws IllegalArgumentException
+	{
+		int start = svg.indexOf("<title");
+		while(start != -1 && start + 6 < svg.length() &&
+			" \t\r\n/>".indexOf(svg.charAt(start + 6)) == -1)
+		{
+			start = svg.indexOf("<title", start + 6);
+		}
+		int contentStart = start == -1 ? 0 : svg.indexOf('>', start) + 1;
+		if(contentStart == 0)
+		{
+			throw new IllegalArgumentException("SVG does not include <title>");
+		}
+		if(svg.charAt(contentStart - 2) == '/')
+		{
+			return "";
+		}
+		int end = svg.indexOf("</title>", contentStart);
+		if(end == -1)
+		{
+			throw new IllegalArgumentException("SVG does not include <title>");
+		}
+
+		// Unescape entities (the title only contains text).
+		StringBuilder out = new StringBuilder(end - contentStart);
+		for(int i = contentStart; i < end; i++)
+		{
+			char c = svg.charAt(i);
+			int semicolon = c == '&' ? svg.indexOf(';', i) : -1;
+			int codePoint = semicolon != -1 && semicolon < end ?
+				getEntity(svg.substring(i + 1, semicolon)) : -1;
+			if(codePoint != -1)
+			{
+				out.appendCodePoint(codePoint);
+				i = semicolon;
+			}
+			else
+			{
+				out.append(c);
+			}
+		}
+		return normalizeSpace(out.toString());
+	}
+
+	/**
+	 * @param entity XML entity name without &amp; and ;
+	 * @return Character or -1 if not a known entity
+	 */
+	private static int getEntity(String entity)
+	{
+		try
+		{
+			if(entity.startsWith("#x"))
+			{
+				return Integer.parseInt(entity.substring(2), 16);
+			}
+			if(entity.startsWith("#"))
+			{
+				return Integer.parseInt(entity.substring(1));
+			}
+		}
+		catch(NumberFormatException e)
+		{
+			return -1;
+		}
+		int index = Arrays.asList("lt", "gt", "amp", "quot", "apos").indexOf(entity);
+		return index == -1 ? -1 : "<>&\"'".charAt(index);
+	}
+
+	/**
+	 * Normalises whitespace in the same way as the XPath normalize-space
+	 * function.
+	 * @param text Text
+	 * @return Text with leading and trailing whitespace removed, and other
+	 *   whitespace replaced by single spaces
+	 */
+	static String normalizeSpace(String text)
+	{
+		StringBuilder out = new StringBuilder(text.length());
+		boolean space = false;
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if(c == ' ' || c == '\t' || c == '\r' || c == '\n')
+			{
+				space = out.length() > 0;
+				continue;
+			}
+			if(space)
+			{
+				out.append(' ');
+				space = false;
+			}
+			out.append(c);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Writes out the SVG with any changes.
+	 * @param rgb Colour to use in place of currentColor, or null to leave as-is
+	 * @return SVG text
+	 */
+	String write(String rgb)
+	{
+		StringBuilder out = new StringBuilder(svg.length() + 64);
+		out.append(ROOT_START);
+		for(int i = 0; i < names.size(); i++)
+		{
+			String name = names.get(i), value = values.get(i);
+			if(rgb != null && value.equals("currentColor") &&
+				(name.equals("fill") || name.equals("stroke")))
+			{
+				value = rgb;
+			}
+			out.append(' ').append(name).append("=\"").append(value).append('"');
+		}
+		out.append(emptyRoot ? "/>" : ">");
+
+		int pos = contentStart;
+		if(rgb != null)
+		{
+			while(true)
+			{
+				int found = svg.indexOf(CURRENT_COLOUR, pos);
+				if(found == -1)
+				{
+					break;
+				}
+				int after = found + CURRENT_COLOUR.length();
+				if(svg.startsWith(" fill=", found - 6) || svg.startsWith(" stroke=", found - 8))
+				{
+					out.append(svg, pos, found).append('"').append(rgb).append('"');
+				}
+				else
+				{
+					out.append(svg, pos, after);
+				}
+				pos = after;
+			}
+		}
+		out.append(svg, pos, svg.length());
+		return out.toString();
+	}
+}
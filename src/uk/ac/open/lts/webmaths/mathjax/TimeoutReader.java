@@ -20,9 +20,12 @@ package uk.ac.open.lts.webmaths.mathjax;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
 
 /**
- * Line reader that includes support for timeouts.
+ * Line reader that includes support for timeouts. Uses a lock rather than a
+ * monitor so that a virtual thread waiting for a line can unmount.
  */
 class TimeoutReader implements Runnable
 {
@@ -32,6 +35,9 @@ class TimeoutReader implements Runnable
 	private boolean threadExit = false, exitRequested = false;
 	private String currentLine = null;
 
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
 	/**
 	 * @param in Input stream to read
 	 */
@@ -54,23 +60,8 @@ class TimeoutReader implements Runnable
 				if(read == -1)
 				{
 					// At EOF, use everything that's left as a string.
-					synchronized(this)
-					{
-						currentLine = new String(buffer, 0, pos, Charset.forName("UTF-8"));
-						pos = 0;
-						notifyAll();
-						while(currentLine != null && !exitRequested)
-						{
-							try
-							{
-								wait();
-							}
-							catch(InterruptedException e)
-							{
-							}
-						}
-						return;
-					}
+					offerLine(new String(buffer, 0, pos, Charset.forName("UTF-8")));
+					return;
 				}
 				else if(read == 13)
 				{
@@ -80,22 +71,8 @@ class TimeoutReader implements Runnable
 				else if(read == 10)
 				{
 					// At LF, we have a string, so stop and wait.
-					synchronized(this)
-					{
-						currentLine = new String(buffer, 0, pos, Charset.forName("UTF-8"));
-						pos = 0;
-						notifyAll();
-						while(currentLine != null && !exitRequested)
-						{
-							try
-							{
-								wait();
-							}
-							catch(InterruptedException e)
-							{
-							}
-						}
-					}
+					offerLine(new String(buffer, 0, pos, Charset.forName("UTF-8")));
+					pos = 0;
 				}
 				else
 				{
@@ -113,12 +90,46 @@ class TimeoutReader implements Runnable
 		}
 		finally
 		{
-			synchronized(this)
+			lock.lock();
+			try
 			{
 				threadExit = true;
-				notifyAll();
+				changed.signalAll();
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Makes a line available, then waits until it has been taken or exit is
+	 * requested.
+	 * @param line Line
+	 */
+	private void offerLine(String line)
+	{
+		lock.lock();
+		try
+		{
+			currentLine = line;
+			changed.signalAll();
+			while(currentLine != null && !exitRequested)
+			{
+				try
+				{
+					changed.await();
+				}
+				catch(InterruptedException e)
+				{
+				}
 			}
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -129,31 +140,32 @@ class TimeoutReader implements Runnable
 	 */
 	public String getNextLine(long timeout) throws IOException
 	{
-		synchronized(this)
+		lock.lock();
+		try
 		{
-			if(currentLine != null)
-			{
-				String result = currentLine;
-				currentLine = null;
-				notifyAll();
-				return result;
-			}
-			try
-			{
-				wait(timeout);
-			}
-			catch(InterruptedException e)
+			if(currentLine == null)
 			{
+				try
+				{
+					changed.await(timeout, TimeUnit.MILLISECONDS);
+				}
+				catch(InterruptedException e)
+				{
+				}
 			}
 			if(currentLine != null)
 			{
 				String result = currentLine;
 				currentLine = null;
-				notifyAll();
+				changed.signalAll();
 				return result;
 			}
 			throw new IOException("Timeout reading line from process");
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 
 	/**
@@ -161,10 +173,15 @@ class TimeoutReader implements Runnable
 	 */
 	public void requestExit()
 	{
-		synchronized(this)
+		lock.lock();
+		try
 		{
 			exitRequested = true;
-			notifyAll();
+			changed.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
 		}
 	}
 
@@ -173,25 +190,25 @@ class TimeoutReader implements Runnable
 	 */
 	public void waitForExit()
 	{
+		lock.lock();
 		try
 		{
-			synchronized(this)
+			if(!exitRequested)
 			{
-				if(!exitRequested)
-				{
-					throw new IllegalStateException("Must call requestExit first");
-				}
-				exitRequested = true;
-				notifyAll();
-				while(!threadExit)
-				{
-					wait();
-				}
+				throw new IllegalStateException("Must call requestExit first");
+			}
+			while(!threadExit)
+			{
+				changed.await();
 			}
 		}
 		catch(InterruptedException e)
 		{
 			// Ignore.
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
-}
\ No newline at end of file
+}
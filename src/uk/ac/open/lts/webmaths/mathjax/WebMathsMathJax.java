@@ -19,7 +19,8 @@ Copyright 2015 The Open University
 package uk.ac.open.lts.webmaths.mathjax;
 
 import java.io.IOException;
-import java.util.EnumSet;
+import java.util.*;
+import java.util.concurrent.*;
 
 import javax.annotation.Resource;
 import javax.jws.WebService;
@@ -28,6 +29,7 @@ import javax.xml.ws.WebServiceContext;
 import static uk.ac.open.lts.webmaths.mathjax.ConversionType.*;
 
 import uk.ac.open.lts.webmaths.WebMathsService;
+import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.ConversionResults;
 
 @WebService(endpointInterface="uk.ac.open.lts.webmaths.mathjax.MathsMathJaxPort",
 	targetNamespace="http://ns.open.ac.uk/lts/vle/filter_maths/",
@@ -41,69 +43,102 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 	public ConvertEquationsReturn convertEquations(ConvertEquationsParams params)
 	{
 		ConvertEquationsReturn result = new ConvertEquationsReturn();
-		final MathJax mathJax = MathJax.get(context);
+		final MathJax mathJax = getMathJax();
 
 		// Get parameters.
 		final EnumSet<ConversionType> types = EnumSet.noneOf(ConversionType.class);
 		types.addAll(params.getOutputs());
 		final float exSize = params.getExSize();
 		final String rgb = params.getRgb();
+		final Priority priority = params.getPriority() == RequestPriority.INTERACTIVE
+			? Priority.INTERACTIVE : Priority.BULK;
 		final SourceEquation[] equations = params.getEquations().toArray(
 			new SourceEquation[params.getEquations().size()]);
 
-		// Process all the input equations.
-		final OutputData[] allOut = new OutputData[equations.length];
-		final RuntimeException[] weirdError = new RuntimeException[1];
-		final Object synch = new Object();
-		for(int i = 0; i < equations.length; i++)
+		// Start processing all the input equations. Each goes through two
+		// stages: first it waits for MathJax on the MathJax thread pool, then as
+		// soon as that's done the outputs are built on the render pool from the
+		// MathJax results. This means rendering one equation overlaps with
+		// MathJax processing others.
+		List<Future<Future<OutputData>>> futures =
+			new ArrayList<Future<Future<OutputData>>>(equations.length);
+		for(final SourceEquation equation : equations)
 		{
-			final int currentIndex = i;
-			mathJax.executeOnThreadPool(new Runnable()
+			futures.add(mathJax.submitOnThreadPool(new Callable<Future<OutputData>>()
 			{
-				public void run()
+				@Override
+				public Future<OutputData> call()
 				{
-					try
+					final InputEquation eq = InputEquation.getFromSourceEquation(equation);
+					final OutputData out = new OutputData();
+					out.setOk(false);
+					final ConversionResults results = prepareEquation(
+						mathJax, priority, getConversionOutputs(types, eq), eq, out);
+					if(results == null)
 					{
-						OutputData out = processEquation(mathJax, types, exSize, rgb, equations[currentIndex]);
-						synchronized(synch)
-						{
-							allOut[currentIndex]= out;
-							synch.notifyAll();
-						}
+						return finished(out);
 					}
-					catch(RuntimeException e)
+					return mathJax.submitOnRenderPool(new Callable<OutputData>()
 					{
-						synchronized(synch)
+						@Override
+						public OutputData call()
 						{
-							weirdError[0] = e;
-							synch.notifyAll();
+							processEquation(mathJax, types, exSize, rgb, eq, results, out);
+							return out;
 						}
-					}
+					}, priority);
 				}
-			});
+			}, priority));
 		}
 
-		// Wait until all the tasks finish or there is a weird error.
-		while(true)
+		// Wait for each one to finish, up to the deadline for the whole batch.
+		// Equations that aren't done by then get a timeout error. Tasks that
+		// haven't started are cancelled, but ones that are already running are
+		// left to finish (so that the result is cached) rather than interrupted,
+		// because interrupting a conversion closes the MathJax process.
+		long deadline = System.currentTimeMillis() + mathJax.getBatchTimeout();
+		OutputData[] allOut = new OutputData[equations.length];
+		for(int i = 0; i < allOut.length; i++)
 		{
-			synchronized(synch)
+			Future<Future<OutputData>> first = futures.get(i);
+			Future<OutputData> second = null;
+			try
 			{
-				if(weirdError[0] != null)
+				second = first.get(Math.max(0, deadline - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+				allOut[i] = second.get(Math.max(0, deadline - System.currentTimeMillis()),
+					TimeUnit.MILLISECONDS);
+			}
+			catch(TimeoutException e)
+			{
+				first.cancel(false);
+				if(second != null)
 				{
-					throw weirdError[0];
+					second.cancel(false);
 				}
-				int left = allOut.length;
-				for(int i = 0; i < allOut.length; i++)
+				allOut[i] = error("Timed out");
+			}
+			catch(InterruptedException e)
+			{
+				for(Future<Future<OutputData>> other : futures)
 				{
-					if(allOut[i] != null)
-					{
-						left--;
-					}
+					other.cancel(false);
 				}
-				if(left == 0)
+				throw new RuntimeException("Interrupted while waiting for equations", e);
+			}
+			catch(ExecutionException e)
+			{
+				// Unexpected errors (the stages handle the expected ones).
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException)
 				{
-					break;
+					throw (RuntimeException)cause;
 				}
+				if(cause instanceof Error)
+				{
+					throw (Error)cause;
+				}
+				throw new RuntimeException(cause);
 			}
 		}
 
@@ -116,89 +151,187 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 	}
 
 	/**
-	 * Processes a single equation.
-	 * @param mathJax MathJax object
-	 * @param types Required types
-	 * @param exSize Ex size
-	 * @param rgb RGB string
-	 * @param equation Equation to convert
-	 * @return Output data for this equation
+	 * Gets the MathJax object. This is a separate function so that it can be
+	 * overridden for unit testing.
+	 * @return MathJax object
 	 */
-	private OutputData processEquation(MathJax mathJax,
-		EnumSet<ConversionType> types, float exSize, String rgb,
-		SourceEquation equation)
+	protected MathJax getMathJax()
+	{
+		return MathJax.get(context);
+	}
+
+	/**
+	 * Makes an output containing only an error.
+	 * @param message Error message
+	 * @return Output data
+	 */
+	private static OutputData error(String message)
 	{
 		OutputData out = new OutputData();
 		out.setOk(false);
+		out.setError(message);
+		return out;
+	}
 
-		InputEquation eq = InputEquation.getFromSourceEquation(equation);
+	/**
+	 * Makes a future that has already finished.
+	 * @param out Result
+	 * @return Future returning the result
+	 */
+	private static Future<OutputData> finished(final OutputData out)
+	{
+		FutureTask<OutputData> task = new FutureTask<OutputData>(new Callable<OutputData>()
+		{
+			@Override
+			public OutputData call()
+			{
+				return out;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Works out which MathJax outputs are needed for the requested types.
+	 * Anything based on SVG needs all of them; those results are complete, so
+	 * they can also go in the disk cache. MathML output is only produced for
+	 * TeX input.
+	 * @param types Required types
+	 * @param eq Equation
+	 * @return MathJax outputs (empty if MathJax isn't needed)
+	 */
+	private static Set<ConversionOutput> getConversionOutputs(EnumSet<ConversionType> types,
+		InputEquation eq)
+	{
+		EnumSet<ConversionOutput> outputs = EnumSet.noneOf(ConversionOutput.class);
+		if(types.contains(MATHML) && eq instanceof InputTexEquation)
+		{
+			outputs.add(ConversionOutput.MATHML);
+		}
+		if(types.contains(TEXT))
+		{
+			outputs.add(ConversionOutput.SPEECH);
+		}
+		for(ConversionType type : types)
+		{
+			if(type != MATHML && type != TEXT)
+			{
+				return ConversionOutput.ALL;
+			}
+		}
+		return outputs;
+	}
+
+	/**
+	 * Checks an equation and runs it through MathJax (first stage).
+	 * @param mathJax MathJax object
+	 * @param priority Priority when waiting for MathJax
+	 * @param outputs MathJax outputs needed
+	 * @param eq Equation to convert
+	 * @param out Output data, which gets the error if there is one
+	 * @return MathJax results to pass on to
+	 *   {@link #processEquation(MathJax, EnumSet, float, String, InputEquation, ConversionResults, OutputData)},
+	 *   or null if there was an error
+	 */
+	private ConversionResults prepareEquation(MathJax mathJax, Priority priority,
+		Set<ConversionOutput> outputs, InputEquation eq, OutputData out)
+	{
 		if(!eq.isFontValid())
 		{
 			out.setError("Unsupported font: " + eq.getFont());
-			return out;
+			return null;
 		}
 		else if(eq.isEmpty())
 		{
 			out.setError("Empty equation");
-			return out;
+			return null;
+		}
+		else if(outputs.isEmpty())
+		{
+			// Nothing needed from MathJax (e.g. MathML requested for MathML input)
+			return new ConversionResults(null, null);
 		}
 		try
 		{
-			// We need the pixel SVG for lots of things.
-			String pixelSvg = null, exSvg = null;
-			if(types.contains(SVG_PX) || types.contains(PNG) ||
-				types.contains(PNG_BASELINE) || types.contains(SVG_PX_BASELINE) ||
-				types.contains(TEXT))
-			{
-				pixelSvg = mathJax.getSvg(eq, true, exSize, rgb);
-			}
-			if(types.contains(SVG_EX) || types.contains(SVG_EX_BASELINE))
-			{
-				exSvg = mathJax.getSvg(eq, true, MathJax.SIZE_IN_EX, rgb);
-			}
+			return mathJax.prepare(eq, priority, outputs);
+		}
+		catch(MathJaxException e)
+		{
+			out.setError("MathJax failure: " + e.getMessage());
+		}
+		catch(MathJaxOverloadedException e)
+		{
+			out.setError("Overloaded: " + e.getMessage());
+		}
+		catch(IOException e)
+		{
+			out.setError("Unexpected error: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Builds the outputs for a single equation (second stage). This only uses
+	 * the MathJax results from the first stage, so it never waits for MathJax.
+	 * @param mathJax MathJax object
+	 * @param types Required types
+	 * @param exSize Ex size
+	 * @param rgb RGB string
+	 * @param eq Equation to convert
+	 * @param results MathJax results for the equation
+	 * @param out Output data for this equation, which is filled in
+	 */
+	private void processEquation(MathJax mathJax,
+		EnumSet<ConversionType> types, float exSize, String rgb,
+		InputEquation eq, ConversionResults results, OutputData out)
+	{
+		try
+		{
+			// All the SVG-based outputs share one parse of the MathJax output.
+			MathJax.SvgOutputs svgOutputs = mathJax.getSvgOutputs(eq, results, exSize, rgb);
 
 			// If SVG was turned on, store it.
 			if(types.contains(SVG_EX))
 			{
-				out.setSvg(exSvg);
+				out.setSvg(svgOutputs.getExSvg());
 			}
 			else if(types.contains(SVG_PX))
 			{
-				out.setSvg(pixelSvg);
+				out.setSvg(svgOutputs.getPxSvg());
 			}
 
 			if(types.contains(PNG))
 			{
-				out.setPng(mathJax.getPngFromSvg(pixelSvg));
+				out.setPng(svgOutputs.getPng());
 			}
 
 			if(types.contains(TEXT))
 			{
-				out.setText(mathJax.getEnglishFromSvg(pixelSvg));
+				out.setText(results.getSpeech());
 			}
 
 			if(types.contains(SVG_PX_BASELINE))
 			{
-				out.setSvgPxBaseline((float)mathJax.getPxBaselineFromSvg(pixelSvg));
+				out.setSvgPxBaseline((float)svgOutputs.getPxBaseline());
 			}
 			if(types.contains(SVG_EX_BASELINE))
 			{
-				out.setSvgExBaseline((float)mathJax.getExBaselineFromSvg(exSvg));
+				out.setSvgExBaseline((float)svgOutputs.getExBaseline());
 			}
 			if(types.contains(PNG_BASELINE))
 			{
-				out.setPngBaseline((float)mathJax.getPxBaselineFromSvg(
-					MathJax.offsetSvg(pixelSvg, MathJax.PNG_OFFSET)));
+				out.setPngBaseline((float)svgOutputs.getPngBaseline());
 			}
 
 			if(types.contains(MATHML) && eq instanceof InputTexEquation)
 			{
-				out.setMathml(mathJax.getMathml((InputTexEquation)eq));
+				out.setMathml(results.getMathml());
 			}
 
 			if(types.contains(EPS))
 			{
-				out.setEps(mathJax.getEps(eq, exSize, rgb));
+				out.setEps(svgOutputs.getEps());
 			}
 
 			out.setOk(true);
@@ -207,10 +340,13 @@ public class WebMathsMathJax extends WebMathsService implements MathsMathJaxPort
 		{
 			out.setError("MathJax failure: " + e.getMessage());
 		}
+		catch(MathJaxOverloadedException e)
+		{
+			out.setError("Overloaded: " + e.getMessage());
+		}
 		catch(IOException e)
 		{
 			out.setError("Unexpected error: " + e.getMessage());
 		}
-		return out;
 	}
 }
@@ -50,9 +50,10 @@ public class WebMathsMjImage extends WebMathsService implements MathsImagePort
 		try
 		{
 			MathJax mathJax = MathJax.get(context);
-			String svg = mathJax.getSvg(InputEquation.getFromMathml(params.getMathml(), null),
-				true, params.getSize() * MathJax.DEFAULT_EX_SIZE, params.getRgb());
-			result.setImage(mathJax.getPngFromSvg(svg));
+			InputEquation eq = InputEquation.getFromMathml(params.getMathml(), null);
+			double exSize = params.getSize() * MathJax.DEFAULT_EX_SIZE;
+			String svg = mathJax.getSvg(eq, true, exSize, params.getRgb());
+			result.setImage(mathJax.getPng(eq, exSize, params.getRgb()));
 			result.setBaseline(BigInteger.valueOf(Math.round(mathJax.getPxBaselineFromSvg(svg))));
 			result.setOk(true);
 		}
@@ -60,6 +61,10 @@ public class WebMathsMjImage extends WebMathsService implements MathsImagePort
 		{
 			result.setError("MathJax failure: " + e.getMessage());
 		}
+		catch(MathJaxOverloadedException e)
+		{
+			result.setError("Overloaded: " + e.getMessage());
+		}
 		catch(IOException e)
 		{
 			result.setError("Unexpected error: " + e.getMessage());
@@ -86,6 +91,10 @@ public class WebMathsMjImage extends WebMathsService implements MathsImagePort
 		{
 			result.setError("MathJax failure: " + e.getMessage());
 		}
+		catch(MathJaxOverloadedException e)
+		{
+			result.setError("Overloaded: " + e.getMessage());
+		}
 		catch(IOException e)
 		{
 			result.setError("Unexpected error: " + e.getMessage());
@@ -37,6 +37,17 @@ public class WebMathsMjTex extends WebMathsService implements MathsTexPort
 
 	@Override
 	public MathsTexReturn getMathml(MathsTexParams params)
+	{
+		return getMathml(params, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Converts TeX to MathML using MathJax.
+	 * @param params Parameters
+	 * @param priority Priority when waiting for MathJax
+	 * @return Result
+	 */
+	private MathsTexReturn getMathml(MathsTexParams params, Priority priority)
 	{
 		// Set up default return values
 		MathsTexReturn result = new MathsTexReturn();
@@ -48,7 +59,7 @@ public class WebMathsMjTex extends WebMathsService implements MathsTexPort
 		{
 			result.setMathml(MathJax.get(context).getMathml(
 				params.isDisplay() ? new InputTexDisplayEquation(params.getTex(), null) :
-					new InputTexInlineEquation(params.getTex(), null)));
+					new InputTexInlineEquation(params.getTex(), null), priority));
 			result.setOk(true);
 		}
 		catch(MathJaxException e)
@@ -73,4 +84,27 @@ public class WebMathsMjTex extends WebMathsService implements MathsTexPort
 		result.setTex("");
 		return result;
 	}
+
+	@Override
+	public ConvertTexEquationsReturn convertEquations(ConvertTexEquationsParams params)
+	{
+		// Batch equations wait for MathJax at bulk priority, so that they do not
+		// hold up page views
+		TexConverter bulk = new TexConverter()
+		{
+			@Override
+			public MathsTexReturn getMathml(MathsTexParams params)
+			{
+				return WebMathsMjTex.this.getMathml(params, Priority.BULK);
+			}
+
+			@Override
+			public GetTexReturn getTex(GetTexParams params)
+			{
+				return WebMathsMjTex.this.getTex(params);
+			}
+		};
+		return TexConversions.convertEquations(bulk, params,
+			TexConversions.get(getServletContext()).getThreadPool());
+	}
 }
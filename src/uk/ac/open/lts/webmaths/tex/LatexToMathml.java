@@ -46,6 +46,9 @@ import static uk.ac.open.lts.webmaths.WebMathsService.NS;
  * <p>
  * This version of the source code contains the original Python code in
  * comments that begin at the first character of the line.
+ * <p>
+ * The command and environment tables are built once and shared between
+ * threads; each instance only holds the state (document) for one conversion.
  * @author Steve Cheng
  * @author Robert Hassom
  * @authot sam marshall
@@ -66,10 +69,11 @@ public class LatexToMathml
 	{
 		/**
 		 * Calls the function.
+		 * @param converter Converter (for the current conversion)
 		 * @param slf Input parameter
 		 * @return Return value
 		 */
-		public Element call(TokenInput slf);
+		public Element call(LatexToMathml converter, TokenInput slf);
 	}
 
 	/**
@@ -92,6 +96,21 @@ public class LatexToMathml
 //document = xml.dom.minidom.getDOMImplementation().createDocument(None,None,None)
 	private Document document;
 
+	/** Maximum number of document builders kept for reuse. */
+	private final static int MAX_IDLE_BUILDERS = 16;
+
+	/** Factory for document builders (synchronize on it when using). */
+	private final static DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY;
+	static
+	{
+		DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+		DOCUMENT_BUILDER_FACTORY.setNamespaceAware(true);
+	}
+
+	/** Document builders available for reuse (synchronize on it when using). */
+	private final static LinkedList<DocumentBuilder> IDLE_BUILDERS =
+		new LinkedList<DocumentBuilder>();
+
 	/**
 	 * Creates a document containing only an error message.
 	 * @param error Error message (unescaped text)
@@ -101,9 +120,7 @@ public class LatexToMathml
 	public static Element createErrorElement(String error)
 		throws ParserConfigurationException
 	{
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
-		Document document = factory.newDocumentBuilder().newDocument();
+		Document document = newDocument();
 		Element root = document.createElementNS(NS, "math");
 		document.appendChild(root);
 		Element xerror = document.createElementNS(NS, "xerror");
@@ -119,9 +136,40 @@ public class LatexToMathml
 	{
 		// Note: There wasn't a constructor in the original Python version because
 		// it used static methods.
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		factory.setNamespaceAware(true);
-		document = factory.newDocumentBuilder().newDocument();
+		document = newDocument();
+	}
+
+	/**
+	 * Creates a new empty document using a builder from the pool.
+	 * @return New document
+	 * @throws ParserConfigurationException Any error creating DOM data
+	 */
+	private static Document newDocument() throws ParserConfigurationException
+	{
+		DocumentBuilder builder = null;
+		synchronized(IDLE_BUILDERS)
+		{
+			if(!IDLE_BUILDERS.isEmpty())
+			{
+				builder = IDLE_BUILDERS.removeFirst();
+			}
+		}
+		if(builder == null)
+		{
+			synchronized(DOCUMENT_BUILDER_FACTORY)
+			{
+				builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+			}
+		}
+		Document document = builder.newDocument();
+		synchronized(IDLE_BUILDERS)
+		{
+			if(IDLE_BUILDERS.size() < MAX_IDLE_BUILDERS)
+			{
+				IDLE_BUILDERS.addFirst(builder);
+			}
+		}
+		return document;
 	}
 
 //def result_element(tag, num_attrs, *args):
@@ -1090,247 +1138,248 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 	});
 
 //g_tex_commands = {
-	private Map<String, LambdaTokenInput> texCommands =
-		new HashMap<String, LambdaTokenInput>();
+	private final static Map<String, LambdaTokenInput> TEX_COMMANDS;
+	static
 	{
+		Map<String, LambdaTokenInput> texCommands = new HashMap<String, LambdaTokenInput>();
 //u"\\frac": v_fraction_to_mathml, \
 		texCommands.put("\\frac", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fractionToMathml(slf);
+				return converter.fractionToMathml(slf);
 			}
 		});
 //u"\\dsum": lambda slf: v_sizevariant_to_mathml(slf,u"true",u"\\sum"), \
 		texCommands.put("\\dsum", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "true", "\\sum");
+				return converter.sizeVariantToMathml(slf, "true", "\\sum");
 			}
 		});
 //u"\\tsum": lambda slf: v_sizevariant_to_mathml(slf,u"false",u"\\sum"), \
 		texCommands.put("\\tsum", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "false", "\\sum");
+				return converter.sizeVariantToMathml(slf, "false", "\\sum");
 			}
 		});
 //u"\\dint": lambda slf: v_sizevariant_to_mathml(slf,u"true",u"\\int"), \
 		texCommands.put("\\dint", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "true", "\\int");
+				return converter.sizeVariantToMathml(slf, "true", "\\int");
 			}
 		});
 //u"\\tint": lambda slf: v_sizevariant_to_mathml(slf,u"false",u"\\int"), \
 		texCommands.put("\\tint", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "false", "\\int");
+				return converter.sizeVariantToMathml(slf, "false", "\\int");
 			}
 		});
 //u"\\dbinom": lambda slf: v_sizevariant_to_mathml(slf,u"true",u"\\binom"), \
 		texCommands.put("\\dbinom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "true", "\\binom");
+				return converter.sizeVariantToMathml(slf, "true", "\\binom");
 			}
 		});
 //u"\\tbinom": lambda slf: v_sizevariant_to_mathml(slf,u"false",u"\\binom"), \
 		texCommands.put("\\tbinom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeVariantToMathml(slf, "false", "\\binom");
+				return converter.sizeVariantToMathml(slf, "false", "\\binom");
 			}
 		});
 //u"\\dfrac": lambda slf: result_element(u"mstyle",1, u"displaystyle", u"true", v_fraction_to_mathml(slf)), \
 		texCommands.put("\\dfrac", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return resultElement("mstyle", 1, "displaystyle", "true", fractionToMathml(slf));
+				return converter.resultElement("mstyle", 1, "displaystyle", "true", converter.fractionToMathml(slf));
 			}
 		});
 //u"\\tfrac": lambda slf: result_element(u"mstyle",2, u"displaystyle", u"false", u"scriptlevel", u"+1",v_fraction_to_mathml(slf)), \
 		texCommands.put("\\tfrac", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// I changed this because I think tfrac should just have displaystyle false, not scriptlevel +1 as well
-				return resultElement("mstyle", 1, "displaystyle", "false", fractionToMathml(slf));
+				return converter.resultElement("mstyle", 1, "displaystyle", "false", converter.fractionToMathml(slf));
 			}
 		});
 //u"\\binom": v_binom_to_mathml, \
 		texCommands.put("\\binom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return binomToMathml(slf);
+				return converter.binomToMathml(slf);
 			}
 		});
 //u"\\sqrt": v_sqrt_to_mathml, \
 		texCommands.put("\\sqrt", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sqrtToMathml(slf);
+				return converter.sqrtToMathml(slf);
 			}
 		});
 //u"\\operatorname": v_operatorname_to_mathml, \
 		texCommands.put("\\operatorname", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return operatorNameToMathml(slf);
+				return converter.operatorNameToMathml(slf);
 			}
 		});
 //u"\\displaystyle": v_displaystyle_to_mathml, \
 		texCommands.put("\\displaystyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, true, 0);
+				return converter.displayStyleToMathml(slf, true, 0);
 			}
 		});
 		texCommands.put("\\textstyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, false, 0);
+				return converter.displayStyleToMathml(slf, false, 0);
 			}
 		});
 		texCommands.put("\\scriptstyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, false, 1);
+				return converter.displayStyleToMathml(slf, false, 1);
 			}
 		});
 		texCommands.put("\\scriptscriptstyle", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return displayStyleToMathml(slf, false, 2);
+				return converter.displayStyleToMathml(slf, false, 2);
 			}
 		});
 		texCommands.put("\\mod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return modOperator(slf, "mod", false, true);
+				return converter.modOperator(slf, "mod", false, true);
 			}
 		});
 		texCommands.put("\\bmod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return modOperator(slf, "mod", false, false);
+				return converter.modOperator(slf, "mod", false, false);
 			}
 		});
 //u"\\pod": lambda slf: v_parenthesized_operator(slf, None), \
 		texCommands.put("\\pod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return modOperator(slf, null, true, true);
+				return converter.modOperator(slf, null, true, true);
 			}
 		});
 //u"\\pmod": lambda slf: v_parenthesized_operator(slf, u"mod"), \
 		texCommands.put("\\pmod", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return modOperator(slf, "mod", true, true);
+				return converter.modOperator(slf, "mod", true, true);
 			}
 		});
 //u"\\boldsymbol": lambda slf: v_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\boldsymbol", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return boldSymbolToMathml(slf);
+				return converter.boldSymbolToMathml(slf);
 			}
 		});
 //u"\\bold": lambda slf: v_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\bold", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "bold");
+				return converter.fontToMathml(slf, "bold");
 			}
 		});
 //u"\\Bbb": lambda slf: v_font_to_mathml(slf, u"double-struck"), \
 		texCommands.put("\\Bbb", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "double-struck");
+				return converter.fontToMathml(slf, "double-struck");
 			}
 		});
 //u"\\mathbb": lambda slf: v_font_to_mathml(slf, u"double-struck"), \
 		texCommands.put("\\mathbb", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "double-struck");
+				return converter.fontToMathml(slf, "double-struck");
 			}
 		});
 //u"\\mathbbmss": lambda slf: v_font_to_mathml(slf, u"double-struck"), \
 		texCommands.put("\\mathbbmss", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "double-struck");
+				return converter.fontToMathml(slf, "double-struck");
 			}
 		});
 //u"\\mathbf": lambda slf: v_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\mathbf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "bold");
+				return converter.fontToMathml(slf, "bold");
 			}
 		});
 //u"\\mathop": lambda slf: v_font_to_mathml(slf, u"normal"), \
 		texCommands.put("\\mathop", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// sam: mathop should result in italic text, not normal
-				Element result = fontToMathml(slf, "italic");
+				Element result = converter.fontToMathml(slf, "italic");
 				result.setAttribute("class", "tex-mathop");
 				return result;
 			}
@@ -1339,376 +1388,376 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texCommands.put("\\mathrm", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "normal");
+				return converter.fontToMathml(slf, "normal");
 			}
 		});
 //u"\\mathfrak": lambda slf: v_font_to_mathml(slf, u"fraktur"), \
 		texCommands.put("\\mathfrak", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "fraktur");
+				return converter.fontToMathml(slf, "fraktur");
 			}
 		});
 //u"\\mathit": lambda slf: v_font_to_mathml(slf, u"italic"), \
 		texCommands.put("\\mathit", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "italic");
+				return converter.fontToMathml(slf, "italic");
 			}
 		});
 //u"\\mathscr": lambda slf: v_font_to_mathml(slf, u"script"), \
 		texCommands.put("\\mathscr", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "script");
+				return converter.fontToMathml(slf, "script");
 			}
 		});
 //u"\\mathcal": lambda slf: v_font_to_mathml(slf, u"script"), \
 		texCommands.put("\\mathcal", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "script");
+				return converter.fontToMathml(slf, "script");
 			}
 		});
 //u"\\mathsf": lambda slf: v_font_to_mathml(slf, u"sans-serif"), \
 		texCommands.put("\\mathsf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "sans-serif");
+				return converter.fontToMathml(slf, "sans-serif");
 			}
 		});
 //u"\\mathtt": lambda slf: v_font_to_mathml(slf, u"monospace"), \
 		texCommands.put("\\mathtt", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "monospace");
+				return converter.fontToMathml(slf, "monospace");
 			}
 		});
 //u"\\EuScript": lambda slf: v_font_to_mathml(slf, u"script"), \
 		texCommands.put("\\EuScript", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return fontToMathml(slf, "script");
+				return converter.fontToMathml(slf, "script");
 			}
 		});
 //u"\\bf": lambda slf: v_old_font_to_mathml(slf, u"bold"), \
 		texCommands.put("\\bf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return oldFontToMathml(slf, "bold");
+				return converter.oldFontToMathml(slf, "bold");
 			}
 		});
 //u"\\rm": lambda slf: v_old_font_to_mathml(slf, u"normal"), \
 		texCommands.put("\\rm", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return oldFontToMathml(slf, "normal");
+				return converter.oldFontToMathml(slf, "normal");
 			}
 		});
 //u"\\big": lambda slf: v_size_to_mathml(slf, u"2", u"2"), \
 		texCommands.put("\\big", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeToMathml(slf, "2", "2");
+				return converter.sizeToMathml(slf, "2", "2");
 			}
 		});
 //u"\\Big": lambda slf: v_size_to_mathml(slf, u"3", u"3"), \
 		texCommands.put("\\Big", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeToMathml(slf, "3", "3");
+				return converter.sizeToMathml(slf, "3", "3");
 			}
 		});
 //u"\\bigg": lambda slf: v_size_to_mathml(slf, u"4", u"4"), \
 		texCommands.put("\\bigg", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeToMathml(slf, "4", "4");
+				return converter.sizeToMathml(slf, "4", "4");
 			}
 		});
 //u"\\Bigg": lambda slf: v_size_to_mathml(slf, u"5", u"5"), \
 		texCommands.put("\\Bigg", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return sizeToMathml(slf, "5", "5");
+				return converter.sizeToMathml(slf, "5", "5");
 			}
 		});
 //u"\\acute": lambda slf: v_accent_to_mathml(slf, u"\u0301"), \
 		texCommands.put("\\acute", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u00b4", false);
+				return converter.accentToMathml(slf, "\u00b4", false);
 			}
 		});
 //u"\\grave": lambda slf: v_accent_to_mathml(slf, u"\u0300"), \
 		texCommands.put("\\grave", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u0060", false);
+				return converter.accentToMathml(slf, "\u0060", false);
 			}
 		});
 //u"\\tilde": lambda slf: v_accent_to_mathml(slf, u"\u0303"), \
 		texCommands.put("\\tilde", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
 				// The LaTeX \tilde is not stretchy, so override stretchyness.
-				return accentToMathml(slf, "~", true);
+				return converter.accentToMathml(slf, "~", true);
 			}
 		});
 //u"\\bar": lambda slf: v_accent_to_mathml(slf, u"\u0304"), \
 		texCommands.put("\\bar", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// NOTE: This used to use U+0304, but that is a combining macron -
 				// using it without a character to combine with results in unexpected
 				// (i.e. crap) results. U+0304 would be correct if it were written
 				// directly after the character it decorates, but as it's in a separate
 				// XML tag, this is not the case.
-				return accentToMathml(slf, "\u00af", false);
+				return converter.accentToMathml(slf, "\u00af", false);
 			}
 		});
 //u"\\breve": lambda slf: v_accent_to_mathml(slf, u"\u0306"), \
 		texCommands.put("\\breve", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u02d8", false);
+				return converter.accentToMathml(slf, "\u02d8", false);
 			}
 		});
 //u"\\check": lambda slf: v_accent_to_mathml(slf, u"\u030c"), \
 		texCommands.put("\\check", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u02c7", false);
+				return converter.accentToMathml(slf, "\u02c7", false);
 			}
 		});
 //u"\\hat": lambda slf: v_accent_to_mathml(slf, u"\u0302"), \
 		texCommands.put("\\hat", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// This used to return 0302, but MathML uses the basic circumflex 005e
 				// as its &Hat; so I figure that is right.
-				return accentToMathml(slf, "\u005e", false);
+				return converter.accentToMathml(slf, "\u005e", false);
 			}
 		});
 //u"\\vec": lambda slf: v_accent_to_mathml(slf, u"\u20d7"), \
 		texCommands.put("\\vec", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u2192", false);
+				return converter.accentToMathml(slf, "\u2192", false);
 			}
 		});
 //u"\\dot": lambda slf: v_accent_to_mathml(slf, u"\u0307"), \
 		texCommands.put("\\dot", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u02d9", false);
+				return converter.accentToMathml(slf, "\u02d9", false);
 			}
 		});
 //u"\\ddot": lambda slf: v_accent_to_mathml(slf, u"\u0308"), \
 		texCommands.put("\\ddot", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Note: Should not be a combining character; see comment under \bar.
-				return accentToMathml(slf, "\u00a8", false);
+				return converter.accentToMathml(slf, "\u00a8", false);
 			}
 		});
 //u"\\dddot": lambda slf: v_accent_to_mathml(slf, u"\u20db"), \
 		texCommands.put("\\dddot", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// This is COMBINING THREE DOTS ABOVE but is correct because there is
 				// no non-combining character.
 				// http://lists.w3.org/Archives/Public/www-math/2011May/0001.html
-				return accentToMathml(slf, "\u20db", false);
+				return converter.accentToMathml(slf, "\u20db", false);
 			}
 		});
 //u"\\underbrace": lambda slf: v_under_to_mathml(slf, u"\ufe38"), \
 		texCommands.put("\\underbrace", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return underToMathml(slf, "\ufe38", true);
+				return converter.underToMathml(slf, "\ufe38", true);
 			}
 		});
 //u"\\overbrace": lambda slf: v_over_to_mathml(slf, u"\ufe37"), \
 		texCommands.put("\\overbrace", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return overToMathml(slf, "\ufe37", true);
+				return converter.overToMathml(slf, "\ufe37", true);
 			}
 		});
 //u"\\underline": lambda slf: v_under_to_mathml(slf, u"\u0332"), \
 		texCommands.put("\\underline", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return underToMathml(slf, "\u0332", false);
+				return converter.underToMathml(slf, "\u0332", false);
 			}
 		});
 //u"\\overline": lambda slf: v_over_to_mathml(slf, u"\u00af"), \
 		texCommands.put("\\overline", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return overToMathml(slf, "\u00af", false);
+				return converter.overToMathml(slf, "\u00af", false);
 			}
 		});
 		texCommands.put("\\overrightarrow", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return overToMathml(slf, "\u27f6", false);
+				return converter.overToMathml(slf, "\u27f6", false);
 			}
 		});
 //u"\\widetilde": lambda slf: v_over_to_mathml(slf, u"\u0303"), \
 		texCommands.put("\\widetilde", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return overToMathml(slf, "~", false);
+				return converter.overToMathml(slf, "~", false);
 			}
 		});
 //u"\\widehat": lambda slf: v_over_to_mathml(slf, u"\u0302"), \
 		texCommands.put("\\widehat", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return overToMathml(slf, "\u005e", false);
+				return converter.overToMathml(slf, "\u005e", false);
 			}
 		});
 //u"\\not": lambda slf: v_combining_to_mathml(slf, u"\u0338"), \
 		texCommands.put("\\not", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return combiningToMathml(slf, "\u0338");
+				return converter.combiningToMathml(slf, "\u0338");
 			}
 		});
 //u"\\left": lambda slf: v_delimiter_to_mathml(slf, u"\\right", u"1", None), \
 		texCommands.put("\\left", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\right", "1", null);
+				return converter.delimiterToMathml(slf, "\\right", "1", null);
 			}
 		});
 //u"\\bigl": lambda slf: v_delimiter_to_mathml(slf, u"\\bigr", u"2", u"2"), \
 		texCommands.put("\\bigl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\bigr", "2", "2");
+				return converter.delimiterToMathml(slf, "\\bigr", "2", "2");
 			}
 		});
 //u"\\Bigl": lambda slf: v_delimiter_to_mathml(slf, u"\\Bigr", u"3", u"3"), \
 		texCommands.put("\\Bigl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\Bigr", "3", "3");
+				return converter.delimiterToMathml(slf, "\\Bigr", "3", "3");
 			}
 		});
 //u"\\biggl": lambda slf: v_delimiter_to_mathml(slf, u"\\biggr", u"4", u"4"), \
 		texCommands.put("\\biggl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\biggr", "4", "4");
+				return converter.delimiterToMathml(slf, "\\biggr", "4", "4");
 			}
 		});
 //u"\\Biggl": lambda slf: v_delimiter_to_mathml(slf, u"\\Biggr", u"5", u"5"), \
 		texCommands.put("\\Biggl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return delimiterToMathml(slf, "\\Biggr", "5", "5");
+				return converter.delimiterToMathml(slf, "\\Biggr", "5", "5");
 			}
 		});
 //u"\\char": v_char_escape_to_mathml, \
 		texCommands.put("\\char", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return charEscapeToMathml(slf);
+				return converter.charEscapeToMathml(slf);
 			}
 		});
 //u"\\!": lambda slf: None, \
 		texCommands.put("\\!", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput input)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				return null;
 			}
@@ -1717,137 +1766,138 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texCommands.put("\\text", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return converter.textToMathml(slf, null);
 			}
 		});
 //u"\\textnormal": v_text_to_mathml, \
 		texCommands.put("\\textnormal", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return converter.textToMathml(slf, null);
 			}
 		});
 //u"\\textrm": v_text_to_mathml, \
 		texCommands.put("\\textrm", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return converter.textToMathml(slf, null);
 			}
 		});
 //u"\\textsl": v_text_to_mathml, \
 		texCommands.put("\\textsl", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, "italic");
+				return converter.textToMathml(slf, "italic");
 			}
 		});
 //u"\\textit": v_text_to_mathml, \
 		texCommands.put("\\textit", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, "italic");
+				return converter.textToMathml(slf, "italic");
 			}
 		});
 //u"\\texttt": v_text_to_mathml, \
 		texCommands.put("\\texttt", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, "monospace");
+				return converter.textToMathml(slf, "monospace");
 			}
 		});
 //u"\\textbf": v_text_to_mathml, \
 		texCommands.put("\\textbf", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, "bold");
+				return converter.textToMathml(slf, "bold");
 			}
 		});
 //u"\\hbox": v_text_to_mathml, \
 		texCommands.put("\\hbox", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return converter.textToMathml(slf, null);
 			}
 		});
 //u"\\mbox": v_text_to_mathml, \
 		texCommands.put("\\mbox", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return textToMathml(slf, null);
+				return converter.textToMathml(slf, null);
 			}
 		});
 //u"\\begin": v_latex_block_to_mathml, \
 		texCommands.put("\\begin", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return latexBlockToMathml(slf);
+				return converter.latexBlockToMathml(slf);
 			}
 		});
 		// Add \substack command
 		texCommands.put("\\substack", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return substackToMathml(slf);
+				return converter.substackToMathml(slf);
 			}
 		});
 		// Add \stackrel command
 		texCommands.put("\\stackrel", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return stackrelToMathml(slf);
+				return converter.stackrelToMathml(slf);
 			}
 		});
 		// Add \strut command
 		texCommands.put("\\strut", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return resultElement("mrow", 0);
+				return converter.resultElement("mrow", 0);
 			}
 		});
 		texCommands.put("\\!", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return resultElement("mspace", 1, "width", "negativethinmathspace");
+				return converter.resultElement("mspace", 1, "width", "negativethinmathspace");
 			}
 		});
 		// Add \phantom command.
 		texCommands.put("\\phantom", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return resultElement("mphantom", 0, pieceToMathml(slf));
+				return converter.resultElement("mphantom", 0, converter.pieceToMathml(slf));
 			}
 		});
 //}
+		TEX_COMMANDS = Collections.unmodifiableMap(texCommands);
 	}
 
 //def v_fraction_to_mathml(slf):
@@ -2646,15 +2696,16 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 	 * type of code nicer, too.
 	 */
 //g_tex_environments = {u"smallmatrix": lambda slf: v_matrix_to_mathml(slf, u"(", u")"), \
-	private final Map<String, LambdaTokenInput> texEnvironments =
-		new HashMap<String, LambdaTokenInput>();
+	private final static Map<String, LambdaTokenInput> TEX_ENVIRONMENTS;
+	static
 	{
+		Map<String, LambdaTokenInput> texEnvironments = new HashMap<String, LambdaTokenInput>();
 		texEnvironments.put("smallmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return matrixToMathml(slf, "(", ")", false, null);
+				return converter.matrixToMathml(slf, "(", ")", false, null);
 			}
 		});
 //u"pmatrix": lambda slf: v_matrix_to_mathml(slf, u"(", u")"), \
@@ -2664,63 +2715,63 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texEnvironments.put("bmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return matrixToMathml(slf, "[", "]", false, null);
+				return converter.matrixToMathml(slf, "[", "]", false, null);
 			}
 		});
 //u"Bmatrix": lambda slf: v_matrix_to_mathml(slf, u"{", u"}"), \
 		texEnvironments.put("Bmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return matrixToMathml(slf, "{", "}", false, null);
+				return converter.matrixToMathml(slf, "{", "}", false, null);
 			}
 		});
 //u"vmatrix": lambda slf: v_matrix_to_mathml(slf, u"|", u"|"), \
 		texEnvironments.put("vmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return matrixToMathml(slf, "|", "|", false, null);
+				return converter.matrixToMathml(slf, "|", "|", false, null);
 			}
 		});
 //u"Vmatrix": lambda slf: v_matrix_to_mathml(slf, u"\u2016", u"\u2016"), \
 		texEnvironments.put("Vmatrix", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return matrixToMathml(slf, "\u2016", "\u2016", true, null);
+				return converter.matrixToMathml(slf, "\u2016", "\u2016", true, null);
 			}
 		});
 //u"cases": lambda slf: v_matrix_to_mathml(slf, u"{", None), \
 		texEnvironments.put("cases", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return matrixToMathml(slf, "{", null, false, "left");
+				return converter.matrixToMathml(slf, "{", null, false, "left");
 			}
 		});
 //u"array": v_array_to_mathml, \
 		texEnvironments.put("array", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return arrayToMathml(slf, false, false);
+				return converter.arrayToMathml(slf, false, false);
 			}
 		});
 		// sam add: support align, align*
 		texEnvironments.put("align*", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return arrayToMathml(slf, true, true);
+				return converter.arrayToMathml(slf, true, true);
 			}
 		});
 		texEnvironments.put("align", texEnvironments.get("align*"));
@@ -2729,23 +2780,24 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		texEnvironments.put("displaymath", new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
-				return displayMathToMathml(slf);
+				return converter.displayMathToMathml(slf);
 			}
 		});
 		// Default (null) environment
 		texEnvironments.put(null, new LambdaTokenInput()
 		{
 			@Override
-			public Element call(TokenInput slf)
+			public Element call(LatexToMathml converter, TokenInput slf)
 			{
 				// Keep going until we get to a \\end token
-				Element result = subExprChainToMathml(slf, END_TOKENS);
-				finishLatexBlock(slf);
+				Element result = converter.subExprChainToMathml(slf, END_TOKENS);
+				converter.finishLatexBlock(slf);
 				return result;
 			}
 		});
+		TEX_ENVIRONMENTS = Collections.unmodifiableMap(texEnvironments);
 	}
 
 //def v_latex_block_to_mathml(slf):
@@ -2775,10 +2827,10 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			}
 		}
 
-		if(texEnvironments.containsKey(cmd))
+		if(TEX_ENVIRONMENTS.containsKey(cmd))
 		{
 			slf.nextToken();
-			result = texEnvironments.get(cmd).call(slf);
+			result = TEX_ENVIRONMENTS.get(cmd).call(this, slf);
 		}
 //else:
 // return result_element(u"merror", 0, result_element(u"mtext", 0, 'Invalid command: '+repr(v_cmd)) )
@@ -2789,7 +2841,7 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 			slf.nextToken();
 			Element error = resultElement("xerroronly", 0,
 				"Unsupported environment: " + cmd);
-			result = texEnvironments.get(null).call(slf);
+			result = TEX_ENVIRONMENTS.get(null).call(this, slf);
 			result = resultElement("mrow", 0, error, result);
 		}
 
@@ -2866,16 +2918,14 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 		for(count=0; true; count++)
 		{
 			String digit = slf.peekToken(count);
-			if(digit == null || !digit.matches("[0-9]"))
+			if(digit == null || digit.length() != 1
+				|| digit.charAt(0) < '0' || digit.charAt(0) > '9')
 			{
 				break;
 			}
 			digits.append(digit);
 		}
-		for(int i=0; i<count; i++)
-		{
-			slf.nextToken();
-		}
+		slf.skipTokens(count);
 
 		String digitString = digits.toString();
 		if(CHAR_ESCAPE_CODES.containsKey(digitString))
@@ -3158,10 +3208,10 @@ private final static Map<String, String> NAMED_IDENTIFIERS =
 //elif (v_token in g_tex_commands):
 // slf.tokens_index += 1
 // v_result = g_tex_commands[v_token](slf)
-		else if(texCommands.containsKey(token))
+		else if(TEX_COMMANDS.containsKey(token))
 		{
 			slf.nextToken();
-			result = texCommands.get(token).call(slf);
+			result = TEX_COMMANDS.get(token).call(this, slf);
 		}
 		// sam added: ignore unknown TeX commands instead of treating them as numbers
 		else if(token != null && token.matches("\\\\[a-zA-Z]+"))
@@ -0,0 +1,216 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import org.w3c.dom.*;
+
+import static uk.ac.open.lts.webmaths.WebMathsService.NS;
+
+/**
+ * Writes the MathML created by {@link LatexToMathml} to a string.
+ * <p>
+ * This is much faster than a general DOM serialiser. It also converts the
+ * temporary error elements directly: &lt;xerroronly&gt; becomes a comment,
+ * and &lt;xerror&gt; becomes an empty &lt;mspace&gt; followed by a comment
+ * (in case the error occurred inside something like an &lt;mfrac&gt; where
+ * MathML is expecting a specific number of parameters).
+ * <p>
+ * Output is the same as the standard Java LSSerializer (without the XML
+ * declaration), including its escaping rules.
+ */
+final class MathmlWriter
+{
+	private final StringBuilder out = new StringBuilder(1024);
+	private final boolean convertErrors;
+
+	/**
+	 * @param convertErrors True to convert error elements to comments
+	 */
+	private MathmlWriter(boolean convertErrors)
+	{
+		this.convertErrors = convertErrors;
+	}
+
+	/**
+	 * Writes an element and its contents.
+	 * @param e Element
+	 * @param convertErrors True to convert error elements to comments
+	 * @return XML string
+	 * @throws IllegalArgumentException If the element contains unsupported
+	 *   nodes (such as processing instructions)
+	 */
+	static String write(Element e, boolean convertErrors)
+		throws IllegalArgumentException
+	{
+		MathmlWriter writer = new MathmlWriter(convertErrors);
+		writer.writeElement(e, null);
+		return writer.out.toString();
+	}
+
+	/**
+	 * @param e Element to write
+	 * @param defaultNamespace Default namespace in scope (null if none)
+	 * @throws IllegalArgumentException If unsupported nodes are found
+	 */
+	private void writeElement(Element e, String defaultNamespace)
+		throws IllegalArgumentException
+	{
+		String name = e.getNodeName();
+		if(convertErrors && NS.equals(e.getNamespaceURI()))
+		{
+			if(name.equals("xerror"))
+			{
+				out.append("<mspace/>");
+				writeErrorComment(e.getTextContent());
+				return;
+			}
+			if(name.equals("xerroronly"))
+			{
+				writeErrorComment(e.getTextContent());
+				return;
+			}
+		}
+
+		out.append('<').append(name);
+
+		// Declare the default namespace if it changes here
+		String namespace = e.getNamespaceURI();
+		if(e.hasAttribute("xmlns"))
+		{
+			defaultNamespace = e.getAttribute("xmlns");
+		}
+		else if(e.getPrefix() == null && !(namespace == null
+			? defaultNamespace == null : namespace.equals(defaultNamespace)))
+		{
+			out.append(" xmlns=\"");
+			writeEscaped(namespace == null ? "" : namespace, true);
+			out.append('"');
+			defaultNamespace = namespace;
+		}
+
+		NamedNodeMap attributes = e.getAttributes();
+		for(int i = 0; i < attributes.getLength(); i++)
+		{
+			Node attribute = attributes.item(i);
+			out.append(' ').append(attribute.getNodeName()).append("=\"");
+			writeEscaped(attribute.getNodeValue(), true);
+			out.append('"');
+		}
+
+		int start = out.length();
+		out.append('>');
+		for(Node child = e.getFirstChild(); child != null; child = child.getNextSibling())
+		{
+			switch(child.getNodeType())
+			{
+				case Node.ELEMENT_NODE:
+					writeElement((Element)child, defaultNamespace);
+					break;
+				case Node.TEXT_NODE:
+				case Node.CDATA_SECTION_NODE:
+					writeEscaped(child.getNodeValue(), false);
+					break;
+				case Node.COMMENT_NODE:
+					out.append("<!--").append(child.getNodeValue()).append("-->");
+					break;
+				default:
+					throw new IllegalArgumentException("Unsupported node type: "
+						+ child.getNodeType());
+			}
+		}
+
+		if(out.length() == start + 1)
+		{
+			// No content, so use an empty element tag
+			out.setLength(start);
+			out.append("/>");
+		}
+		else
+		{
+			out.append("</").append(name).append('>');
+		}
+	}
+
+	/**
+	 * Writes an error message as a comment. Characters that can't be included
+	 * in a comment are replaced.
+	 * @param text Error text
+	 */
+	private void writeErrorComment(String text)
+	{
+		out.append("<!-- ");
+		char previous = 0;
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if((c < 0x20 && c != '\t' && c != '\n' && c != '\r') || c == '\ufffe' || c == '\uffff')
+			{
+				c = '\ufffd';
+			}
+			else if(c == '-' && previous == '-')
+			{
+				// Double hyphen is not allowed in comments
+				out.append(' ');
+			}
+			out.append(c);
+			previous = c;
+		}
+		out.append(" -->");
+	}
+
+	/**
+	 * Writes text with XML escaping.
+	 * @param text Text
+	 * @param attribute True if this is an attribute value (escapes quotes and
+	 *   all whitespace other than space)
+	 */
+	private void writeEscaped(String text, boolean attribute)
+	{
+		for(int i = 0; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			switch(c)
+			{
+				case '&':
+					out.append("&amp;");
+					break;
+				case '<':
+					out.append("&lt;");
+					break;
+				case '>':
+					out.append("&gt;");
+					break;
+				case '"':
+					out.append(attribute ? "&quot;" : "\"");
+					break;
+				default:
+					if((c < 0x20 && (attribute || (c != '\n' && c != '\t')))
+						|| (!attribute && c >= 0x7f && c <= 0x9f))
+					{
+						out.append("&#").append((int)c).append(';');
+					}
+					else
+					{
+						out.append(c);
+					}
+					break;
+			}
+		}
+	}
+}
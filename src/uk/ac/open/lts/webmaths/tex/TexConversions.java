@@ -0,0 +1,445 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.servlet.ServletContext;
+
+import org.w3c.dom.Document;
+
+import uk.ac.open.lts.webmaths.*;
+
+/**
+ * Shared state for TeX conversions in both directions: caches of recent
+ * results (the same equations are requested repeatedly as pages are viewed),
+ * the MathML to TeX converter, and a thread pool for batch requests.
+ * <p>
+ * There is one instance per servlet context.
+ */
+public class TexConversions implements TexConverter
+{
+	/** Name of attribute in ServletContext that stores singleton value. */
+	private static final String ATTRIBUTE_NAME = "uk.ac.open.lts.webmaths.tex.TexConversions";
+
+	/** Config parameter: size of each result cache. */
+	private static final String PARAM_CACHEMEGABYTES = "tex-cache-megabytes";
+
+	/** Default size of each result cache. */
+	private static final long DEFAULT_CACHE_MEGABYTES = 16;
+
+	/** Approximate memory used by each cache entry apart from the strings. */
+	private static final long CACHE_ENTRY_OVERHEAD = 150;
+
+	/** Instance used when there is no servlet context (development server). */
+	private static TexConversions standalone;
+
+	/**
+	 * Gets the singleton, creating it if necessary.
+	 * @param servletContext Servlet context (null if not running in a servlet
+	 *   container)
+	 * @return Singleton
+	 */
+	public synchronized static TexConversions get(ServletContext servletContext)
+	{
+		if(servletContext == null)
+		{
+			if(standalone == null)
+			{
+				standalone = new TexConversions(null);
+			}
+			return standalone;
+		}
+		TexConversions conversions = (TexConversions)servletContext.getAttribute(ATTRIBUTE_NAME);
+		if(conversions == null)
+		{
+			conversions = new TexConversions(servletContext);
+			servletContext.setAttribute(ATTRIBUTE_NAME, conversions);
+		}
+		return conversions;
+	}
+
+	/**
+	 * Cleanup function stops the thread pool.
+	 * @param servletContext Servlet context
+	 */
+	public synchronized static void cleanup(ServletContext servletContext)
+	{
+		TexConversions conversions = (TexConversions)servletContext.getAttribute(ATTRIBUTE_NAME);
+		if(conversions != null)
+		{
+			conversions.close();
+			servletContext.removeAttribute(ATTRIBUTE_NAME);
+		}
+	}
+
+	/**
+	 * Cache key: input string and the boolean option that goes with it.
+	 */
+	private final static class Key
+	{
+		private final String input;
+		private final boolean option;
+
+		/**
+		 * @param input Input (TeX or MathML)
+		 * @param option Display (for TeX) or lenient (for MathML)
+		 */
+		private Key(String input, boolean option)
+		{
+			this.input = input;
+			this.option = option;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key)obj;
+			return other.option == option &&
+				(input == null ? other.input == null : input.equals(other.input));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (input == null ? 0 : input.hashCode() * 31) + (option ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Result of converting MathML to TeX: either the TeX or an error. Errors are
+	 * cached too, because unsupported MathML fails the same way each time.
+	 */
+	private final static class TexResult
+	{
+		private final String tex, error;
+
+		/**
+		 * @param tex TeX or null if error
+		 * @param error Error message or null if ok
+		 */
+		private TexResult(String tex, String error)
+		{
+			this.tex = tex;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * @param key Cache key
+	 * @param value Cached string
+	 * @return Approximate memory use of a cache entry
+	 */
+	private static long getBytes(Key key, String value)
+	{
+		return 2L * (key.input == null ? 0 : key.input.length())
+			+ 2L * value.length() + CACHE_ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Works out the size of MathML cache entries.
+	 */
+	private final static TinyLfuCache.Weigher<Key, String> MATHML_WEIGHER =
+		new TinyLfuCache.Weigher<Key, String>()
+	{
+		@Override
+		public long getBytes(Key key, String value)
+		{
+			return TexConversions.getBytes(key, value);
+		}
+	};
+
+	/**
+	 * Works out the size of TeX cache entries.
+	 */
+	private final static TinyLfuCache.Weigher<Key, TexResult> TEX_WEIGHER =
+		new TinyLfuCache.Weigher<Key, TexResult>()
+	{
+		@Override
+		public long getBytes(Key key, TexResult value)
+		{
+			return TexConversions.getBytes(key, value.tex != null ? value.tex : value.error);
+		}
+	};
+
+	private final ServletContext servletContext;
+	private final MathmlToLatex texConverter;
+	private final ResultCache<Key, String> mathmlCache;
+	private final ResultCache<Key, TexResult> texCache;
+	private final ExecutorService threadPool;
+
+	/**
+	 * @param servletContext Servlet context (may be null)
+	 */
+	TexConversions(ServletContext servletContext)
+	{
+		this.servletContext = servletContext;
+		texConverter = new MathmlToLatex(MathmlEntityFixer.getFixer(servletContext));
+
+		long cacheMegabytes = DEFAULT_CACHE_MEGABYTES;
+		String cacheParam = servletContext == null ? null :
+			servletContext.getInitParameter(PARAM_CACHEMEGABYTES);
+		if(cacheParam != null)
+		{
+			try
+			{
+				cacheMegabytes = Long.parseLong(cacheParam.trim());
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Incorrect value of " + PARAM_CACHEMEGABYTES + " (must be integer)");
+			}
+		}
+		mathmlCache = new TinyLfuCache<Key, String>(cacheMegabytes * 1024L * 1024L,
+			MATHML_WEIGHER);
+		texCache = new TinyLfuCache<Key, TexResult>(cacheMegabytes * 1024L * 1024L,
+			TEX_WEIGHER);
+
+		// Conversion is CPU work, so use one thread per processor.
+		threadPool = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "TeX conversion");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * Stops the thread pool.
+	 */
+	void close()
+	{
+		threadPool.shutdown();
+	}
+
+	/**
+	 * @return Thread pool used for batch requests
+	 */
+	public ExecutorService getThreadPool()
+	{
+		return threadPool;
+	}
+
+	/**
+	 * @return Statistics for the TeX to MathML cache
+	 */
+	public ResultCache.Stats getMathmlCacheStats()
+	{
+		return mathmlCache.getStats();
+	}
+
+	/**
+	 * @return Statistics for the MathML to TeX cache
+	 */
+	public ResultCache.Stats getTexCacheStats()
+	{
+		return texCache.getStats();
+	}
+
+	/**
+	 * Converts TeX to MathML, using the cache if possible.
+	 * @param params Parameters
+	 * @return Result
+	 */
+	@Override
+	public MathsTexReturn getMathml(MathsTexParams params)
+	{
+		// Set up default return values
+		MathsTexReturn result = new MathsTexReturn();
+		result.setOk(false);
+		result.setError("");
+		result.setMathml("");
+
+		Key key = new Key(params.getTex(), params.isDisplay());
+		String mathml = mathmlCache.get(key);
+		if(mathml != null)
+		{
+			result.setMathml(mathml);
+			result.setOk(true);
+			return result;
+		}
+
+		try
+		{
+			// Convert TeX to MathML
+			TokenInput input = new TokenInput(params.getTex());
+			mathml = input.toMathml(params.isDisplay());
+			mathmlCache.put(key, mathml);
+
+			result.setMathml(mathml);
+			result.setOk(true);
+		}
+		catch(Throwable t)
+		{
+			t.printStackTrace(); // TODO Get rid of this or log somehow
+			result.setError(t.getMessage());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Converts MathML to TeX, using the cache if possible.
+	 * @param params Parameters
+	 * @return Result
+	 */
+	@Override
+	public GetTexReturn getTex(GetTexParams params)
+	{
+		Key key = new Key(params.getMathml(), params.isLenient());
+		TexResult converted = texCache.get(key);
+		if(converted == null)
+		{
+			try
+			{
+				// Parse MathML
+				Document doc = WebMathsService.parseMathml(servletContext, params.getMathml());
+				// Convert MathML to TeX
+				converted = new TexResult(texConverter.convert(doc, params.isLenient()), null);
+				texCache.put(key, converted);
+			}
+			catch(Throwable t)
+			{
+				t.printStackTrace(); // TODO Get rid of this or log somehow
+				converted = new TexResult(null, "Error converting MathML to TeX: " + t.getMessage());
+				// Don't cache things like running out of memory.
+				if(t instanceof Exception)
+				{
+					texCache.put(key, converted);
+				}
+			}
+		}
+
+		GetTexReturn result = new GetTexReturn();
+		result.setOk(converted.tex != null);
+		result.setError(converted.error == null ? "" : converted.error);
+		result.setTex(converted.tex == null ? "" : converted.tex);
+		return result;
+	}
+
+	/**
+	 * Converts a batch of equations, in both directions, by calling the single
+	 * conversion methods in parallel. Results are in the same order as the
+	 * input; each one has its own ok flag and error.
+	 * @param converter Converter for single equations
+	 * @param params Batch parameters
+	 * @param executor Executor to run conversions on
+	 * @return Results
+	 */
+	public static ConvertTexEquationsReturn convertEquations(final TexConverter converter,
+		ConvertTexEquationsParams params, Executor executor)
+	{
+		List<FutureTask<MathsTexReturn>> mathmlFutures =
+			new ArrayList<FutureTask<MathsTexReturn>>(params.getMathsTexParams().size());
+		for(final MathsTexParams item : params.getMathsTexParams())
+		{
+			FutureTask<MathsTexReturn> future = new FutureTask<MathsTexReturn>(
+				new Callable<MathsTexReturn>()
+				{
+					@Override
+					public MathsTexReturn call()
+					{
+						return converter.getMathml(item);
+					}
+				});
+			executor.execute(future);
+			mathmlFutures.add(future);
+		}
+		List<FutureTask<GetTexReturn>> texFutures =
+			new ArrayList<FutureTask<GetTexReturn>>(params.getGetTexParams().size());
+		for(final GetTexParams item : params.getGetTexParams())
+		{
+			FutureTask<GetTexReturn> future = new FutureTask<GetTexReturn>(
+				new Callable<GetTexReturn>()
+				{
+					@Override
+					public GetTexReturn call()
+					{
+						return converter.getTex(item);
+					}
+				});
+			executor.execute(future);
+			texFutures.add(future);
+		}
+
+		ConvertTexEquationsReturn result = new ConvertTexEquationsReturn();
+		try
+		{
+			for(FutureTask<MathsTexReturn> future : mathmlFutures)
+			{
+				result.getMathsTexReturn().add(waitFor(future));
+			}
+			for(FutureTask<GetTexReturn> future : texFutures)
+			{
+				result.getGetTexReturn().add(waitFor(future));
+			}
+		}
+		catch(InterruptedException e)
+		{
+			for(FutureTask<MathsTexReturn> future : mathmlFutures)
+			{
+				future.cancel(false);
+			}
+			for(FutureTask<GetTexReturn> future : texFutures)
+			{
+				future.cancel(false);
+			}
+			throw new RuntimeException("Interrupted while waiting for equations", e);
+		}
+		return result;
+	}
+
+	/**
+	 * Waits for a task, passing on any unexpected error. (The conversion
+	 * methods return expected errors in the result.)
+	 * @param future Task
+	 * @return Result
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private static <T> T waitFor(Future<T> future) throws InterruptedException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if(cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -31,15 +31,11 @@
  */
 package uk.ac.open.lts.webmaths.tex;
 
-import java.io.StringReader;
 import java.util.*;
-import java.util.regex.*;
 
 import javax.xml.parsers.*;
 
 import org.w3c.dom.*;
-import org.w3c.dom.ls.*;
-import org.xml.sax.InputSource;
 
 /**
  * Handles tokenising of TeX input and related tasks.
@@ -55,22 +51,27 @@ public class TokenInput
 //  #the unicode character 201d is character the plastex replaces the '' character with
 
 //  tokenize_strict_re = re.compile(ur"""(\\begin|\\operatorname|\\mathrm|\\mathop|\\end)\s*\{\s*([A-Z a-z]+)\s*\}|(\\[a-zA-Z]+|\\[\\#\%\{\},:;!])|(\s+)|([0-9\.])|([\$!"#%&'\u2019\u201d()*+,-.\/:;<=>?\[\]^_`\{\|\}~])|([a-zA-Z@])""")
-	private final static Pattern STRICT_RE = Pattern.compile(
-		"(\\\\begin|\\\\operatorname|\\\\mathrm|\\\\mathop|\\\\end)\\s*" +
-			"\\{\\s*([A-Z a-z]+)\\s*\\}|" +
-		"(\\\\[a-zA-Z]+|" +
-		"\\\\[ \\\\#\\%\\{\\},:;!$])|" +
-		"(\\s+)|" +
-		"([0-9\\.])|" +
-		"([\\$!\"#%&'\u2019\u201d()*+,-.\\/:;<=>?\\[\\]^_`\\{\\|\\}~])|" +
-		"([a-zA-Z@])|" +
-		"(\\\\&)");
+	// The Java version used to use this regular expression, but now has a
+	// hand-written lexer (see tokenizeLatexMath) which produces the same tokens:
+	// (\\begin|\\operatorname|\\mathrm|\\mathop|\\end)\s*\{\s*([A-Z a-z]+)\s*\}|
+	// (\\[a-zA-Z]+|\\[ \\#\%\{\},:;!$])|(\s+)|([0-9\.])|
+	// ([\$!"#%&'\u2019\u201d()*+,-.\/:;<=>?\[\]^_`\{\|\}~])|([a-zA-Z@])|(\\&)
+
+	/** Commands that take a name in braces, which is returned as one token. */
+	private final static Set<String> NAMED_ARGUMENT_COMMANDS = new HashSet<String>(
+		Arrays.asList(new String[] {
+		"\\begin", "\\operatorname", "\\mathrm", "\\mathop", "\\end"
+	}));
+
+	/** Characters that form a command when following a backslash. */
+	private final static String ESCAPED_SYMBOLS = " \\#%{},:;!$&";
+
+	/** Punctuation characters that are a token on their own. */
+	private final static String SYMBOLS = "$!\"#%&'\u2019\u201d()*+,-./:;<=>?[]^_`{|}~";
 
 //  tokenize_text_re = re.compile(ur"""[\${}\\]|\\[a-zA-Z]+|[^{}\$]+""")
-	private final static Pattern TEXT_RE = Pattern.compile(
-		"[\\${}]|" +
-		"\\\\[a-zA-Z]+\\s?|" +
-		"[^{}\\$\\\\]+");
+	// Text mode used to use this regular expression:
+	// [\${}]|\\[a-zA-Z]+\s?|[^{}\$\\]+
 
 //  tokenize_text_commands = [u'\\textrm',u'\\textsl',u'\\textit',u'\\texttt',u'\\textbf',u'\\text',u'\\textnormal',u'\\hbox',u'\\mbox']
 	private final static Set<String> TEXT_COMMANDS = new HashSet<String>(
@@ -79,17 +80,28 @@ public class TokenInput
 		"\\text", "\\textnormal", "\\hbox", "\\mbox"
 	}));
 
-	private final static Pattern WHITESPACE_RE = Pattern.compile("^\\s+");
+	/** Initial size of token buffer. */
+	private final static int INITIAL_TOKENS = 32;
 
 	/**
-	 * Pattern for handling special temporary error tags from resulting XML.
+	 * Shared strings for single-character ASCII tokens, so that the most common
+	 * tokens don't need a new string each time.
 	 */
-	private final static Pattern XERROR_RE = Pattern.compile(
-		"<xerror(only)?>(.*?)</xerror(only)?>");
+	private final static String[] CHAR_TOKENS = new String[128];
+	static
+	{
+		for(char c = 0; c < CHAR_TOKENS.length; c++)
+		{
+			CHAR_TOKENS[c] = String.valueOf(c).intern();
+		}
+	}
 
 	private String source;
-	private LinkedList<String> tokens;
-	private ListIterator<String> tokensIterator;
+
+	// Tokens are stored in an array; only the first tokenCount entries are used,
+	// and position is the index of the next token
+	private String[] tokens;
+	private int tokenCount, position;
 
 	// Used to store useful information while parsing
 	private Map<String, LinkedList<Object>> treeProperties;
@@ -107,11 +119,52 @@ public class TokenInput
 //  self.tokenize_latex_math(tex)
 //  self.tokens.append(None)
 		this.source = tex;
-		this.tokens = new LinkedList<String>();
+		this.tokens = new String[INITIAL_TOKENS];
 		tokenizeLatexMath(tex);
-		tokensIterator = tokens.listIterator();
 	}
 
+	/**
+	 * Adds a token to the end of the buffer.
+	 * @param token Token
+	 */
+	private void addToken(String token)
+	{
+		if(tokenCount == tokens.length)
+		{
+			tokens = Arrays.copyOf(tokens, tokens.length * 2);
+		}
+		tokens[tokenCount++] = token;
+	}
+
+	/**
+	 * Adds a token from part of the input string.
+	 * @param tex Input string
+	 * @param start Start position
+	 * @param end End position (exclusive)
+	 */
+	private void addToken(String tex, int start, int end)
+	{
+		char c = tex.charAt(start);
+		if(end == start + 1 && c < CHAR_TOKENS.length)
+		{
+			addToken(CHAR_TOKENS[c]);
+		}
+		else
+		{
+			addToken(tex.substring(start, end));
+		}
+	}
+
+	/**
+	 * Splits TeX into tokens.
+	 * <p>
+	 * This is a hand-written lexer that gives the same tokens as the regular
+	 * expressions above (which it replaced for performance). Note that the
+	 * expressions were used with {@link java.util.regex.Matcher#find(int)}, which is not
+	 * anchored, so characters that don't start any token are skipped if there
+	 * is a valid token later on; this behaviour is kept.
+	 * @param tex TeX input
+	 */
 	private void tokenizeLatexMath(String tex)
 	{
 //    in_text_mode = 0
@@ -130,198 +183,127 @@ public class TokenInput
 		{
 			tex = tex.substring(0, tex.length()-1);
 		}
+		int length = tex.length();
 
 //    while pos<len(tex):
-		while(pos < tex.length())
+		while(pos < length)
 		{
+			char c = tex.charAt(pos);
 //      if not in_text_mode:
 			if(inTextMode == 0)
 			{
-				Matcher m;
-				boolean matched;
-
 //        m = self.tokenize_strict_re.match(tex, pos)
-				m = STRICT_RE.matcher(tex);
-				matched = m.find(pos);
-
-//        #if no match then pass through as a single char token
-//        if m is None:
-//          if tex[pos]==u'\ud835':#check for two byte unicode
-//            self.tokens.append(tex[pos:pos+2])
-//            pos=pos+2
-//          else:
-//            self.tokens.append(tex[pos])
-//            pos=pos+1
-				// If no match then pass through as a single char token
-				if(!matched)
-				{
-					// Check for two-surrogate unicode - note I change this logic to do it
-					// properly rather than only supporting one range or whatever,
-					// hopefully that is correct.
-					if(Character.isHighSurrogate(tex.charAt(pos)))
-					{
-						tokens.add(tex.substring(pos, pos + 2));
-						pos += 2;
-					}
-					else
-					{
-						tokens.add(tex.substring(pos, pos + 1));
-						pos += 1;
-					}
-				}
-//        else:
-				else
+				if(c == '\\' && pos + 1 < length && isLetter(tex.charAt(pos + 1)))
 				{
-//        if m.end()==pos:
-//        print "matched nothing!"
-//        return
-					if(m.end() == pos)
-					{
-						// Matched nothing (I don't know why this had a print but figure
-						// it was only for debugging)
-						return;
-					}
-//        pos = m.end()
-					pos = m.end();
+					int end = skipLetters(tex, pos + 1);
+					String command = tex.substring(pos, end);
 //      if m.group(1) is not None:# e.g. \begin{fred}
 //        #self.tokens.extend(m.group((1,2))) #should work but doesn't always
 //        self.tokens.extend([m.group(1),m.group(2)])
-					if(m.group(1) != null)
+					int namedEnd = NAMED_ARGUMENT_COMMANDS.contains(command)
+						? addNamedArgument(tex, command, end) : -1;
+					if(namedEnd != -1)
 					{
 						// e.g. \begin{fred}
-						tokens.add(m.group(1));
-						tokens.add(m.group(2));
+						pos = namedEnd;
 					}
 //      elif m.group(3) == u"\\sp":
 //        self.tokens.append(u"^")
-					else if("\\sp".equals(m.group(3)))
+					else if("\\sp".equals(command))
 					{
-						tokens.add("^");
+						addToken(CHAR_TOKENS['^']);
+						pos = end;
 					}
 //      elif m.group(3) == u"\\sb":
 //        self.tokens.append(u"_")
-					else if("\\sb".equals(m.group(3)))
+					else if("\\sb".equals(command))
 					{
-						tokens.add("_");
-					}
-//      elif m.group(0) == u"$":
-//        in_text_mode = 1
-					else if("$".equals(m.group(0)))
-					{
-						inTextMode = 1;
-						// sam: I added this because when in text mode it expects a
-						// bracelevel
-						braceLevel.add(0);
-						// sam: I added this otherwise it doesn't work to re-enter text mode
-						tokens.add("$");
-					}
-//      elif m.group(4) is not None:
-//        continue
-					else if(m.group(4) != null)
-					{
-						continue;
-					}
-//      elif m.group(5) is not None:#numbers
-//        #sanitise numbers by removing \, added for readability
-//        s=m.group(5)
-//        #check for trailing \, and do not clobber this
-//        se=s[-2:]==ur'\,'
-//        s=re.sub(r'\\,','',s)
-//        s=re.sub(r'\s','',s)
-//        self.tokens.append(s)
-//        if se:
-//          self.tokens.append(ur'\,')
-					else if(m.group(5) != null)
-					{
-						// sanitise numbers by removing \, added for readability
-						String s = m.group(5);
-						// check for trailing \, and do not clobber this
-						boolean se = s.endsWith("\\,");
-						s = s.replace("\\,", "");
-						s = s.replaceAll("\\s", "");
-						tokens.add(s);
-						if(se)
-						{
-							tokens.add("\\,");
-						}
+						addToken(CHAR_TOKENS['_']);
+						pos = end;
 					}
 //      elif m.group(3) in self.tokenize_text_commands:
 //        in_text_mode = 2;
 //        brace_level.append(0)
-					else if(TEXT_COMMANDS.contains(m.group(3)))
+					else if(TEXT_COMMANDS.contains(command))
 					{
 						inTextMode = 2;
 						braceLevel.add(0);
 						// sam: It didn't add the token for the command before, but I think
 						// we need to?!
-						tokens.add(m.group(0));
+						addToken(command);
 						// sam: If there is whitespace after the \text command but before
 						// any opening brace, we need to skip it, or code like
 						// \text   {frog} fails.
-						Matcher ws = WHITESPACE_RE.matcher(tex);
-						ws.region(pos, tex.length());
-						if(ws.find())
-						{
-							pos = ws.end();
-						}
+						pos = skipSpaces(tex, end);
 					}
 //      else:
 //        self.tokens.append(m.group(0))
 					else
 					{
-						tokens.add(m.group(0));
+						addToken(command);
+						pos = end;
 					}
 				}
+				else if(c == '\\' && pos + 1 < length
+					&& ESCAPED_SYMBOLS.indexOf(tex.charAt(pos + 1)) != -1)
+				{
+					addToken(tex.substring(pos, pos + 2));
+					pos += 2;
+				}
+//      elif m.group(0) == u"$":
+//        in_text_mode = 1
+				else if(c == '$')
+				{
+					inTextMode = 1;
+					// sam: I added this because when in text mode it expects a
+					// bracelevel
+					braceLevel.add(0);
+					// sam: I added this otherwise it doesn't work to re-enter text mode
+					addToken(CHAR_TOKENS['$']);
+					pos++;
+				}
+//      elif m.group(4) is not None:
+//        continue
+				else if(isSpace(c))
+				{
+					pos = skipSpaces(tex, pos);
+				}
+//      elif m.group(5) is not None:#numbers
+//        #sanitise numbers by removing \, added for readability
+//        s=m.group(5)
+//        #check for trailing \, and do not clobber this
+//        se=s[-2:]==ur'\,'
+//        s=re.sub(r'\\,','',s)
+//        s=re.sub(r'\s','',s)
+//        self.tokens.append(s)
+//        if se:
+//          self.tokens.append(ur'\,')
+				// Numbers are tokenised one digit at a time, so the \, removal above
+				// does not apply.
+				else if(isStrictSymbol(c))
+				{
+					addToken(tex, pos, pos + 1);
+					pos++;
+				}
+//        #if no match then pass through as a single char token
+//        if m is None:
+//          if tex[pos]==u'\ud835':#check for two byte unicode
+//            self.tokens.append(tex[pos:pos+2])
+//            pos=pos+2
+//          else:
+//            self.tokens.append(tex[pos])
+//            pos=pos+1
+				else
+				{
+					pos = skipUnmatched(tex, pos, false);
+				}
 			}
 //    else:# parse text mode
 			else
 			{
-				// parse text mode
 //      m = self.tokenize_text_re.match(tex, pos)
-				Matcher m = TEXT_RE.matcher(tex);
-				boolean matched = m.find(pos);
-
-//      if m is None:#should never happen, but just in case.
-//        if tex[pos]==u'\ud835':#check for two byte unicode
-//          self.tokens.append(tex[pos:pos+2])
-//          pos=pos+2
-//        else:
-//          self.tokens.append(tex[pos])
-//          pos=pos+1
-				if (!matched)
-				{
-					// should never happen, but just in case.
-					// Check for two-surrogate unicode - note I change this logic to do it
-					// properly rather than only supporting one range or whatever,
-					// hopefully that is correct.
-					if(Character.isHighSurrogate(tex.charAt(pos)))
-					{
-						tokens.add(tex.substring(pos, pos + 2));
-						pos += 2;
-					}
-					else
-					{
-						tokens.add(tex.substring(pos, pos + 1));
-						pos += 1;
-					}
-				}
-//      else:
-				else
-				{
-//        if m.end()==pos:
-//        print "matched nothing!"
-//        return
-					if(m.end() == pos)
-					{
-						// Matched nothing (I don't know why this had a print but figure
-						// it was only for debugging)
-						return;
-					}
-
 //      pos = m.end()
 //      txt=m.group(0)
-					pos = m.end();
-					String txt = m.group(0);
 
 //      if txt == u"$":
 //        in_text_mode = 0
@@ -332,22 +314,54 @@ public class TokenInput
 //        if brace_level[-1] <= 0:
 //          in_text_mode = 0
 //          brace_level.pop()
-					if(txt.equals("$"))
+				if(c == '$')
+				{
+					inTextMode = 0;
+					addToken(CHAR_TOKENS['$']);
+					pos++;
+				}
+				else if(c == '{')
+				{
+					braceLevel.addLast(braceLevel.removeLast() + 1);
+					addToken(CHAR_TOKENS['{']);
+					pos++;
+				}
+				else if(c == '}')
+				{
+					braceLevel.addLast(braceLevel.removeLast() - 1);
+					if(braceLevel.getLast() <= 0)
 					{
 						inTextMode = 0;
+						braceLevel.removeLast();
 					}
-					else if(txt.equals("{"))
-					{
-						braceLevel.addLast(braceLevel.removeLast() + 1);
-					}
-					else if(txt.equals("}"))
+					addToken(CHAR_TOKENS['}']);
+					pos++;
+				}
+				else if(c == '\\')
+				{
+					if(pos + 1 < length && isLetter(tex.charAt(pos + 1)))
 					{
-						braceLevel.addLast(braceLevel.removeLast() - 1);
-						if(braceLevel.getLast() <= 0)
+						// Command, including one following whitespace character
+						int end = skipLetters(tex, pos + 1);
+						if(end < length && isSpace(tex.charAt(end)))
 						{
-							inTextMode = 0;
-							braceLevel.removeLast();
+							end++;
 						}
+						addToken(tex.substring(pos, end));
+						pos = end;
+					}
+					else
+					{
+						pos = skipUnmatched(tex, pos, true);
+					}
+				}
+				else
+				{
+					// Text up to the next special character
+					int end = pos + 1;
+					while(end < length && "{}$\\".indexOf(tex.charAt(end)) == -1)
+					{
+						end++;
 					}
 
 //      #print 'text source (%s)'%txt
@@ -361,14 +375,174 @@ public class TokenInput
 //      #map tildes to unbreakable spaces
 //      txt=re.sub('~',u'\u00A0',txt)
 					// map tildes to unbreakable spaces
-					txt = txt.replace('~', '\u00a0');
 //      self.tokens.append(txt)
-					tokens.add(txt);
+					if(end == pos + 1 && c != '~')
+					{
+						addToken(tex, pos, end);
+					}
+					else
+					{
+						addToken(tex.substring(pos, end).replace('~', '\u00a0'));
+					}
+					pos = end;
 				}
 			}
 		}
 	}
 
+	/**
+	 * Handles a character that does not start any token. As with the regular
+	 * expression search that this replaced, the character is skipped if there
+	 * is a valid token later on; otherwise the rest of the input is added as
+	 * single-character tokens.
+	 * @param tex TeX input
+	 * @param pos Position of character
+	 * @param textMode True if in text mode
+	 * @return New position
+	 */
+	private int skipUnmatched(String tex, int pos, boolean textMode)
+	{
+		int length = tex.length();
+		for(int i = pos + 1; i < length; i++)
+		{
+			char c = tex.charAt(i);
+			boolean matches;
+			if(c == '\\')
+			{
+				matches = i + 1 < length && (isLetter(tex.charAt(i + 1))
+					|| (!textMode && ESCAPED_SYMBOLS.indexOf(tex.charAt(i + 1)) != -1));
+			}
+			else
+			{
+				matches = textMode || isSpace(c) || isStrictSymbol(c);
+			}
+			if(matches)
+			{
+				return i;
+			}
+		}
+
+		// No more tokens, so pass through the rest as single characters.
+		// Check for two-surrogate unicode - note I change this logic to do it
+		// properly rather than only supporting one range or whatever,
+		// hopefully that is correct.
+		while(pos < length)
+		{
+			if(Character.isHighSurrogate(tex.charAt(pos)))
+			{
+				addToken(tex, pos, pos + 2);
+				pos += 2;
+			}
+			else
+			{
+				addToken(tex, pos, pos + 1);
+				pos += 1;
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Adds the tokens for a command such as \begin{fred}, if the name in braces
+	 * is present.
+	 * @param tex TeX input
+	 * @param command Command
+	 * @param pos Position after command
+	 * @return Position after the closing brace, or -1 if no name
+	 */
+	private int addNamedArgument(String tex, String command, int pos)
+	{
+		int length = tex.length();
+		int brace = skipSpaces(tex, pos);
+		if(brace >= length || tex.charAt(brace) != '{')
+		{
+			return -1;
+		}
+
+		// Leading whitespace is skipped, but spaces can be part of the name; as in
+		// the regular expression, use as much whitespace as possible.
+		int afterSpaces = skipSpaces(tex, brace + 1);
+		for(int start = afterSpaces; start > brace; start--)
+		{
+			if(start >= length || !(start == afterSpaces
+				? isLetter(tex.charAt(start)) : tex.charAt(start) == ' '))
+			{
+				continue;
+			}
+			int end = start;
+			while(end < length && (isLetter(tex.charAt(end)) || tex.charAt(end) == ' '))
+			{
+				end++;
+			}
+			int close = skipSpaces(tex, end);
+			if(close < length && tex.charAt(close) == '}')
+			{
+				addToken(command);
+				addToken(tex.substring(start, end));
+				return close + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param c Character
+	 * @return True if the character is a single-character token outside text
+	 *   mode (digit, decimal point, letter, @, or symbol)
+	 */
+	private static boolean isStrictSymbol(char c)
+	{
+		return (c >= '0' && c <= '9') || isLetter(c) || c == '@'
+			|| SYMBOLS.indexOf(c) != -1;
+	}
+
+	/**
+	 * @param c Character
+	 * @return True if it's an ASCII letter
+	 */
+	private static boolean isLetter(char c)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+	}
+
+	/**
+	 * @param c Character
+	 * @return True if it's whitespace (as in regular expression \s)
+	 */
+	private static boolean isSpace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f'
+			|| c == '\r';
+	}
+
+	/**
+	 * @param tex TeX input
+	 * @param pos Start position
+	 * @return Position of first non-letter character at or after pos
+	 */
+	private static int skipLetters(String tex, int pos)
+	{
+		while(pos < tex.length() && isLetter(tex.charAt(pos)))
+		{
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param tex TeX input
+	 * @param pos Start position
+	 * @return Position of first non-whitespace character at or after pos
+	 */
+	private static int skipSpaces(String tex, int pos)
+	{
+		while(pos < tex.length() && isSpace(tex.charAt(pos)))
+		{
+			pos++;
+		}
+		return pos;
+	}
+
 	/**
 	* Converts tokenised data to MathML.
 	* @param display True if this is display equation
@@ -390,15 +564,16 @@ public class TokenInput
 		{
 			LatexToMathml converter = new LatexToMathml();
 			Element root = converter.convert(this, display);
-			result = saveXml(root);
+			// Writing converts the temporary <xerror> tags into mspace and comment
+			result = MathmlWriter.write(root, true);
 		}
 		catch(Throwable t)
 		{
 			try
 			{
-				result = saveXml(LatexToMathml.createErrorElement(
+				result = MathmlWriter.write(LatexToMathml.createErrorElement(
 					"TeX to MathML conversion failure: " + t.getClass()
-					+ (t.getMessage() == null ? "" : " " + t.getMessage())));
+					+ (t.getMessage() == null ? "" : " " + t.getMessage())), true);
 			}
 			catch(ParserConfigurationException e)
 			{
@@ -406,45 +581,7 @@ public class TokenInput
 			}
 		}
 
-		// Result may contain fake <xerror> tags. Convert these to mspace and comment.
-		StringBuffer out = new StringBuffer();
-		Matcher m = XERROR_RE.matcher(result);
-		while(m.find())
-		{
-			String replacement;
-
-			// If it's not 'error only' then we add an mspace. (This is in case the
-			// error item occurred inside something like an <mfrac> where MathML is
-			// expecting a specific number of parameters.)
-			if(m.group(1) != null)
-			{
-				replacement = "<!-- ";
-			}
-			else
-			{
-				replacement = "<mspace/><!-- ";
-			}
-
-			// To get the replacement text, we need to actually parse it as XML
-			// again (just this single entity)
-			String unescaped;
-			try
-			{
-				DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-				Document d = builder.parse(new InputSource(new StringReader(m.group())));
-				unescaped = ((Text)d.getDocumentElement().getFirstChild()).getNodeValue();
-			}
-			catch(Throwable t)
-			{
-				throw new Error("Error parsing error value", t);
-			}
-
-			replacement += unescaped;
-			replacement += " -->";
-			m.appendReplacement(out, Matcher.quoteReplacement(replacement));
-		}
-		m.appendTail(out);
-		return out.toString();
+		return result;
 	}
 
 	/**
@@ -454,10 +591,7 @@ public class TokenInput
 	*/
 	static String saveXml(Element e)
 	{
-		Document document = e.getOwnerDocument();
-		DOMImplementationLS domImplLS = (DOMImplementationLS)document.getImplementation();
-		LSSerializer serializer = domImplLS.createLSSerializer();
-		return serializer.writeToString(e).replaceFirst("^<\\?xml.*\n", "");
+		return MathmlWriter.write(e, false);
 	}
 
 	/**
@@ -469,11 +603,11 @@ public class TokenInput
 	*/
 	public String nextToken()
 	{
-		if(!tokensIterator.hasNext())
+		if(position >= tokenCount)
 		{
 			return null;
 		}
-		String result = tokensIterator.next();
+		String result = tokens[position++];
 		if(debug)
 		{
 			System.err.println("TOKEN [" + result + "]");
@@ -489,13 +623,7 @@ public class TokenInput
 	*/
 	public String peekToken()
 	{
-		if(!tokensIterator.hasNext())
-		{
-			return null;
-		}
-		String result = tokensIterator.next();
-		tokensIterator.previous();
-		return result;
+		return peekToken(0);
 	}
 
 	/**
@@ -507,31 +635,23 @@ public class TokenInput
 	*/
 	public String peekToken(int offset)
 	{
-		if(!tokensIterator.hasNext())
-		{
-			return null;
-		}
-		String result = tokensIterator.next();
-		for(int i=1; i<=offset; i++)
-		{
-			if(!tokensIterator.hasNext())
-			{
-				// If we find a null at any point, we reached end of list, so stop and
-				// rewind the same amount...
-				for(int j=0; j<i; j++)
-				{
-					tokensIterator.previous();
-				}
-				// ...then return the null
-				return null;
-			}
-			result = tokensIterator.next();
-		}
-		for(int i=0; i<=offset; i++)
+		int index = position + offset;
+		return index < tokenCount ? tokens[index] : null;
+	}
+
+	/**
+	* Skips tokens, as if calling {@link #nextToken()} the given number of
+	* times.
+	* <p>
+	* This function was not in the Python version.
+	* @param count Number of tokens to skip
+	*/
+	public void skipTokens(int count)
+	{
+		for(int i=0; i<count; i++)
 		{
-			tokensIterator.previous();
+			nextToken();
 		}
-		return result;
 	}
 
 	/**
@@ -541,8 +661,11 @@ public class TokenInput
 	 */
 	public void backAndOverwriteToken(String value)
 	{
-		tokensIterator.previous();
-		tokensIterator.set(value);
+		if(position == 0)
+		{
+			throw new NoSuchElementException();
+		}
+		tokens[--position] = value;
 		if(debug)
 		{
 			System.err.println("TOKEN [" + value + "] back");
@@ -553,18 +676,19 @@ public class TokenInput
 	 * Insert extra tokens before the current one. (EWWW.)
 	 * <p>
 	 * This function was not in the Python version but I added it.
-	 * @param tokens Tokens to insert
+	 * @param extra Tokens to insert
 	 */
-	public void insertTokensBeforeCurrent(String... tokens)
+	public void insertTokensBeforeCurrent(String... extra)
 	{
-		for(String token : tokens)
-		{
-			tokensIterator.add(token);
-		}
-		for(int i=0; i<tokens.length; i++)
+		if(tokenCount + extra.length > tokens.length)
 		{
-			tokensIterator.previous();
+			tokens = Arrays.copyOf(tokens,
+				Math.max(tokens.length * 2, tokenCount + extra.length));
 		}
+		System.arraycopy(tokens, position, tokens, position + extra.length,
+			tokenCount - position);
+		System.arraycopy(extra, 0, tokens, position, extra.length);
+		tokenCount += extra.length;
 	}
 
 	/**
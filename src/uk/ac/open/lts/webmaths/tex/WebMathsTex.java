@@ -20,75 +20,30 @@ package uk.ac.open.lts.webmaths.tex;
 
 import javax.jws.WebService;
 
-import org.w3c.dom.Document;
-
-import uk.ac.open.lts.webmaths.*;
+import uk.ac.open.lts.webmaths.WebMathsService;
 
 @WebService(endpointInterface="uk.ac.open.lts.webmaths.tex.MathsTexPort",
 	targetNamespace="http://ns.open.ac.uk/lts/vle/filter_maths/",
 	serviceName="MathsTex", portName="MathsTexPort")
 public class WebMathsTex extends WebMathsService implements MathsTexPort
 {
-	private MathmlToLatex texConverter;
-
 	@Override
 	public MathsTexReturn getMathml(MathsTexParams params)
 	{
-		// Set up default return values
-		MathsTexReturn result = new MathsTexReturn();
-		result.setOk(false);
-		result.setError("");
-		result.setMathml("");
-		try
-		{
-			// Convert TeX to MathML
-			TokenInput input = new TokenInput(params.getTex());
-			String mathml = input.toMathml(params.isDisplay());
-
-			result.setMathml(mathml);
-			result.setOk(true);
-		}
-		catch(Throwable t)
-		{
-			t.printStackTrace(); // TODO Get rid of this or log somehow
-			result.setError(t.getMessage());
-		}
-
-		return result;
+		return TexConversions.get(getServletContext()).getMathml(params);
 	}
 
 	@Override
 	public GetTexReturn getTex(GetTexParams params)
 	{
-		// Set up default return values
-		GetTexReturn result = new GetTexReturn();
-		result.setOk(false);
-		result.setError("");
-		result.setTex("");
-
-		// Set up the converter if we didn't already
-		synchronized(this)
-		{
-			if(texConverter == null)
-			{
-				texConverter = new MathmlToLatex(getFixer());
-			}
-		}
-
-		try
-		{
-			// Parse MathML
-			Document doc = parseMathml(params.getMathml());
-			// Convert MathML to TeX
-			result.setTex(texConverter.convert(doc, params.isLenient()));
-			result.setOk(true);
-		}
-		catch(Throwable t)
-		{
-			t.printStackTrace(); // TODO Get rid of this or log somehow
-			result.setError("Error converting MathML to TeX: " + t.getMessage());
-		}
+		return TexConversions.get(getServletContext()).getTex(params);
+	}
 
-		return result;
+	@Override
+	public ConvertTexEquationsReturn convertEquations(ConvertTexEquationsParams params)
+	{
+		TexConversions conversions = TexConversions.get(getServletContext());
+		return TexConversions.convertEquations(conversions, params,
+			conversions.getThreadPool());
 	}
 }
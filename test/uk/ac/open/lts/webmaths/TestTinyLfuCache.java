@@ -0,0 +1,134 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestTinyLfuCache
+{
+	/** Weigher that uses string length as the size. */
+	private final static TinyLfuCache.Weigher<String, String> LENGTH_WEIGHER =
+		new TinyLfuCache.Weigher<String, String>()
+	{
+		@Override
+		public long getBytes(String key, String value)
+		{
+			return value.length();
+		}
+	};
+
+	@Test
+	public void testGetAndPut()
+	{
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+			10000, LENGTH_WEIGHER);
+		assertNull(cache.get("a"));
+		cache.put("a", "frog");
+		assertEquals("frog", cache.get("a"));
+		cache.put("a", "toad");
+		assertEquals("toad", cache.get("a"));
+
+		ResultCache.Stats stats = cache.getStats();
+		assertEquals(2, stats.getHits());
+		assertEquals(1, stats.getMisses());
+		assertEquals(1, stats.getEntries());
+		assertEquals(4, stats.getBytes());
+		assertEquals(10000, stats.getMaxBytes());
+
+		cache.clear();
+		assertNull(cache.get("a"));
+		assertEquals(0, cache.getStats().getBytes());
+	}
+
+	@Test
+	public void testPeek()
+	{
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+			10000, LENGTH_WEIGHER);
+		assertNull(cache.peek("a"));
+		cache.put("a", "frog");
+		assertEquals("frog", cache.peek("a"));
+
+		// Peeking doesn't count in the stats
+		ResultCache.Stats stats = cache.getStats();
+		assertEquals(0, stats.getHits());
+		assertEquals(0, stats.getMisses());
+	}
+
+	@Test
+	public void testByteLimit()
+	{
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+			1000, LENGTH_WEIGHER);
+		String value = "0123456789";
+		for(int i = 0; i < 1000; i++)
+		{
+			cache.put("k" + i, value);
+			assertTrue(cache.getStats().getBytes() <= 1000);
+		}
+		ResultCache.Stats stats = cache.getStats();
+		assertTrue(stats.getEntries() <= 100);
+		assertEquals(1000 - stats.getEntries(), stats.getEvictions());
+
+		// Values larger than the cache are not kept at all.
+		StringBuilder huge = new StringBuilder();
+		for(int i = 0; i < 200; i++)
+		{
+			huge.append(value);
+		}
+		cache.put("huge", huge.toString());
+		assertNull(cache.get("huge"));
+	}
+
+	@Test
+	public void testFrequentEntriesSurviveScan()
+	{
+		TinyLfuCache<String, String> cache = new TinyLfuCache<String, String>(
+			1000, LENGTH_WEIGHER);
+		String value = "0123456789";
+
+		// Add some popular entries and request them a few times.
+		for(int i = 0; i < 20; i++)
+		{
+			cache.put("popular" + i, value);
+		}
+		for(int repeat = 0; repeat < 5; repeat++)
+		{
+			for(int i = 0; i < 20; i++)
+			{
+				assertNotNull(cache.get("popular" + i));
+			}
+		}
+
+		// Now add lots of entries that are each only requested once.
+		for(int i = 0; i < 500; i++)
+		{
+			assertNull(cache.get("once" + i));
+			cache.put("once" + i, value);
+		}
+
+		// The popular ones should all still be there.
+		for(int i = 0; i < 20; i++)
+		{
+			assertNotNull(cache.get("popular" + i));
+		}
+	}
+}
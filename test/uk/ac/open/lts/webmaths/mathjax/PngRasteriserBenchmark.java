@@ -0,0 +1,62 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+/**
+ * Compares PNG rendering speed with Batik and with the direct Java2D
+ * renderer. Run from the command line (not a unit test); the optional
+ * parameter is the number of iterations.
+ */
+public class PngRasteriserBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		String[] svgs =
+		{
+			TestPngRasteriser.getPixelSvg(7.26667),
+			TestPngRasteriser.getPixelSvg(23.0)
+		};
+
+		System.out.println("Renderer,Milliseconds,Microseconds per image");
+		// Run everything twice; the first round is warm-up.
+		for(int round = 0; round < 2; round++)
+		{
+			for(boolean direct : new boolean[] { false, true })
+			{
+				PngRasteriser rasteriser = new PngRasteriser(1, direct);
+				long start = System.nanoTime();
+				for(int i = 0; i < iterations; i++)
+				{
+					rasteriser.rasterise(svgs[i % svgs.length]);
+				}
+				long nanos = System.nanoTime() - start;
+				if(round == 1)
+				{
+					System.out.println((direct ? "Java2D" : "Batik") + "," + (nanos / 1000000)
+						+ "," + (nanos / 1000 / iterations));
+				}
+				if(rasteriser.getFallbackCount() != 0)
+				{
+					throw new Exception("Unexpected fallback to Batik");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.ConversionResults;
+
+public class TestDiskConversionStore
+{
+	private File folder;
+
+	@Before
+	public void before() throws IOException
+	{
+		folder = File.createTempFile("webmaths", ".diskcache");
+		folder.delete();
+		folder.mkdir();
+	}
+
+	@After
+	public void after()
+	{
+		for(File file : folder.listFiles())
+		{
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	private static InputEquation eq(String tex)
+	{
+		return new InputTexInlineEquation(tex, InputEquation.DEFAULT_FONT);
+	}
+
+	@Test
+	public void testStoreAndReopen() throws IOException
+	{
+		DiskConversionStore store = new DiskConversionStore(folder, 10000000);
+		assertNull(store.get(eq("x")));
+		store.storeAsync(eq("x"), new ConversionResults("<svg>x</svg>", "<math>x</math>"));
+		store.storeAsync(eq("y"), new ConversionResults("<svg>é</svg>", "<math>y</math>"));
+		store.flush();
+
+		ConversionResults results = store.get(eq("x"));
+		assertEquals("<svg>x</svg>", results.getSvg());
+		assertEquals("<math>x</math>", results.getMathml());
+		assertEquals("<svg>é</svg>", store.get(eq("y")).getSvg());
+
+		// Same content in a different font is a different equation.
+		assertNull(store.get(new InputTexInlineEquation("x", "STIX-Web")));
+		store.close();
+
+		// Results are still there after reopening.
+		store = new DiskConversionStore(folder, 10000000);
+		assertEquals("<math>x</math>", store.get(eq("x")).getMathml());
+		assertEquals(2, store.getStats().getEntries());
+		store.close();
+	}
+
+	@Test
+	public void testPartialRecord() throws IOException
+	{
+		DiskConversionStore store = new DiskConversionStore(folder, 10000000);
+		store.storeAsync(eq("x"), new ConversionResults("<svg>x</svg>", "<math>x</math>"));
+		store.flush();
+		store.close();
+
+		// Simulate a crash part way through writing another record.
+		File segment = new File(folder, "segment-00000000.dat");
+		long validLength = segment.length();
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.seek(validLength);
+		file.writeInt(0x4d4a5231);
+		file.write(new byte[10]);
+		file.close();
+
+		store = new DiskConversionStore(folder, 10000000);
+		assertEquals(validLength, segment.length());
+		assertEquals("<svg>x</svg>", store.get(eq("x")).getSvg());
+
+		// New records can be added after the truncated one.
+		store.storeAsync(eq("y"), new ConversionResults("<svg>y</svg>", "<math>y</math>"));
+		store.flush();
+		store.close();
+		store = new DiskConversionStore(folder, 10000000);
+		assertEquals("<svg>y</svg>", store.get(eq("y")).getSvg());
+		assertEquals("<svg>x</svg>", store.get(eq("x")).getSvg());
+		store.close();
+	}
+
+	@Test
+	public void testSizeLimit() throws IOException
+	{
+		// Minimum segment size is 1MB, so this allows about 3 segments.
+		long max = 3L * 1024L * 1024L;
+		DiskConversionStore store = new DiskConversionStore(folder, max);
+		StringBuilder big = new StringBuilder();
+		for(int i = 0; i < 10000; i++)
+		{
+			big.append('a');
+		}
+		String svg = big.toString();
+
+		// Write one result and keep reading it so that it survives compaction.
+		store.storeAsync(eq("popular"), new ConversionResults(svg, "popular"));
+		store.flush();
+		for(int i = 0; i < 1000; i++)
+		{
+			assertNotNull(store.get(eq("popular")));
+			store.storeAsync(eq("x" + i), new ConversionResults(svg, "x"));
+			store.flush();
+		}
+
+		assertTrue(store.getStats().getBytes() <= max);
+		assertTrue(store.getStats().getEvictions() > 0);
+		assertNull(store.get(eq("x0")));
+		assertEquals("popular", store.get(eq("popular")).getMathml());
+		assertEquals("x", store.get(eq("x999")).getMathml());
+		store.close();
+
+		// Old segments have been deleted and the index files are valid.
+		assertTrue(folder.listFiles().length <= 8);
+		store = new DiskConversionStore(folder, max);
+		assertEquals("popular", store.get(eq("popular")).getMathml());
+		assertNull(store.get(eq("x0")));
+		store.close();
+	}
+
+	@Test
+	public void testReadDuringRollover() throws Exception
+	{
+		// Segments are 1MB (an eighth of the maximum); nothing gets compacted
+		final DiskConversionStore store = new DiskConversionStore(folder, 8L * 1024L * 1024L);
+		StringBuilder big = new StringBuilder();
+		for(int i = 0; i < 10000; i++)
+		{
+			big.append('a');
+		}
+		String svg = big.toString();
+
+		// Readers keep reading the newest results (in the active segment) while
+		// the writer seals it and starts another
+		final AtomicInteger stored = new AtomicInteger();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final AtomicBoolean finished = new AtomicBoolean();
+		Thread[] readers = new Thread[4];
+		for(int i = 0; i < readers.length; i++)
+		{
+			readers[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while(!finished.get())
+						{
+							int count = stored.get();
+							for(int j = Math.max(0, count - 5); j < count; j++)
+							{
+								if(store.get(eq("x" + j)) == null)
+								{
+									failure.compareAndSet(null, "Missing x" + j);
+								}
+							}
+						}
+					}
+					catch(Throwable t)
+					{
+						failure.compareAndSet(null, t.toString());
+					}
+				}
+			});
+			readers[i].start();
+		}
+
+		for(int i = 0; i < 400; i++)
+		{
+			store.storeAsync(eq("x" + i), new ConversionResults(svg, "x"));
+			store.flush();
+			stored.set(i + 1);
+		}
+		finished.set(true);
+		for(Thread reader : readers)
+		{
+			reader.join();
+		}
+
+		assertNull(failure.get());
+		assertEquals(400, store.getStats().getEntries());
+		assertTrue(folder.listFiles().length > 4);
+		store.close();
+	}
+
+	@Test
+	public void testInterruptedReader() throws IOException
+	{
+		DiskConversionStore store = new DiskConversionStore(folder, 10000000);
+		store.storeAsync(eq("x"), new ConversionResults("<svg>x</svg>", "<math>x</math>"));
+		store.flush();
+
+		// A request thread that has been interrupted can still read the active
+		// segment, and doesn't stop the writer from using it.
+		Thread.currentThread().interrupt();
+		try
+		{
+			assertEquals("<svg>x</svg>", store.get(eq("x")).getSvg());
+		}
+		finally
+		{
+			assertTrue(Thread.interrupted());
+		}
+		store.storeAsync(eq("y"), new ConversionResults("<svg>y</svg>", "<math>y</math>"));
+		store.flush();
+		assertEquals("<svg>y</svg>", store.get(eq("y")).getSvg());
+		assertEquals("<svg>x</svg>", store.get(eq("x")).getSvg());
+		store.close();
+	}
+
+	@Test(timeout=60000)
+	public void testFlushFullQueue() throws IOException
+	{
+		// Queue more writes than there is room for; flush must still return.
+		DiskConversionStore store = new DiskConversionStore(folder, 100000000);
+		for(int i = 0; i < 5000; i++)
+		{
+			store.storeAsync(eq("x" + i), new ConversionResults("<svg>x</svg>", "x"));
+		}
+		store.flush();
+		assertEquals("x", store.get(eq("x0")).getMathml());
+		store.close();
+	}
+}
@@ -0,0 +1,236 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+public class TestInstancePool
+{
+	private static MathJaxNodeInstance newInstance(InstancePool pool, long started)
+	{
+		MathJaxNodeInstance instance = new MathJaxNodeInstance(started, pool.getFont());
+		instance.tryReserveIdle();
+		pool.add(instance);
+		return instance;
+	}
+
+	@Test
+	public void testAcquireAndRelease() throws Exception
+	{
+		InstancePool pool = new InstancePool("TeX", 1);
+		assertNull(pool.tryAcquire(Priority.INTERACTIVE));
+
+		MathJaxNodeInstance instance = newInstance(pool, 1);
+		assertNull(pool.tryAcquire(Priority.INTERACTIVE));
+		assertTrue(pool.release(instance));
+		assertSame(instance, pool.tryAcquire(Priority.INTERACTIVE));
+		assertNull(pool.tryAcquire(Priority.INTERACTIVE));
+
+		// Closed instances are skipped.
+		assertTrue(pool.release(instance));
+		assertSame(instance, pool.tryRetireIdle());
+		assertTrue(pool.getMembers().isEmpty());
+		assertNull(pool.tryAcquire(Priority.INTERACTIVE));
+	}
+
+	@Test
+	public void testPipelineDepth() throws Exception
+	{
+		InstancePool pool = new InstancePool("TeX", 2);
+		MathJaxNodeInstance instance = newInstance(pool, 1);
+		assertSame(instance, pool.tryAcquire(Priority.INTERACTIVE));
+		assertNull(pool.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(2, instance.getUsers());
+		assertFalse(pool.release(instance));
+		assertTrue(pool.release(instance));
+		assertEquals(0, instance.getUsers());
+	}
+
+	@Test
+	public void testPipelineLeastBusy() throws Exception
+	{
+		InstancePool pool = new InstancePool("TeX", 4);
+		MathJaxNodeInstance first = newInstance(pool, 1);
+		MathJaxNodeInstance second = newInstance(pool, 2);
+		assertTrue(first.tryReserveExtra(4));
+
+		// Extra requests go to whichever instance has fewest already.
+		assertSame(second, pool.tryAcquire(Priority.INTERACTIVE));
+		assertSame(first, pool.tryAcquire(Priority.BULK));
+		assertSame(second, pool.tryAcquire(Priority.INTERACTIVE));
+		assertEquals(3, first.getUsers());
+		assertEquals(3, second.getUsers());
+	}
+
+	@Test
+	public void testNoBulkPipelineWhileInteractiveWaits() throws Exception
+	{
+		final InstancePool pool = new InstancePool("TeX", 2);
+		MathJaxNodeInstance instance = newInstance(pool, 1);
+		assertSame(instance, pool.tryAcquire(Priority.BULK));
+
+		// Instance is full, so an interactive request has to wait.
+		final MathJaxNodeInstance[] got = new MathJaxNodeInstance[1];
+		Thread waiting = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					got[0] = pool.await(10000, null, Priority.INTERACTIVE);
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}, "Waiter-I");
+		waiting.start();
+		while(waiting.getState() != Thread.State.TIMED_WAITING)
+		{
+			Thread.sleep(10);
+		}
+
+		// A slot frees up without being handed over (as in a race with release).
+		// A bulk request can't take it from the waiting interactive one.
+		instance.releaseUser();
+		assertNull(pool.tryAcquire(Priority.BULK));
+		assertSame(instance, pool.tryAcquire(Priority.INTERACTIVE));
+
+		// Once no interactive requests are waiting, bulk ones can pipeline again.
+		assertFalse(pool.release(instance));
+		waiting.join();
+		assertSame(instance, got[0]);
+		assertFalse(pool.release(instance));
+		assertSame(instance, pool.tryAcquire(Priority.BULK));
+	}
+
+	@Test
+	public void testHandOverToOneWaiter() throws Exception
+	{
+		final InstancePool pool = new InstancePool("TeX", 1);
+		MathJaxNodeInstance instance = newInstance(pool, 1);
+
+		// Start several threads waiting for an instance.
+		final List<MathJaxNodeInstance> got = new LinkedList<MathJaxNodeInstance>();
+		for(int i = 0; i < 3; i++)
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						MathJaxNodeInstance result = pool.await(500, null, Priority.INTERACTIVE);
+						synchronized(got)
+						{
+							got.add(result);
+							got.notifyAll();
+						}
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}, "Waiter-" + i).start();
+		}
+		Thread.sleep(100);
+
+		// Releasing the instance gives it to exactly one of them.
+		assertFalse(pool.release(instance));
+		synchronized(got)
+		{
+			while(got.size() < 3)
+			{
+				got.wait();
+			}
+		}
+		int count = 0;
+		for(MathJaxNodeInstance result : got)
+		{
+			if(result != null)
+			{
+				assertSame(instance, result);
+				count++;
+			}
+		}
+		assertEquals(1, count);
+		assertEquals(1, instance.getUsers());
+	}
+
+	@Test
+	public void testPriority() throws Exception
+	{
+		final InstancePool pool = new InstancePool("TeX", 1);
+		MathJaxNodeInstance instance = newInstance(pool, 1);
+
+		// One bulk request waits, followed by several interactive ones. Each
+		// records when it gets the instance, then releases it.
+		final List<String> order = new LinkedList<String>();
+		String[] labels = { "B", "I1", "I2", "I3", "I4", "I5" };
+		for(final String label : labels)
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						MathJaxNodeInstance result = pool.await(2000, null,
+							label.startsWith("B") ? Priority.BULK : Priority.INTERACTIVE);
+						synchronized(order)
+						{
+							order.add(result == null ? "none" : label);
+							order.notifyAll();
+						}
+						if(result != null)
+						{
+							pool.release(result);
+						}
+					}
+					catch(Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}, "Waiter-" + label).start();
+			Thread.sleep(50);
+		}
+
+		// Interactive requests get the instance first, but the bulk one isn't
+		// left waiting forever.
+		pool.release(instance);
+		synchronized(order)
+		{
+			while(order.size() < labels.length)
+			{
+				order.wait();
+			}
+		}
+		assertEquals(Arrays.asList("I1", "I2", "I3", "I4", "B", "I5"), order);
+	}
+}
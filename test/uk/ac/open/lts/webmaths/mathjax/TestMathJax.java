@@ -22,12 +22,16 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.*;
 
 import javax.servlet.ServletContext;
 
 import org.junit.*;
 
+import uk.ac.open.lts.webmaths.VirtualThreads;
+import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.ConversionResults;
+
 public class TestMathJax
 {
 	/**
@@ -108,6 +112,9 @@ public class TestMathJax
 		void expect(InputEquation expected, String svg, String mathml)
 		{
 			checkNothingExpected();
+			// Tests reuse the same equation with different results, so they mustn't
+			// get earlier output from the cache.
+			mathJax.clearOutputCache();
 			this.expected = expected;
 			this.results = new ConversionResults(svg, mathml);
 		}
@@ -121,7 +128,8 @@ public class TestMathJax
 		}
 
 		@Override
-		public ConversionResults convertEquation(InputEquation eq)
+		public ConversionResults convertEquation(InputEquation eq, Priority priority,
+			Set<ConversionOutput> outputs)
 			throws IOException, MathJaxException
 		{
 			assertNotNull("Not expecting a convert call", expected);
@@ -133,6 +141,75 @@ public class TestMathJax
 		}
 	}
 
+	/**
+	 * Mock executable for batch tests, which converts several equations at
+	 * once in any order. Equations can be made to wait for a latch.
+	 */
+	private class BatchExecutableMock extends MathJaxNodeExecutable
+	{
+		private final Map<InputEquation, ConversionResults> results =
+			new ConcurrentHashMap<InputEquation, ConversionResults>();
+		private final Map<InputEquation, CountDownLatch> latches =
+			new ConcurrentHashMap<InputEquation, CountDownLatch>();
+		private final Map<InputEquation, Thread> threads =
+			new ConcurrentHashMap<InputEquation, Thread>();
+
+		/**
+		 * Adds an equation that converts successfully.
+		 * @param eq Equation
+		 * @param latch Latch to wait for before returning the result, or null
+		 * @return Results that will be returned
+		 */
+		ConversionResults add(InputEquation eq, CountDownLatch latch)
+		{
+			ConversionResults result = new ConversionResults(SVG_X, MATHML_X);
+			results.put(eq, result);
+			if(latch != null)
+			{
+				latches.put(eq, latch);
+			}
+			return result;
+		}
+
+		/**
+		 * @param eq Equation
+		 * @return Thread that converted the equation, or null if not converted
+		 */
+		Thread getThread(InputEquation eq)
+		{
+			return threads.get(eq);
+		}
+
+		@Override
+		public ConversionResults convertEquation(InputEquation eq, Priority priority,
+			Set<ConversionOutput> outputs)
+			throws IOException, MathJaxException
+		{
+			threads.put(eq, Thread.currentThread());
+			CountDownLatch latch = latches.get(eq);
+			if(latch != null)
+			{
+				try
+				{
+					if(!latch.await(10, TimeUnit.SECONDS))
+					{
+						throw new IOException("Latch not released");
+					}
+				}
+				catch(InterruptedException e)
+				{
+					throw new IOException("Interrupted");
+				}
+			}
+			ConversionResults result = results.get(eq);
+			if(result == null)
+			{
+				throw new MathJaxException("Unknown equation");
+			}
+			return result;
+		}
+	}
+
 	/**
 	 * Test version of the MathJax class. Only change is to use the mock executable.
 	 */
@@ -146,11 +223,12 @@ public class TestMathJax
 		@Override
 		protected MathJaxNodeExecutable createExecutable(ServletContext servletContext)
 		{
-			return mockExecutable;
+			return batchExecutable != null ? batchExecutable : mockExecutable;
 		}
 	}
 
 	private MathJaxNodeExecutableMock mockExecutable;
+	private BatchExecutableMock batchExecutable;
 	private MathJaxTester mathJax;
 
 	@Before
@@ -397,6 +475,231 @@ public class TestMathJax
 		}
 	}
 
+	@Test
+	public void testSvgOutputs() throws Exception
+	{
+		// All the outputs come from a single conversion (the mock only allows one).
+		InputEquation eq = new InputTexDisplayEquation("x", null);
+		mockExecutable.expect(eq, SVG_X, MATHML_X);
+		MathJax.SvgOutputs outputs = mathJax.getSvgOutputs(eq, 10.0, "#ff0000", Priority.BULK);
+		String pxSvg = outputs.getPxSvg();
+		String exSvg = outputs.getExSvg();
+		assertTrue(pxSvg.contains("height=\"18px\""));
+		assertTrue(pxSvg.contains("fill=\"#ff0000\""));
+		assertTrue(exSvg.contains("vertical-align: -0.3400ex"));
+		assertEquals(4.0, outputs.getPxBaseline(), 0.000001);
+		assertEquals(0.34, outputs.getExBaseline(), 0.000001);
+		assertEquals(mathJax.getPxBaselineFromSvg(MathJax.offsetSvg(pxSvg, MathJax.PNG_OFFSET)),
+			outputs.getPngBaseline(), 0.000001);
+
+		// They match the separate methods, which now use the cache.
+		assertEquals(pxSvg, mathJax.getSvg(eq, true, 10.0, "#ff0000"));
+		assertEquals(exSvg, mathJax.getSvg(eq, true, MathJax.SIZE_IN_EX, "#ff0000"));
+		assertSame(outputs.getPng(), mathJax.getPng(eq, 10.0, "#ff0000"));
+	}
+
+	/**
+	 * @return Web service that uses the mock MathJax
+	 */
+	private WebMathsMathJax getService()
+	{
+		return new WebMathsMathJax()
+		{
+			@Override
+			protected MathJax getMathJax()
+			{
+				return mathJax;
+			}
+		};
+	}
+
+	@Test
+	public void testConvertEquations() throws Exception
+	{
+		ConvertEquationsParams params = new ConvertEquationsParams();
+		params.setExSize(10.0f);
+		params.getOutputs().addAll(Arrays.asList(ConversionType.SVG_PX,
+			ConversionType.SVG_PX_BASELINE, ConversionType.PNG, ConversionType.TEXT,
+			ConversionType.MATHML));
+		SourceEquation source = new SourceEquation();
+		source.setTex("x");
+		source.setDisplay(true);
+		params.getEquations().add(source);
+
+		// Everything comes from one conversion: the render stage uses the
+		// results from the MathJax stage and doesn't convert again.
+		mockExecutable.expect(new InputTexDisplayEquation("x", null), SVG_X, MATHML_X);
+		ConvertEquationsReturn result = getService().convertEquations(params);
+		assertEquals(1, result.getOutput().size());
+		OutputData out = result.getOutput().get(0);
+		assertTrue(out.getError(), out.isOk());
+		assertTrue(out.getSvg().contains("height=\"18px\""));
+		assertEquals(4.0f, out.getSvgPxBaseline(), 0.000001f);
+		assertTrue(out.getPng().length > 100);
+		assertEquals("x", out.getText());
+		assertEquals(MATHML_X, out.getMathml());
+	}
+
+	@Test
+	public void testConvertEquationsMathmlOnly() throws Exception
+	{
+		// MathJax only makes MathML from TeX, so with MathML input it isn't
+		// called at all (the mock would fail), and the result is still ok.
+		ConvertEquationsParams params = new ConvertEquationsParams();
+		params.getOutputs().add(ConversionType.MATHML);
+		SourceEquation source = new SourceEquation();
+		source.setMathml("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mi>x</mi></math>");
+		params.getEquations().add(source);
+
+		ConvertEquationsReturn result = getService().convertEquations(params);
+		OutputData out = result.getOutput().get(0);
+		assertTrue(out.getError(), out.isOk());
+		assertNull(out.getMathml());
+	}
+
+	/**
+	 * @param tex TeX for each equation
+	 * @return Parameters for a batch that gets pixel SVG for each equation
+	 */
+	private static ConvertEquationsParams getBatchParams(String... tex)
+	{
+		ConvertEquationsParams params = new ConvertEquationsParams();
+		params.setExSize(10.0f);
+		params.getOutputs().add(ConversionType.SVG_PX);
+		for(String value : tex)
+		{
+			SourceEquation source = new SourceEquation();
+			source.setTex(value);
+			source.setDisplay(true);
+			params.getEquations().add(source);
+		}
+		return params;
+	}
+
+	@Test
+	public void testConvertEquationsTimeout() throws Exception
+	{
+		// The second equation doesn't finish within the batch time limit.
+		CountDownLatch slow = new CountDownLatch(1);
+		batchExecutable = new BatchExecutableMock();
+		batchExecutable.add(new InputTexDisplayEquation("x", null), null);
+		batchExecutable.add(new InputTexDisplayEquation("y", null), slow);
+		final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<Future<?>>());
+		mathJax = new MathJaxTester()
+		{
+			@Override
+			public long getBatchTimeout()
+			{
+				return 500;
+			}
+
+			@Override
+			public <T> Future<T> submitOnThreadPool(Callable<T> task, Priority priority)
+			{
+				Future<T> future = super.submitOnThreadPool(task, priority);
+				futures.add(future);
+				return future;
+			}
+		};
+
+		try
+		{
+			long start = System.currentTimeMillis();
+			ConvertEquationsReturn result = getService().convertEquations(
+				getBatchParams("x", "y"));
+			assertTrue(System.currentTimeMillis() - start < 5000);
+
+			// The first equation is fine; the second times out and its task is
+			// cancelled.
+			assertEquals(2, result.getOutput().size());
+			assertTrue(result.getOutput().get(0).isOk());
+			assertTrue(result.getOutput().get(0).getSvg().contains("height=\"18px\""));
+			assertFalse(result.getOutput().get(1).isOk());
+			assertEquals("Timed out", result.getOutput().get(1).getError());
+			assertEquals(2, futures.size());
+			assertFalse(futures.get(0).isCancelled());
+			assertTrue(futures.get(1).isCancelled());
+		}
+		finally
+		{
+			slow.countDown();
+		}
+	}
+
+	@Test
+	public void testConvertEquationsStages() throws Exception
+	{
+		// The second equation's MathJax stage only finishes once the first
+		// equation has been rendered, so this only works if rendering happens
+		// separately as soon as each equation's MathJax stage is done.
+		final InputEquation first = new InputTexDisplayEquation("x", null);
+		final CountDownLatch rendered = new CountDownLatch(1);
+		batchExecutable = new BatchExecutableMock();
+		final ConversionResults firstResults = batchExecutable.add(first, null);
+		batchExecutable.add(new InputTexDisplayEquation("y", null), rendered);
+		final Map<InputEquation, Thread> renderThreads =
+			new ConcurrentHashMap<InputEquation, Thread>();
+		mathJax = new MathJaxTester()
+		{
+			@Override
+			public SvgOutputs getSvgOutputs(InputEquation eq, ConversionResults results,
+				double exSize, String rgb)
+			{
+				// The render stage uses the results from the MathJax stage.
+				if(eq.equals(first))
+				{
+					assertSame(firstResults, results);
+				}
+				renderThreads.put(eq, Thread.currentThread());
+				SvgOutputs outputs = super.getSvgOutputs(eq, results, exSize, rgb);
+				rendered.countDown();
+				return outputs;
+			}
+		};
+
+		// The third equation fails in MathJax, so it is never rendered.
+		ConvertEquationsReturn result = getService().convertEquations(
+			getBatchParams("x", "y", "z"));
+		assertEquals(3, result.getOutput().size());
+		assertTrue(result.getOutput().get(0).isOk());
+		assertTrue(result.getOutput().get(1).isOk());
+		assertFalse(result.getOutput().get(2).isOk());
+		assertEquals("MathJax failure: Unknown equation", result.getOutput().get(2).getError());
+		assertEquals(2, renderThreads.size());
+
+		// Rendering happens on a different thread from MathJax.
+		assertNotSame(batchExecutable.getThread(first), renderThreads.get(first));
+		assertNotNull(batchExecutable.getThread(new InputTexDisplayEquation("z", null)));
+	}
+
+	@Test
+	public void testConvertEquationsVirtualThreads() throws Exception
+	{
+		// Turning on virtual threads only works if the JDK supports them.
+		boolean virtual = VirtualThreads.setEnabled(true);
+		try
+		{
+			assertEquals(VirtualThreads.isSupported(), virtual);
+			Assume.assumeTrue(virtual);
+
+			InputEquation eq = new InputTexDisplayEquation("x", null);
+			batchExecutable = new BatchExecutableMock();
+			batchExecutable.add(eq, null);
+			mathJax = new MathJaxTester();
+
+			// The MathJax stage runs on a virtual thread and the result is the same.
+			ConvertEquationsReturn result = getService().convertEquations(getBatchParams("x"));
+			assertTrue(result.getOutput().get(0).isOk());
+			assertTrue(result.getOutput().get(0).getSvg().contains("height=\"18px\""));
+			assertEquals(Boolean.TRUE,
+				Thread.class.getMethod("isVirtual").invoke(batchExecutable.getThread(eq)));
+		}
+		finally
+		{
+			VirtualThreads.setEnabled(false);
+		}
+	}
+
 	@Test
 	public void testGetMathml() throws Exception
 	{
@@ -422,4 +725,24 @@ public class TestMathJax
 			Arrays.copyOfRange(png, 0, 4));
 	}
 
+	@Test
+	public void testOutputCache() throws Exception
+	{
+		// First request converts the equation.
+		InputEquation eq = new InputTexDisplayEquation("x", null);
+		mockExecutable.expect(eq, SVG_X, MATHML_X);
+		byte[] png = mathJax.getPng(eq, 10.0, null);
+		assertArrayEquals(mathJax.getPngFromSvg(mathJax.getSvg(eq, true, 10.0, null)), png);
+
+		// Repeat requests come from the cache without converting again.
+		assertSame(png, mathJax.getPng(eq, 10.0, null));
+		assertTrue(mathJax.getOutputCacheStats().getHits() >= 2);
+
+		// A different size or colour is a separate entry.
+		mockExecutable.expect(eq, SVG_X, MATHML_X);
+		mathJax.getPng(eq, 12.0, null);
+		mockExecutable.expect(eq, SVG_X, MATHML_X);
+		assertTrue(mathJax.getSvg(eq, true, 10.0, "#ff0000").contains("fill=\"#ff0000\""));
+	}
+
 }
@@ -20,12 +20,15 @@ package uk.ac.open.lts.webmaths.mathjax;
 
 import static org.junit.Assert.*;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.*;
 
+import uk.ac.open.lts.webmaths.ResultCache;
 import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.ConversionResults;
+import uk.ac.open.lts.webmaths.mathjax.MathJaxNodeExecutable.Status;
 
 public class TestMathJaxNodeExecutable
 {
@@ -42,19 +45,134 @@ public class TestMathJaxNodeExecutable
 		"<<END:RESULT"
 	};
 
+	/**
+	 * Mock of the output from the MathJax.Node process. Each response (the
+	 * lines up to the end of a result) is only output after a request has been
+	 * sent for it.
+	 */
+	private static class MockStdout extends InputStream
+	{
+		private LinkedList<String> lines = new LinkedList<String>();
+		private MathJaxNodeInstanceMock mock;
+		private byte[] current = new byte[0];
+		private int pos, responses;
+		private boolean inResponse;
+
+		/** Output stops at a "latch" line until this is released. */
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(pos == current.length)
+			{
+				current = nextLine();
+				pos = 0;
+			}
+			int count = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+
+		private byte[] nextLine() throws IOException
+		{
+			String first;
+			synchronized(this)
+			{
+				while(lines.isEmpty())
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						throw new IOException(e);
+					}
+				}
+				first = lines.removeFirst();
+			}
+			if(!inResponse)
+			{
+				mock.waitForRequests(++responses);
+				inResponse = true;
+			}
+			if(first.equals("crash"))
+			{
+				throw new IOException("Failed during readLine");
+			}
+			if(first.equals("delay"))
+			{
+				try
+				{
+					Thread.sleep(200);
+				}
+				catch(InterruptedException e)
+				{
+					e.printStackTrace();
+				}
+				return nextLine();
+			}
+			if(first.equals("latch"))
+			{
+				try
+				{
+					latch.await();
+				}
+				catch(InterruptedException e)
+				{
+					throw new IOException(e);
+				}
+				return nextLine();
+			}
+			if(first.startsWith("waitfor:"))
+			{
+				mock.waitForSent(first.substring("waitfor:".length()));
+				return nextLine();
+			}
+			if(first.startsWith("<<END:RESULT"))
+			{
+				inResponse = false;
+			}
+			return (first + "\n").getBytes("UTF-8");
+		}
+
+		synchronized void addLine(String line)
+		{
+			lines.addLast(line);
+			notifyAll();
+		}
+	}
+
 	/**
 	 * Mock of the MathJax.Node Instance.
 	 */
 	private class MathJaxNodeInstanceMock extends MathJaxNodeInstance
 	{
 		StringBuilder out = new StringBuilder();
-		LinkedList<String> lines = new LinkedList<String>();
+		MockStdout stdout;
 		String stderr = null;
 		String hackedFont = null;
+		int requests;
 
 		protected MathJaxNodeInstanceMock(long started)
 		{
-			super(started, InputEquation.DEFAULT_FONT);
+			this(started, new MockStdout());
+		}
+
+		private MathJaxNodeInstanceMock(long started, MockStdout stdout)
+		{
+			super(started, InputEquation.DEFAULT_FONT, stdout);
+			this.stdout = stdout;
+			stdout.mock = this;
 		}
 
 		public void hackFont(String font)
@@ -78,6 +196,11 @@ public class TestMathJaxNodeExecutable
 		synchronized void sendLine(String text) throws IOException
 		{
 			out.append("*sendLine:" + text + "\n");
+			if(text.startsWith("<<REQUEST:"))
+			{
+				requests++;
+			}
+			notifyAll();
 		}
 
 		@Override
@@ -87,37 +210,32 @@ public class TestMathJaxNodeExecutable
 		}
 
 		@Override
-		synchronized String readLine() throws IOException
+		synchronized String closeWithStderr() throws IOException
 		{
-			assertTrue(!lines.isEmpty());
-			String first = lines.removeFirst();
-			if(first.equals("crash"))
-			{
-				throw new IOException("Failed during readLine");
-			}
-			if(first.equals("delay"))
+			out.append("*closeWithStderr\n");
+			assertTrue(stderr != null);
+			String result = stderr;
+			stderr = null;
+			return result;
+		}
+
+		/**
+		 * Waits until the given text has been sent.
+		 * @param text Text to wait for
+		 */
+		synchronized void waitForSent(String text)
+		{
+			while(out.indexOf(text) == -1)
 			{
 				try
 				{
-					Thread.sleep(200);
+					wait();
 				}
 				catch(InterruptedException e)
 				{
 					e.printStackTrace();
 				}
-				return readLine();
 			}
-			return first;
-		}
-
-		@Override
-		synchronized String closeWithStderr() throws IOException
-		{
-			out.append("*closeWithStderr\n");
-			assertTrue(stderr != null);
-			String result = stderr;
-			stderr = null;
-			return result;
 		}
 
 		synchronized void addLine(String newLine)
@@ -129,7 +247,26 @@ public class TestMathJaxNodeExecutable
 		{
 			for(String line : newLines)
 			{
-				lines.addLast(line);
+				stdout.addLine(line);
+			}
+		}
+
+		/**
+		 * Waits until the given number of requests have been sent.
+		 * @param count Number of requests
+		 */
+		synchronized void waitForRequests(int count)
+		{
+			while(requests < count)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+					e.printStackTrace();
+				}
 			}
 		}
 
@@ -154,6 +291,15 @@ public class TestMathJaxNodeExecutable
 	{
 		private LinkedList<MathJaxNodeInstanceMock> instances = new LinkedList<MathJaxNodeInstanceMock>();
 
+		MathJaxNodeExecutableTester()
+		{
+		}
+
+		MathJaxNodeExecutableTester(int pipelineDepth)
+		{
+			super(pipelineDepth);
+		}
+
 		@Override
 		protected synchronized MathJaxNodeInstance createInstance(String font)
 		{
@@ -208,18 +354,339 @@ public class TestMathJaxNodeExecutable
 		ConversionResults results = executable.convertEquation(
 			new InputTexDisplayEquation("x", null));
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:x\n"
 			+ "*sendLine:\n"
 			+ "*flush\n", instance.getActions());
 		assertEquals(TestMathJax.MATHML_X, results.getMathml());
 		assertEquals(TestMathJax.SVG_X, results.getSvg());
 
+		// One conversion counts as exactly one cache miss.
+		ResultCache.Stats stats = executable.getStatus().getCacheStats();
+		assertEquals(0, stats.getHits());
+		assertEquals(1, stats.getMisses());
+
 		// Check that repeats use the cache (nothing required in instance).
 		results = executable.convertEquation(
 			new InputTexDisplayEquation("x", null));
 		assertEquals(TestMathJax.MATHML_X, results.getMathml());
 		assertEquals(TestMathJax.SVG_X, results.getSvg());
+		stats = executable.getStatus().getCacheStats();
+		assertEquals(1, stats.getHits());
+		assertEquals(1, stats.getMisses());
+	}
+
+	@Test
+	public void testConvertEquationOutputs() throws Exception
+	{
+		MathJaxNodeInstanceMock instance = new MathJaxNodeInstanceMock(1);
+		executable.addInstance(instance);
+
+		// Speech only.
+		instance.addLines(new String[]
+		{
+			"<<BEGIN:RESULT",
+			"<<BEGIN:SPEECH",
+			"x",
+			"<<END:SPEECH",
+			"<<END:RESULT"
+		});
+		ConversionResults results = executable.convertEquation(
+			new InputTexDisplayEquation("x", null), Priority.INTERACTIVE,
+			EnumSet.of(ConversionOutput.SPEECH));
+		assertEquals(
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:<<OUTPUTS:SPEECH\n"
+			+ "*sendLine:TeX\n"
+			+ "*sendLine:x\n"
+			+ "*sendLine:\n"
+			+ "*flush\n", instance.getActions());
+		assertEquals("x", results.getSpeech());
+		assertFalse(results.has(ConversionOutput.SVG));
+		assertFalse(results.has(ConversionOutput.MATHML));
+
+		// Asking for all outputs only requests the missing ones, and merges them.
+		instance.addLines(RESULT_SUCCESS);
+		results = executable.convertEquation(new InputTexDisplayEquation("x", null));
+		assertEquals(
+			"*sendLine:<<REQUEST:2\n"
+			+ "*sendLine:<<OUTPUTS:SVG,MATHML\n"
+			+ "*sendLine:TeX\n"
+			+ "*sendLine:x\n"
+			+ "*sendLine:\n"
+			+ "*flush\n", instance.getActions());
+		assertTrue(results.hasAll(ConversionOutput.ALL));
+		assertEquals("x", results.getSpeech());
+		assertEquals(TestMathJax.MATHML_X, results.getMathml());
+		assertEquals(TestMathJax.SVG_X, results.getSvg());
+
+		// MathML only is now in the cache.
+		results = executable.convertEquation(new InputTexDisplayEquation("x", null),
+			Priority.INTERACTIVE, EnumSet.of(ConversionOutput.MATHML));
+		assertEquals(TestMathJax.MATHML_X, results.getMathml());
+
+		// Each request counted once: the partial result was a hit.
+		ResultCache.Stats stats = executable.getStatus().getCacheStats();
+		assertEquals(2, stats.getHits());
+		assertEquals(1, stats.getMisses());
+	}
+
+	@Test
+	public void testConvertEquationCoalesced() throws Exception
+	{
+		MathJaxNodeInstanceMock instance = new MathJaxNodeInstanceMock(1);
+		executable.addInstance(instance);
+		instance.addLine("latch");
+		instance.addLines(RESULT_SUCCESS);
+
+		// Several threads ask for the same equation while it is being converted.
+		final LinkedList<ConversionResults> list = new LinkedList<ConversionResults>();
+		Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				ConversionResults results = null;
+				try
+				{
+					results = executable.convertEquation(
+						new InputTexDisplayEquation("x", null));
+				}
+				catch(Exception e)
+				{
+				}
+				synchronized(list)
+				{
+					list.add(results);
+					list.notifyAll();
+				}
+			}
+		};
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(task, "Task-" + i);
+			threads[i].start();
+		}
+
+		// Only return the result once the request has been sent and all the
+		// threads are waiting for it.
+		instance.waitForRequests(1);
+		for(Thread thread : threads)
+		{
+			while(thread.getState() != Thread.State.WAITING &&
+				thread.getState() != Thread.State.TIMED_WAITING)
+			{
+				Thread.sleep(10);
+			}
+		}
+		instance.stdout.latch.countDown();
+
+		synchronized(list)
+		{
+			while(list.size() < 4)
+			{
+				list.wait();
+			}
+		}
+
+		// All get the same result, but it was only sent to MathJax once.
+		for(ConversionResults results : list)
+		{
+			assertNotNull(results);
+			assertEquals(TestMathJax.SVG_X, results.getSvg());
+		}
+		assertEquals(
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
+			+ "*sendLine:x\n"
+			+ "*sendLine:\n"
+			+ "*flush\n", instance.getActions());
+	}
+
+	@Test
+	public void testPipelined() throws Exception
+	{
+		executable = new MathJaxNodeExecutableTester(2);
+		MathJaxNodeInstanceMock instance = new MathJaxNodeInstanceMock(1);
+		executable.addInstance(instance);
+
+		// Results come back in the opposite order, once both have been sent.
+		instance.addLine("waitfor:*sendLine:<<REQUEST:2");
+		instance.addLines(new String[]
+		{
+			"<<BEGIN:RESULT:2",
+			"<<BEGIN:SVG",
+			TestMathJax.SVG_X,
+			"<<END:SVG",
+			"<<BEGIN:MATHML",
+			"<math>y</math>",
+			"<<END:MATHML",
+			"<<END:RESULT:2",
+			"<<BEGIN:RESULT:1",
+			"<<BEGIN:SVG",
+			TestMathJax.SVG_X,
+			"<<END:SVG",
+			"<<BEGIN:MATHML",
+			"<math>x</math>",
+			"<<END:MATHML",
+			"<<END:RESULT:1"
+		});
+
+		// Two threads both use the same instance at once (x is sent first).
+		final Map<String, String> results = new HashMap<String, String>();
+		for(final String tex : new String[] { "x", "y" })
+		{
+			new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					String mathml = null;
+					try
+					{
+						mathml = executable.convertEquation(
+							new InputTexDisplayEquation(tex, null)).getMathml();
+					}
+					catch(Exception e)
+					{
+						mathml = e.getMessage();
+					}
+					synchronized(results)
+					{
+						results.put(tex, mathml);
+						results.notifyAll();
+					}
+				}
+			}, "Task-" + tex).start();
+
+			// Make sure the requests are sent in order.
+			instance.waitForSent("*sendLine:" + tex);
+		}
+		synchronized(results)
+		{
+			while(results.size() < 2)
+			{
+				results.wait();
+			}
+		}
+
+		assertEquals("<math>x</math>", results.get("x"));
+		assertEquals("<math>y</math>", results.get("y"));
+	}
+
+	/**
+	 * Starts a thread that converts an equation.
+	 * @param tex TeX equation
+	 * @param result Array that will hold the results or exception
+	 * @return Thread
+	 */
+	private Thread startConvert(final String tex, final Object[] result)
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					result[0] = executable.convertEquation(
+						new InputTexDisplayEquation(tex, null));
+				}
+				catch(Exception e)
+				{
+					result[0] = e;
+				}
+			}
+		}, "Convert-" + tex);
+		thread.start();
+		return thread;
+	}
+
+	@Test
+	public void testOverloaded() throws Exception
+	{
+		executable.setQueueLimits(1, 300);
+		MathJaxNodeInstanceMock instance = new MathJaxNodeInstanceMock(1);
+		executable.addInstance(instance);
+		for(int i = 0; i < 5; i++)
+		{
+			instance.addLine("delay");
+		}
+		instance.addLines(RESULT_SUCCESS);
+
+		// First equation keeps the only instance busy for a second.
+		Object[] first = new Object[1];
+		Thread firstThread = startConvert("x", first);
+		instance.waitForSent("*sendLine:x");
+
+		// Second equation has to wait.
+		Object[] second = new Object[1];
+		Thread secondThread = startConvert("y", second);
+		Thread.sleep(100);
+		assertEquals(1, executable.getStatus().getQueueDepth());
+
+		// Third equation is rejected straight away because the queue is full.
+		try
+		{
+			executable.convertEquation(new InputTexDisplayEquation("z", null));
+			fail();
+		}
+		catch(MathJaxOverloadedException e)
+		{
+			assertEquals("Too many equations waiting (maximum 1)", e.getMessage());
+		}
+
+		// Second equation gives up after waiting too long.
+		secondThread.join();
+		assertTrue(second[0] instanceof MathJaxOverloadedException);
+		assertEquals("Timed out waiting for MathJax (after 300 ms)",
+			((MathJaxOverloadedException)second[0]).getMessage());
+
+		// First equation still works.
+		firstThread.join();
+		assertEquals(TestMathJax.SVG_X, ((ConversionResults)first[0]).getSvg());
+
+		Status status = executable.getStatus();
+		assertEquals(0, status.getQueueDepth());
+		assertEquals(2, status.getRejections());
+		assertEquals(0, status.getQueueWaitPercentile(50));
+		assertTrue(status.getQueueWaitPercentile(99) >= 300);
+	}
+
+	@Test
+	public void testWarmUp() throws Exception
+	{
+		MathJaxNodeInstanceMock instance = new MathJaxNodeInstanceMock(1);
+		executable.addInstance(instance);
+		instance.addLines(RESULT_SUCCESS);
+		executable.setMinIdle("TeX=1");
+		assertFalse(executable.isReady());
+
+		// Warming up starts the instance and checks it with a probe equation.
+		executable.warmUp();
+		assertTrue(executable.isReady());
+		assertEquals(
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
+			+ "*sendLine:x\n"
+			+ "*sendLine:\n"
+			+ "*flush\n", instance.getActions());
+
+		// The next equation uses it straight away.
+		instance.addLines(RESULT_SUCCESS);
+		executable.convertEquation(new InputTexDisplayEquation("y", null));
+		assertEquals(
+			"*sendLine:<<REQUEST:2\n"
+			+ "*sendLine:TeX\n"
+			+ "*sendLine:y\n"
+			+ "*sendLine:\n"
+			+ "*flush\n", instance.getActions());
+
+		// It isn't closed as a spare, because it's the minimum.
+		executable.makeSparesDue();
+		assertEquals("", instance.getActions());
 	}
 
 	@Test
@@ -271,7 +738,8 @@ public class TestMathJaxNodeExecutable
 
 		// Check it closes the first instance.
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:x\n"
 			+ "*sendLine:\n"
 			+ "*flush\n"
@@ -283,7 +751,8 @@ public class TestMathJaxNodeExecutable
 		instance2.addLines(RESULT_SUCCESS);
 		executable.convertEquation(new InputTexDisplayEquation("x", null));
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:x\n"
 			+ "*sendLine:\n"
 			+ "*flush\n", instance2.getActions());
@@ -380,14 +849,17 @@ public class TestMathJaxNodeExecutable
 
 		// Check instance 1 includes requests for a, b, and c.
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:a1\n"
 			+ "*sendLine:\n"
 			+ "*flush\n"
+			+ "*sendLine:<<REQUEST:2\n"
 			+ "*sendLine:TeX\n"
 			+ "*sendLine:b1\n"
 			+ "*sendLine:\n"
 			+ "*flush\n"
+			+ "*sendLine:<<REQUEST:3\n"
 			+ "*sendLine:TeX\n"
 			+ "*sendLine:c1\n"
 			+ "*sendLine:\n"
@@ -429,10 +901,12 @@ public class TestMathJaxNodeExecutable
 
 		// Check instance 1 includes requests for a and c.
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:4\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:a2\n"
 			+ "*sendLine:\n"
 			+ "*flush\n"
+			+ "*sendLine:<<REQUEST:5\n"
 			+ "*sendLine:TeX\n"
 			+ "*sendLine:c2\n"
 			+ "*sendLine:\n"
@@ -440,7 +914,8 @@ public class TestMathJaxNodeExecutable
 
 		// Check instance 2 has request b.
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:b2\n"
 			+ "*sendLine:\n"
 			+ "*flush\n", instance2.getActions());
@@ -452,7 +927,8 @@ public class TestMathJaxNodeExecutable
 		executable.convertEquation(new InputTexDisplayEquation("d", null));
 		assertEquals("*closeInstance\n", instance1.getActions());
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:2\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:d\n"
 			+ "*sendLine:\n"
 			+ "*flush\n", instance2.getActions());
@@ -559,10 +1035,12 @@ public class TestMathJaxNodeExecutable
 
 		// Check instance 1 includes requests for a and c.
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:a1\n"
 			+ "*sendLine:\n"
 			+ "*flush\n"
+			+ "*sendLine:<<REQUEST:2\n"
 			+ "*sendLine:TeX\n"
 			+ "*sendLine:c1\n"
 			+ "*sendLine:\n"
@@ -570,7 +1048,8 @@ public class TestMathJaxNodeExecutable
 
 		// Check instance 2 has done b.
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:1\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:b1\n"
 			+ "*sendLine:\n"
 			+ "*flush\n", instance2.getActions());
@@ -582,7 +1061,8 @@ public class TestMathJaxNodeExecutable
 		executable.convertEquation(new InputTexDisplayEquation("d", null));
 		assertEquals("*closeInstance\n", instance2.getActions());
 		assertEquals(
-			"*sendLine:TeX\n"
+			"*sendLine:<<REQUEST:3\n"
+			+ "*sendLine:TeX\n"
 			+ "*sendLine:d\n"
 			+ "*sendLine:\n"
 			+ "*flush\n", instance1.getActions());
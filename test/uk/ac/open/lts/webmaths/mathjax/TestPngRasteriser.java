@@ -0,0 +1,178 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class TestPngRasteriser
+{
+	/**
+	 * @param width Width in pixels
+	 * @param height Height in pixels
+	 * @param colour Fill colour
+	 * @return SVG containing a filled rectangle
+	 */
+	private static String getSvg(int width, int height, String colour)
+	{
+		return "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + width
+			+ "px\" height=\"" + height + "px\" viewBox=\"0 0 " + width + " " + height
+			+ "\"><rect x=\"2\" y=\"2\" width=\"" + (width / 2) + "\" height=\""
+			+ (height / 2) + "\" fill=\"" + colour + "\"/></svg>";
+	}
+
+	/**
+	 * @param exSize Ex size in pixels
+	 * @return MathJax SVG for 'x', converted to pixels as for PNG output
+	 * @throws IOException Any error
+	 */
+	static String getPixelSvg(double exSize) throws IOException
+	{
+		SvgRewriter rewriter = new SvgRewriter(TestMathJax.SVG_X);
+		rewriter.setAttribute("width", (1.33 * exSize) + "px");
+		rewriter.setAttribute("height", (1.676 * exSize) + "px");
+		return MathJax.offsetSvg(rewriter.write("#1a1a1a"), MathJax.PNG_OFFSET);
+	}
+
+	/**
+	 * Maximum difference allowed between premultiplied channel values when
+	 * comparing with Batik. The two renderers compose the transforms in a
+	 * different order, so edges can move by a tiny amount. On JDK 8 the
+	 * antialiasing rasteriser (Pisces) samples each pixel on an 8x8 grid, so
+	 * that can move an edge across one row or column of samples, changing
+	 * the pixel's coverage by 1/8. (Later JDKs sample more finely and the
+	 * results are within 1.)
+	 */
+	private final static int DIRECT_TOLERANCE = 256 / 8;
+
+	/**
+	 * @param argb Pixel value
+	 * @param shift Shift of channel
+	 * @return Channel value multiplied by alpha (0-255)
+	 */
+	private static int premultiplied(int argb, int shift)
+	{
+		int alpha = (argb >>> 24) & 0xff, value = (argb >>> shift) & 0xff;
+		return shift == 24 ? value : (value * alpha + 127) / 255;
+	}
+
+	@Test
+	public void testDirect() throws Exception
+	{
+		// Drawing directly gives the same image as Batik (apart from edge
+		// antialiasing; see DIRECT_TOLERANCE).
+		for(double exSize : new double[] { 7.26667, 10.0, 23.0 })
+		{
+			String svg = getPixelSvg(exSize);
+			PngRasteriser direct = new PngRasteriser(1, true);
+			BufferedImage expected = ImageIO.read(new ByteArrayInputStream(
+				new PngRasteriser(1, false).rasterise(svg)));
+			BufferedImage actual = ImageIO.read(new ByteArrayInputStream(
+				direct.rasterise(svg)));
+			assertEquals(0, direct.getFallbackCount());
+			assertEquals(expected.getWidth(), actual.getWidth());
+			assertEquals(expected.getHeight(), actual.getHeight());
+			for(int y = 0; y < expected.getHeight(); y++)
+			{
+				for(int x = 0; x < expected.getWidth(); x++)
+				{
+					int a = expected.getRGB(x, y), b = actual.getRGB(x, y);
+					for(int shift = 0; shift < 32; shift += 8)
+					{
+						int difference = Math.abs(premultiplied(a, shift) - premultiplied(b, shift));
+						assertTrue("Pixel " + x + "," + y + " differs by " + difference,
+							difference <= DIRECT_TOLERANCE);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testDirectColour() throws Exception
+	{
+		// Solid parts of the image are exactly the requested colour.
+		String svg = getPixelSvg(23.0);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+			new PngRasteriser(1, true).rasterise(svg)));
+		int solid = 0;
+		for(int y = 0; y < image.getHeight(); y++)
+		{
+			for(int x = 0; x < image.getWidth(); x++)
+			{
+				int argb = image.getRGB(x, y);
+				if((argb >>> 24) == 0xff)
+				{
+					assertEquals(0xff1a1a1a, argb);
+					solid++;
+				}
+			}
+		}
+		assertTrue(solid > 0);
+	}
+
+	@Test
+	public void testFallback() throws Exception
+	{
+		// Text isn't supported, so Batik is used.
+		PngRasteriser rasteriser = new PngRasteriser(1, true);
+		byte[] png = rasteriser.rasterise("<svg xmlns=\"http://www.w3.org/2000/svg\" "
+			+ "width=\"20px\" height=\"10px\" viewBox=\"0 0 20 10\"><text>x</text></svg>");
+		assertEquals(1, rasteriser.getFallbackCount());
+		assertEquals(20, ImageIO.read(new ByteArrayInputStream(png)).getWidth());
+	}
+
+	@Test
+	public void testReuse() throws Exception
+	{
+		String small = getSvg(20, 10, "#000000");
+		byte[] expected = new PngRasteriser(1, false).rasterise(small);
+
+		// After rendering something larger, the same (reused) transcoder must
+		// produce exactly the same result as a new one.
+		PngRasteriser rasteriser = new PngRasteriser(1, false);
+		rasteriser.rasterise(getSvg(150, 100, "#ff0000"));
+		assertEquals(1, rasteriser.getIdleCount());
+		assertArrayEquals(expected, rasteriser.rasterise(small));
+		assertArrayEquals(expected, rasteriser.rasterise(small));
+		assertEquals(1, rasteriser.getIdleCount());
+	}
+
+	@Test
+	public void testError() throws Exception
+	{
+		PngRasteriser rasteriser = new PngRasteriser(1, false);
+		try
+		{
+			rasteriser.rasterise("<svg xmlns=\"http://www.w3.org/2000/svg\"><rect");
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertEquals("Transcoder failed", e.getMessage());
+		}
+		assertEquals(0, rasteriser.getIdleCount());
+	}
+}
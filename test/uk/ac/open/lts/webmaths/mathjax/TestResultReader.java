@@ -0,0 +1,135 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestResultReader
+{
+	/**
+	 * Input stream that returns one byte at a time, so that characters and
+	 * lines are split across reads. Nothing is returned until it is started.
+	 */
+	private static class SlowInputStream extends ByteArrayInputStream
+	{
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		private SlowInputStream(String text) throws IOException
+		{
+			super(text.getBytes("UTF-8"));
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			try
+			{
+				started.await();
+			}
+			catch(InterruptedException e)
+			{
+				return -1;
+			}
+			return super.read(b, off, Math.min(len, 1));
+		}
+
+		void start()
+		{
+			started.countDown();
+		}
+	}
+
+	@Test
+	public void testSplitReads() throws Exception
+	{
+		SlowInputStream in = new SlowInputStream(
+			"<<BEGIN:RESULT:2\r\n<<BEGIN:SVG\r\n<svg>é∀</svg>\r\n<<END:SVG\r\n" +
+			"<<END:RESULT:2\r\n" +
+			"<<BEGIN:RESULT:1\n<<BEGIN:MATHML\n<math/>\n<<END:MATHML\n" +
+			"<<BEGIN:ERRORS\nOops\n<<END:ERRORS\n<<END:RESULT:1\n");
+		ResultReader reader = new ResultReader(in);
+		reader.expect(1);
+		reader.expect(2);
+		in.start();
+
+		Map<String, String> result = reader.getResult(1, 1000);
+		assertEquals("<math/>", result.get("MATHML"));
+		assertEquals("Oops", result.get("ERRORS"));
+		assertEquals("", result.get("SVG"));
+		assertEquals("", result.get("SPEECH"));
+		assertEquals("<svg>é∀</svg>", reader.getResult(2, 1000).get("SVG"));
+
+		// Then the stream ends.
+		try
+		{
+			reader.getResult(3, 1000);
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertEquals("MathJax process ended unexpectedly", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testFramedSections() throws Exception
+	{
+		// Framed content can contain anything, including lines that look like
+		// the end of a section.
+		String svg = "<svg>é∀\n<<END:SVG\n</svg>";
+		SlowInputStream in = new SlowInputStream(
+			"<<BEGIN:RESULT:1\n<<SECTION:SVG:" + svg.getBytes("UTF-8").length + "\n" +
+			svg + "\n<<SECTION:MATHML:0\n\n<<END:RESULT:1\n" +
+			"<<BEGIN:RESULT:2\n<<SECTION:SVG:2\nabc\n<<END:RESULT:2\n");
+		ResultReader reader = new ResultReader(in);
+		reader.expect(1);
+		reader.expect(2);
+		in.start();
+		Map<String, String> result = reader.getResult(1, 1000);
+		assertEquals(svg, result.get("SVG"));
+		assertEquals("", result.get("MATHML"));
+
+		// Wrong length is detected.
+		try
+		{
+			reader.getResult(2, 1000);
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertEquals("Expecting line break after section: SVG", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testResultWithoutId() throws Exception
+	{
+		ResultReader reader = new ResultReader(new ByteArrayInputStream((
+			"<<BEGIN:RESULT\n<<BEGIN:SVG\n<svg/>\n<<END:SVG\n<<END:RESULT\n").getBytes("UTF-8")));
+		Thread.sleep(100);
+		reader.expect(1);
+		assertEquals("<svg/>", reader.getResult(1, 1000).get("SVG"));
+	}
+}
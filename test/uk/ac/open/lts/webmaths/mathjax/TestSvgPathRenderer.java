@@ -0,0 +1,136 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.awt.geom.*;
+import java.awt.image.BufferedImage;
+
+import org.apache.batik.transcoder.image.PNGTranscoder;
+import org.junit.Test;
+
+public class TestSvgPathRenderer
+{
+	/**
+	 * @param path Path
+	 * @return Points of path as text (command type then coordinates)
+	 */
+	private static String describe(Path2D path)
+	{
+		StringBuilder out = new StringBuilder();
+		float[] coords = new float[6];
+		for(PathIterator i = path.getPathIterator(null); !i.isDone(); i.next())
+		{
+			int type = i.currentSegment(coords);
+			out.append("MLQCZ".charAt(type));
+			int count = type == PathIterator.SEG_CLOSE ? 0 :
+				type == PathIterator.SEG_QUADTO ? 4 : type == PathIterator.SEG_CUBICTO ? 6 : 2;
+			for(int j = 0; j < count; j++)
+			{
+				out.append(' ').append(Math.round(coords[j]));
+			}
+			out.append(';');
+		}
+		return out.toString();
+	}
+
+	@Test
+	public void testParsePath() throws Exception
+	{
+		assertEquals("M 1 2;L 3 4;L 5 6;Z;",
+			describe(SvgPathRenderer.parsePath("M1 2L3,4 5 6Z")));
+		// Relative, implicit lines after m, H and V.
+		assertEquals("M 10 10;L 15 10;L 15 20;L 5 20;L 5 25;",
+			describe(SvgPathRenderer.parsePath("m10 10 5 0v10H5v5")));
+		// Smooth curves reflect the previous control point.
+		assertEquals("M 0 0;Q 10 10 20 0;Q 30 -10 40 0;",
+			describe(SvgPathRenderer.parsePath("M0 0Q10 10 20 0T40 0")));
+		assertEquals("M 0 0;C 0 10 10 10 10 0;C 10 -10 20 -10 20 0;",
+			describe(SvgPathRenderer.parsePath("M0 0C0 10 10 10 10 0s10-10 10 0")));
+		// Numbers without separators; drawing after Z starts from the subpath.
+		assertEquals("M 1 1;L 2 1;Z;M 1 1;L 1 -4;",
+			describe(SvgPathRenderer.parsePath("M1 1 2 1zl0-5")));
+		assertEquals("M 2 3;L 1 -5;L 10 1;",
+			describe(SvgPathRenderer.parsePath("M1.5 2.5.5-.5e1L1e1,1")));
+	}
+
+	@Test
+	public void testTransform() throws Exception
+	{
+		AffineTransform transform = new AffineTransform();
+		SvgPathRenderer.applyTransform("translate(10,20) scale(2) matrix(1 0 0 -1 0 0)", transform);
+		Point2D point = transform.transform(new Point2D.Double(1, 1), null);
+		assertEquals(12.0, point.getX(), 0.0001);
+		assertEquals(18.0, point.getY(), 0.0001);
+	}
+
+	@Test
+	public void testRender() throws Exception
+	{
+		SvgPathRenderer.clearGlyphCache();
+		BufferedImage image = SvgPathRenderer.render(
+			TestPngRasteriser.getPixelSvg(10.0), new PNGTranscoder());
+		assertEquals(13, image.getWidth());
+		assertEquals(1, SvgPathRenderer.getCachedGlyphCount());
+		// Ink is drawn in the given colour (allowing for rounding).
+		int found = 0;
+		for(int y = 0; y < image.getHeight(); y++)
+		{
+			for(int x = 0; x < image.getWidth(); x++)
+			{
+				int rgb = image.getRGB(x, y);
+				if((rgb >>> 24) >= 0xe0)
+				{
+					assertEquals(0x1a, rgb & 0xff, 2);
+					found++;
+				}
+			}
+		}
+		assertTrue(found > 0);
+	}
+
+	@Test
+	public void testUnsupported() throws Exception
+	{
+		String start = "<svg xmlns=\"http://www.w3.org/2000/svg\" "
+			+ "xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"10px\" height=\"10px\" "
+			+ "viewBox=\"0 0 10 10\">";
+		String[] unsupported =
+		{
+			"<text>x</text>",
+			"<path d=\"M0 0A5 5 0 0 1 10 10\"/>",
+			"<g opacity=\"0.5\"/>",
+			"<g fill=\"rgb(1,2,3)\"/>",
+			"<g transform=\"rotate(10,1)\"/>",
+			"<use xlink:href=\"#missing\"/>",
+			"<rect width=\"1em\" height=\"1\"/>",
+			"<svg/>"
+		};
+		assertNotNull(SvgPathRenderer.render(start + "<rect width=\"5\" height=\"5\"/></svg>",
+			new PNGTranscoder()));
+		for(String content : unsupported)
+		{
+			assertNull(content, SvgPathRenderer.render(start + content + "</svg>",
+				new PNGTranscoder()));
+		}
+		assertNull(SvgPathRenderer.render("<svg width=\"10px\" height=\"10px\" "
+			+ "viewBox=\"0 0 10 10\"/>", new PNGTranscoder()));
+	}
+}
@@ -0,0 +1,98 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.mathjax;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestSvgRewriter
+{
+	@Test
+	public void testUnchanged() throws Exception
+	{
+		// Apart from the root tag, the content is copied exactly.
+		SvgRewriter rewriter = new SvgRewriter(TestMathJax.SVG_X);
+		assertEquals("1.33ex", rewriter.getAttribute("width"));
+		assertEquals("", rewriter.getAttribute("nonexistent"));
+		assertEquals(TestMathJax.SVG_X, rewriter.write(null));
+	}
+
+	@Test
+	public void testAttributes() throws Exception
+	{
+		SvgRewriter rewriter = new SvgRewriter(
+			"<?xml version=\"1.0\"?>\n<svg width='1ex'\n height=\"2ex\"><g/></svg>");
+		assertEquals("1ex", rewriter.getAttribute("width"));
+		rewriter.setAttribute("width", "10px");
+		rewriter.setAttribute("style", "margin: 0px");
+		assertEquals("<svg width=\"10px\" height=\"2ex\" style=\"margin: 0px\"><g/></svg>",
+			rewriter.write(null));
+
+		assertEquals("<svg/>", new SvgRewriter("<svg />").write(null));
+	}
+
+	@Test
+	public void testColour() throws Exception
+	{
+		String svg = "<svg fill=\"currentColor\"><g stroke=\"currentColor\" fill=\"currentColor\">"
+			+ "<path fill=\"currentColor\"/><title>\"currentColor\"</title></g></svg>";
+		assertEquals("<svg fill=\"#ff0000\"><g stroke=\"#ff0000\" fill=\"#ff0000\">"
+			+ "<path fill=\"#ff0000\"/><title>\"currentColor\"</title></g></svg>",
+			new SvgRewriter(svg).write("#ff0000"));
+	}
+
+	@Test
+	public void testGetTitle() throws Exception
+	{
+		assertEquals("x", SvgRewriter.getTitle(TestMathJax.SVG_X));
+		assertEquals("a < b & ∀ c", SvgRewriter.getTitle(
+			"<svg><titles/><title id=\"t\">\n a &lt; b &amp;  &#x2200;\tc </title></svg>"));
+		assertEquals("", SvgRewriter.getTitle("<svg><title/></svg>"));
+		try
+		{
+			SvgRewriter.getTitle("<svg><titles>x</titles></svg>");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+			assertTrue(e.getMessage().contains("does not include <title>"));
+		}
+	}
+
+	@Test
+	public void testInvalid()
+	{
+		String[] invalid = { "<math/>", "<svg width=\"1ex\"", "<svg width>", "<svg width=1ex>" };
+		for(String svg : invalid)
+		{
+			try
+			{
+				new SvgRewriter(svg);
+				fail(svg);
+			}
+			catch(IOException e)
+			{
+				assertTrue(e.getMessage().startsWith("Unexpected SVG format"));
+			}
+		}
+	}
+}
@@ -20,6 +20,8 @@ package uk.ac.open.lts.webmaths.tex;
 
 import java.io.*;
 import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import junit.framework.TestCase;
@@ -500,4 +502,56 @@ public class TestLatexToMathml extends TestCase
 		assertMath("<mphantom><mn>3</mn><mo>+</mo><mi>x</mi></mphantom>",
 			"\\phantom{3+x}");
 	}
+
+	@Test
+	public void testConcurrent() throws Exception
+	{
+		// The command tables are shared, so conversions on different threads
+		// must give the same results as on one thread.
+		final String[] inputs =
+		{
+			"\\frac{x}{y}", "\\sqrt{1}", "\\begin{pmatrix} a & b \\\\ c & d \\end{pmatrix}",
+			"\\lim_i", "\\mathbf{x}+\\alpha", "13 \\pmod{16}", "\\phantom{3+x}"
+		};
+		final String[] expected = new String[inputs.length];
+		for(int i = 0; i < inputs.length; i++)
+		{
+			expected[i] = getMath(inputs[i]);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<Boolean>> results = new LinkedList<Future<Boolean>>();
+			for(int thread = 0; thread < 4; thread++)
+			{
+				results.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call() throws Exception
+					{
+						for(int repeat = 0; repeat < 50; repeat++)
+						{
+							for(int i = 0; i < inputs.length; i++)
+							{
+								if(!expected[i].equals(getMath(inputs[i])))
+								{
+									return false;
+								}
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for(Future<Boolean> result : results)
+			{
+				assertTrue(result.get());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
 }
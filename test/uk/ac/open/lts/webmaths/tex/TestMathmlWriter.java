@@ -0,0 +1,95 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import static org.junit.Assert.*;
+import static uk.ac.open.lts.webmaths.WebMathsService.NS;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.*;
+import org.w3c.dom.*;
+
+public class TestMathmlWriter
+{
+	private Document document;
+	private Element math;
+
+	@Before
+	public void before() throws Exception
+	{
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		document = factory.newDocumentBuilder().newDocument();
+		math = document.createElementNS(NS, "math");
+		document.appendChild(math);
+	}
+
+	/**
+	 * Adds an element to the math element.
+	 * @param tag Tag name
+	 * @param text Text content or null if none
+	 * @return New element
+	 */
+	private Element add(String tag, String text)
+	{
+		Element e = document.createElementNS(NS, tag);
+		if(text != null)
+		{
+			e.appendChild(document.createTextNode(text));
+		}
+		math.appendChild(e);
+		return e;
+	}
+
+	@Test
+	public void testSimple()
+	{
+		add("mi", "x");
+		add("mrow", null);
+		assertEquals("<math xmlns=\"" + NS + "\"><mi>x</mi><mrow/></math>",
+			MathmlWriter.write(math, true));
+	}
+
+	@Test
+	public void testEscaping()
+	{
+		// Same rules as LSSerializer
+		Element mi = add("mi", "a&<>\"'\r\n\t\u0001\u0085 ");
+		mi.setAttribute("title", "a&<>\"'\r\n\t\u0001\u0085");
+		mi.setAttribute("alt", "1");
+		assertEquals("<math xmlns=\"" + NS + "\"><mi alt=\"1\" "
+			+ "title=\"a&amp;&lt;&gt;&quot;'&#13;&#10;&#9;&#1;\u0085\">"
+			+ "a&amp;&lt;&gt;\"'&#13;\n\t&#1;&#133; </mi></math>",
+			MathmlWriter.write(math, true));
+	}
+
+	@Test
+	public void testErrors()
+	{
+		add("xerror", "Unknown <thing>");
+		add("xerroronly", "Bad -- \u0001");
+		assertEquals("<math xmlns=\"" + NS + "\"><mspace/><!-- Unknown <thing> -->"
+			+ "<!-- Bad - - \ufffd --></math>", MathmlWriter.write(math, true));
+
+		// Not converted unless requested
+		assertEquals("<math xmlns=\"" + NS + "\"><xerror>Unknown &lt;thing&gt;</xerror>"
+			+ "<xerroronly>Bad -- &#1;</xerroronly></math>", MathmlWriter.write(math, false));
+	}
+}
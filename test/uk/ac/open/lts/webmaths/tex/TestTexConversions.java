@@ -0,0 +1,133 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class TestTexConversions
+{
+	private TexConversions conversions;
+
+	@Before
+	public void before()
+	{
+		conversions = new TexConversions(null);
+	}
+
+	@After
+	public void after()
+	{
+		conversions.close();
+	}
+
+	private static MathsTexParams tex(String tex, boolean display)
+	{
+		MathsTexParams params = new MathsTexParams();
+		params.setTex(tex);
+		params.setDisplay(display);
+		return params;
+	}
+
+	private static GetTexParams mathml(String mathml)
+	{
+		GetTexParams params = new GetTexParams();
+		params.setMathml(mathml);
+		params.setLenient(false);
+		return params;
+	}
+
+	@Test
+	public void testMathmlCache()
+	{
+		MathsTexReturn first = conversions.getMathml(tex("x^2", false));
+		assertTrue(first.isOk());
+		assertEquals(0, conversions.getMathmlCacheStats().getHits());
+
+		MathsTexReturn second = conversions.getMathml(tex("x^2", false));
+		assertTrue(second.isOk());
+		assertEquals(first.getMathml(), second.getMathml());
+		assertEquals(1, conversions.getMathmlCacheStats().getHits());
+
+		// Display is part of the key
+		MathsTexReturn display = conversions.getMathml(tex("x^2", true));
+		assertTrue(display.isOk());
+		assertFalse(first.getMathml().equals(display.getMathml()));
+		assertEquals(1, conversions.getMathmlCacheStats().getHits());
+	}
+
+	@Test
+	public void testTexCache()
+	{
+		String mathml = "<math xmlns=\"http://www.w3.org/1998/Math/MathML\">"
+			+ "<mi>x</mi></math>";
+		GetTexReturn first = conversions.getTex(mathml(mathml));
+		assertTrue(first.isOk());
+		assertEquals("x", first.getTex());
+		GetTexReturn second = conversions.getTex(mathml(mathml));
+		assertEquals("x", second.getTex());
+		assertEquals(1, conversions.getTexCacheStats().getHits());
+
+		// Errors are cached too
+		GetTexReturn error = conversions.getTex(mathml("<frog"));
+		assertFalse(error.isOk());
+		assertEquals("", error.getTex());
+		GetTexReturn errorAgain = conversions.getTex(mathml("<frog"));
+		assertFalse(errorAgain.isOk());
+		assertEquals(error.getError(), errorAgain.getError());
+		assertEquals(2, conversions.getTexCacheStats().getHits());
+	}
+
+	@Test
+	public void testConvertEquations()
+	{
+		ConvertTexEquationsParams params = new ConvertTexEquationsParams();
+		for(int i = 0; i < 20; i++)
+		{
+			params.getMathsTexParams().add(tex("x_{" + i + "}", false));
+		}
+		params.getMathsTexParams().add(5, tex("\\frac{", false));
+		params.getGetTexParams().add(mathml("<frog"));
+		params.getGetTexParams().add(mathml(
+			"<math xmlns=\"http://www.w3.org/1998/Math/MathML\"><mn>7</mn></math>"));
+
+		ConvertTexEquationsReturn result = TexConversions.convertEquations(
+			conversions, params, conversions.getThreadPool());
+
+		// Results are in the same order as the input
+		assertEquals(21, result.getMathsTexReturn().size());
+		for(int i = 0; i < 21; i++)
+		{
+			MathsTexReturn item = result.getMathsTexReturn().get(i);
+			String expected = conversions.getMathml(params.getMathsTexParams().get(i)).getMathml();
+			assertEquals(expected, item.getMathml());
+			if(i != 5)
+			{
+				assertTrue(item.isOk());
+				assertTrue(item.getMathml().contains(">" + (i < 5 ? i : i - 1) + "<"));
+			}
+		}
+
+		assertEquals(2, result.getGetTexReturn().size());
+		assertFalse(result.getGetTexReturn().get(0).isOk());
+		assertTrue(result.getGetTexReturn().get(1).isOk());
+		assertEquals("7", result.getGetTexReturn().get(1).getTex());
+	}
+}
@@ -19,6 +19,7 @@ Copyright 2011 The Open University
 package uk.ac.open.lts.webmaths.tex;
 
 import java.io.StringReader;
+import java.util.Arrays;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 
@@ -118,6 +119,29 @@ public class TestTokenInput extends TestCase
 		assertEquals(null, tokens.nextToken());
 	}
 
+	@Test
+	public void testInsert()
+	{
+		TokenInput tokens = new TokenInput("1*2");
+		assertEquals("1", tokens.nextToken());
+		tokens.insertTokensBeforeCurrent("a", "b");
+		assertEquals("a", tokens.peekToken(0));
+		assertEquals("*", tokens.peekToken(2));
+		assertEquals("a", tokens.nextToken());
+		assertEquals("b", tokens.nextToken());
+		tokens.skipTokens(1);
+		assertEquals("2", tokens.nextToken());
+		assertEquals(null, tokens.nextToken());
+
+		// Insert more tokens than the buffer has room for
+		tokens = new TokenInput("x");
+		String[] many = new String[100];
+		Arrays.fill(many, "y");
+		tokens.insertTokensBeforeCurrent(many);
+		assertEquals("y", tokens.peekToken(99));
+		assertEquals("x", tokens.peekToken(100));
+	}
+
 	@Test
 	public void testBackslashSpace()
 	{
@@ -212,4 +236,50 @@ public class TestTokenInput extends TestCase
 		assertEquals("3", tokens.nextToken());
 		assertEquals(null, tokens.nextToken());
 	}
+
+	/**
+	 * Checks the tokens for some input.
+	 * @param input TeX input
+	 * @param expected Expected tokens
+	 */
+	private void assertTokens(String input, String... expected)
+	{
+		TokenInput tokens = new TokenInput(input);
+		for(String token : expected)
+		{
+			assertEquals(token, tokens.nextToken());
+		}
+		assertEquals(null, tokens.nextToken());
+	}
+
+	@Test
+	public void testNamedArgument()
+	{
+		assertTokens("\\begin {matrix}", "\\begin", "matrix");
+		assertTokens("\\operatorname{ sin x }", "\\operatorname", "sin x ");
+		// Spaces can be the name
+		assertTokens("\\mathrm{ }", "\\mathrm", " ");
+		assertTokens("\\mathrm{ \t}", "\\mathrm", " ");
+		// Not a name, so the brace is a separate token
+		assertTokens("\\mathrm{x2}", "\\mathrm", "{", "x", "2", "}");
+		assertTokens("\\beginning{x}", "\\beginning", "{", "x", "}");
+	}
+
+	@Test
+	public void testUnmatched()
+	{
+		// Characters that aren't a token are skipped if there is a token later on
+		assertTokens("\u00e9+\\'x", "+", "'", "x");
+		// Otherwise they are included one at a time
+		assertTokens("x\u00e9\ud835\udc00", "x", "\u00e9", "\ud835\udc00");
+		assertTokens("\\text{a\\", "\\text", "{", "a", "\\");
+	}
+
+	@Test
+	public void testTextMode()
+	{
+		assertTokens("\\mbox  {a~b {c} \\it x}y", "\\mbox", "{", "a\u00a0b ", "{", "c",
+			"}", " ", "\\it ", "x", "}", "y");
+		assertTokens("a$b c$d", "a", "$", "b c", "$", "d");
+	}
 }
@@ -0,0 +1,93 @@
+/*
+This file is part of OU webmaths
+
+OU webmaths is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+OU webmaths is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with OU webmaths. If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2026 The Open University
+*/
+package uk.ac.open.lts.webmaths.tex;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Measures tokenising and conversion speed on the forum samples. Run from the
+ * command line in the project folder (not a unit test); the optional
+ * parameters are the number of iterations and the samples file.
+ */
+public class TokenInputBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		File samplesFile = new File(args.length > 1 ? args[1] : "misc/forum.tex.samples");
+
+		List<String> samples = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(samplesFile), "UTF-8"));
+		while(true)
+		{
+			String line = reader.readLine();
+			if(line == null)
+			{
+				break;
+			}
+			if(line.equals("") || line.startsWith("#"))
+			{
+				continue;
+			}
+			samples.add(line);
+		}
+		reader.close();
+
+		System.out.println("Task,Milliseconds,Microseconds per sample");
+		// Run everything twice; the first round is warm-up.
+		for(int round = 0; round < 2; round++)
+		{
+			long start = System.nanoTime();
+			int tokens = 0;
+			for(int i = 0; i < iterations; i++)
+			{
+				for(String sample : samples)
+				{
+					TokenInput input = new TokenInput(sample);
+					while(input.nextToken() != null)
+					{
+						tokens++;
+					}
+				}
+			}
+			long tokenNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for(int i = 0; i < iterations; i++)
+			{
+				for(String sample : samples)
+				{
+					new TokenInput(sample).toMathml(true);
+				}
+			}
+			long convertNanos = System.nanoTime() - start;
+
+			if(round == 1)
+			{
+				int count = samples.size() * iterations;
+				System.out.println("Tokenise," + (tokenNanos / 1000000) + ","
+					+ ((double)tokenNanos / 1000 / count) + " (" + tokens + " tokens)");
+				System.out.println("Convert," + (convertNanos / 1000000) + ","
+					+ ((double)convertNanos / 1000 / count));
+			}
+		}
+	}
+}